@@ -0,0 +1,248 @@
+package org.vaadin.aceeditor.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.vaadin.aceeditor.client.AceDoc;
+import org.vaadin.aceeditor.client.AceMarker;
+import org.vaadin.aceeditor.client.AceMarker.OnTextChange;
+import org.vaadin.aceeditor.client.AceMarker.Type;
+import org.vaadin.aceeditor.client.AceRange;
+
+/**
+ * Deterministic source-like documents and edits for the benchmarks.
+ *
+ * The same seed always gives the same text, so numbers from different runs
+ * (and different commits) are comparable.
+ */
+public class Corpus {
+
+	/**
+	 * The kind of edit that turns the "before" document into the "after" one.
+	 */
+	public enum Edit {
+		/**
+		 * A single character typed in the middle of the document.
+		 */
+		KEYSTROKE,
+		/**
+		 * A block of about 2 KB of code pasted in the middle of the document.
+		 */
+		PASTE,
+		/**
+		 * Every line re-indented, the way "format document" does it.
+		 */
+		REFORMAT
+	}
+
+	private static final String[] TYPES = { "int", "long", "String",
+			"boolean", "List<String>", "Map<String, Integer>", "double" };
+	private static final String[] NAMES = { "count", "index", "value",
+			"result", "buffer", "offset", "length", "name", "items", "total",
+			"cursor", "state", "marker", "row", "column", "text" };
+	private static final String[] CALLS = { "compute", "update", "append",
+			"remove", "contains", "resolve", "apply", "validate", "flush",
+			"render" };
+
+	/**
+	 * Java-like source of (about) the given length.
+	 */
+	public static String source(int length, long seed) {
+		Random r = new Random(seed);
+		StringBuilder sb = new StringBuilder(length + 256);
+		int cls = 0;
+		while (sb.length() < length) {
+			sb.append("/**\n * Generated class ").append(cls)
+					.append(".\n */\npublic class Gen").append(cls)
+					.append(" {\n\n");
+			int methods = 3 + r.nextInt(8);
+			for (int m = 0; m < methods && sb.length() < length; ++m) {
+				appendMethod(sb, r, "    ");
+			}
+			sb.append("}\n\n");
+			++cls;
+		}
+		return sb.toString();
+	}
+
+	private static void appendMethod(StringBuilder sb, Random r, String indent) {
+		sb.append(indent).append("public ").append(pick(r, TYPES)).append(' ')
+				.append(pick(r, CALLS)).append(pick(r, NAMES).toUpperCase())
+				.append("(").append(pick(r, TYPES)).append(' ')
+				.append(pick(r, NAMES)).append(") {\n");
+		int statements = 2 + r.nextInt(12);
+		for (int s = 0; s < statements; ++s) {
+			appendStatement(sb, r, indent + "    ", 0);
+		}
+		sb.append(indent).append("    return ").append(pick(r, NAMES))
+				.append(";\n").append(indent).append("}\n\n");
+	}
+
+	private static void appendStatement(StringBuilder sb, Random r,
+			String indent, int depth) {
+		int kind = r.nextInt(depth < 2 ? 6 : 4);
+		sb.append(indent);
+		switch (kind) {
+		case 0:
+			sb.append(pick(r, TYPES)).append(' ').append(pick(r, NAMES))
+					.append(r.nextInt(100)).append(" = ")
+					.append(r.nextInt(10000)).append(";\n");
+			break;
+		case 1:
+			sb.append(pick(r, NAMES)).append('.').append(pick(r, CALLS))
+					.append('(').append(pick(r, NAMES)).append(", ")
+					.append(pick(r, NAMES)).append(");\n");
+			break;
+		case 2:
+			sb.append("// TODO ").append(pick(r, CALLS)).append(" the ")
+					.append(pick(r, NAMES)).append(" before ")
+					.append(pick(r, CALLS)).append("\n");
+			break;
+		case 3:
+			sb.append(pick(r, NAMES)).append(" += ").append(pick(r, NAMES))
+					.append(" * ").append(r.nextInt(64)).append(";\n");
+			break;
+		default:
+			sb.append(kind == 4 ? "if (" : "while (").append(pick(r, NAMES))
+					.append(" < ").append(r.nextInt(1000)).append(") {\n");
+			int n = 1 + r.nextInt(4);
+			for (int i = 0; i < n; ++i) {
+				appendStatement(sb, r, indent + "    ", depth + 1);
+			}
+			sb.append(indent).append("}\n");
+		}
+	}
+
+	private static String pick(Random r, String[] from) {
+		return from[r.nextInt(from.length)];
+	}
+
+	/**
+	 * The text after applying the edit to the given text.
+	 */
+	public static String edit(String text, Edit edit, long seed) {
+		switch (edit) {
+		case KEYSTROKE: {
+			int pos = middleLineStart(text);
+			return text.substring(0, pos) + "x" + text.substring(pos);
+		}
+		case PASTE: {
+			int pos = middleLineStart(text);
+			return text.substring(0, pos) + pasted(seed) + text.substring(pos);
+		}
+		case REFORMAT:
+			return reformat(text);
+		default:
+			throw new IllegalArgumentException(String.valueOf(edit));
+		}
+	}
+
+	/**
+	 * Number of rows the edit inserts at {@link #editRow(String)}.
+	 */
+	public static int insertedRows(Edit edit, long seed) {
+		return edit == Edit.PASTE ? count(pasted(seed), '\n') : 0;
+	}
+
+	/**
+	 * The row where {@link #edit(String, Edit, long)} inserts text.
+	 */
+	public static int editRow(String text) {
+		return count(text.substring(0, middleLineStart(text)), '\n');
+	}
+
+	private static String pasted(long seed) {
+		Random r = new Random(seed ^ 0x5DEECE66DL);
+		StringBuilder sb = new StringBuilder(2048 + 256);
+		while (sb.length() < 2048) {
+			appendMethod(sb, r, "    ");
+		}
+		return sb.toString();
+	}
+
+	private static String reformat(String text) {
+		StringBuilder sb = new StringBuilder(text.length());
+		int i = 0;
+		int len = text.length();
+		while (i < len) {
+			int spaces = 0;
+			while (i < len && text.charAt(i) == ' ') {
+				++spaces;
+				++i;
+			}
+			for (int t = 0; t < spaces / 4; ++t) {
+				sb.append('\t');
+			}
+			for (int t = 0; t < spaces % 4; ++t) {
+				sb.append(' ');
+			}
+			int nl = text.indexOf('\n', i);
+			int end = nl == -1 ? len : nl + 1;
+			sb.append(text, i, end);
+			i = end;
+		}
+		return sb.toString();
+	}
+
+	private static int middleLineStart(String text) {
+		int nl = text.indexOf('\n', text.length() / 2);
+		return nl == -1 ? text.length() : nl + 1;
+	}
+
+	private static int count(String s, char c) {
+		int n = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			if (s.charAt(i) == c) {
+				++n;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Given number of ADJUST markers spread evenly over the rows of the text.
+	 *
+	 * Markers on rows at or after {@code fromRow} are moved down by
+	 * {@code rowShift} rows, which is what the client does to them when
+	 * {@code rowShift} rows are inserted at {@code fromRow}.
+	 */
+	public static Map<String, AceMarker> markers(String text, int count,
+			int fromRow, int rowShift) {
+		Map<String, AceMarker> markers = new HashMap<String, AceMarker>();
+		if (count == 0) {
+			return markers;
+		}
+		int rows = count(text, '\n') + 1;
+		for (int i = 0; i < count; ++i) {
+			int row = (int) ((long) i * rows / count);
+			if (row >= fromRow) {
+				row += rowShift;
+			}
+			String id = "m" + i;
+			AceRange range = new AceRange(row, 0, row, 4);
+			markers.put(id, new AceMarker(id, range, "ace_marker",
+					Type.text, false, OnTextChange.ADJUST));
+		}
+		return markers;
+	}
+
+	/**
+	 * The "before" document of a benchmark case.
+	 */
+	public static AceDoc before(int length, int markerCount, long seed) {
+		String text = source(length, seed);
+		return new AceDoc(text, markers(text, markerCount, 0, 0));
+	}
+
+	/**
+	 * The "after" document of a benchmark case.
+	 */
+	public static AceDoc after(AceDoc before, Edit edit, int markerCount,
+			long seed) {
+		String text = before.getText();
+		String edited = edit(text, edit, seed);
+		return new AceDoc(edited, markers(text, markerCount, editRow(text),
+				insertedRows(edit, seed)));
+	}
+}
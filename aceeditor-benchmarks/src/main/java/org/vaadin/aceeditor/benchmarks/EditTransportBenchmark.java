@@ -0,0 +1,68 @@
+package org.vaadin.aceeditor.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.aceeditor.ServerSideDocDiff;
+import org.vaadin.aceeditor.benchmarks.Corpus.Edit;
+import org.vaadin.aceeditor.client.AceDoc;
+import org.vaadin.aceeditor.client.TransportDiff;
+import org.vaadin.aceeditor.client.TransportDiff.TransportEdit;
+
+/**
+ * Applying a keystroke from the client to the shadow on the server, sent as
+ * patches (as made by a diff) or as the edit made in the editor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class EditTransportBenchmark {
+
+	/**
+	 * Document size in characters.
+	 */
+	@Param({ "102400", "1048576", "5242880" })
+	public int size;
+
+	private AceDoc shadow;
+	private TransportDiff patches;
+	private TransportDiff edits;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		shadow = Corpus.before(size, 0, 42L);
+		AceDoc after = Corpus.after(shadow, Edit.KEYSTROKE, 0, 42L);
+		patches = ServerSideDocDiff.diff(shadow, after).asTransport();
+		edits = ServerSideDocDiff.diff(shadow, after).asTransport();
+		edits.patchesAsString = null;
+		edits.edits = Collections.singletonList(new TransportEdit(
+				Corpus.editRow(shadow.getText()), 0, 0, "x"));
+	}
+
+	@Benchmark
+	public AceDoc applyPatches() {
+		return ServerSideDocDiff.fromTransportDiff(patches, shadow.getText())
+				.applyTo(shadow);
+	}
+
+	@Benchmark
+	public AceDoc applyEdits() {
+		return ServerSideDocDiff.fromTransportDiff(edits, shadow.getText())
+				.applyTo(shadow);
+	}
+}
@@ -0,0 +1,59 @@
+package org.vaadin.aceeditor.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Patch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding patches to the text sent to the client and parsing the text the
+ * client sends back, for a paste of the given size into an empty document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class PatchCodecBenchmark {
+
+	/**
+	 * Size of the paste in characters.
+	 */
+	@Param({ "102400", "1048576", "4194304" })
+	public int size;
+
+	private final diff_match_patch dmp = new diff_match_patch();
+	private List<Patch> patches;
+	private String patchText;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		patches = dmp.patch_make("", Corpus.source(size, 42L));
+		patchText = dmp.patch_toText(patches);
+	}
+
+	@Benchmark
+	public String patchToText() {
+		return dmp.patch_toText(patches);
+	}
+
+	@Benchmark
+	public List<Patch> patchFromText() {
+		return dmp.patch_fromText(patchText);
+	}
+}
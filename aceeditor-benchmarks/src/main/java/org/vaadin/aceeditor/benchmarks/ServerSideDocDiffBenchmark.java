@@ -0,0 +1,121 @@
+package org.vaadin.aceeditor.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.aceeditor.HistogramDiffEngine;
+import org.vaadin.aceeditor.ParallelDiffEngine;
+import org.vaadin.aceeditor.ServerSideDocDiff;
+import org.vaadin.aceeditor.TextDiffEngine;
+import org.vaadin.aceeditor.benchmarks.Corpus.Edit;
+import org.vaadin.aceeditor.client.AceDoc;
+import org.vaadin.aceeditor.client.TransportDiff;
+
+/**
+ * The server-side half of a sync round: computing the diff between the
+ * shadow and the current document, turning it into a transport object and
+ * back, and applying it.
+ *
+ * Run with {@code -prof gc} to see the allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ServerSideDocDiffBenchmark {
+
+	/**
+	 * Document size in characters.
+	 */
+	@Param({ "1024", "102400", "1048576", "10485760" })
+	public int size;
+
+	@Param({ "KEYSTROKE", "PASTE", "REFORMAT" })
+	public Edit edit;
+
+	@Param({ "0", "100", "10000" })
+	public int markers;
+
+	private AceDoc before;
+	private AceDoc after;
+	private ServerSideDocDiff diff;
+	private TransportDiff transport;
+	private TransportDiff deltaTransport;
+	private final diff_match_patch dmp = new diff_match_patch();
+	private final TextDiffEngine histogram = new HistogramDiffEngine();
+	private final TextDiffEngine parallel = new ParallelDiffEngine();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		before = Corpus.before(size, markers, 42L);
+		after = Corpus.after(before, edit, markers, 42L);
+		diff = ServerSideDocDiff.diff(before, after);
+		transport = diff.asTransport();
+		deltaTransport = diff.asDeltaTransport();
+	}
+
+	@Benchmark
+	public ServerSideDocDiff diff() {
+		return ServerSideDocDiff.diff(before, after);
+	}
+
+	/**
+	 * Diff with one diff_match_patch reused between calls, the way an
+	 * AceEditor does it.
+	 */
+	@Benchmark
+	public ServerSideDocDiff diffReused() {
+		return ServerSideDocDiff.diff(before, after, dmp);
+	}
+
+	@Benchmark
+	public ServerSideDocDiff diffHistogram() {
+		return ServerSideDocDiff.diff(before, after, dmp, histogram);
+	}
+
+	@Benchmark
+	public ServerSideDocDiff diffParallel() {
+		return ServerSideDocDiff.diff(before, after, dmp, parallel);
+	}
+
+	@Benchmark
+	public TransportDiff asTransport() {
+		return diff.asTransport();
+	}
+
+	@Benchmark
+	public TransportDiff asDeltaTransport() {
+		return diff.asDeltaTransport();
+	}
+
+	@Benchmark
+	public ServerSideDocDiff fromTransportDiff() {
+		return ServerSideDocDiff.fromTransportDiff(transport);
+	}
+
+	@Benchmark
+	public ServerSideDocDiff fromDeltaTransportDiff() {
+		return ServerSideDocDiff.fromTransportDiff(deltaTransport,
+				before.getText());
+	}
+
+	@Benchmark
+	public AceDoc applyTo() {
+		return diff.applyTo(before);
+	}
+}
@@ -1,10 +1,13 @@
 package org.vaadin.aceeditor;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.vaadin.data.HasValue;
 import org.vaadin.aceeditor.client.AceAnnotation;
+import org.vaadin.aceeditor.client.AceAnnotation.MarkerAnnotation;
 import org.vaadin.aceeditor.client.AceEditorWidget;
 import org.vaadin.aceeditor.client.AceMarker;
 import org.vaadin.aceeditor.client.AceRange;
@@ -38,8 +41,8 @@ public class MyErrorChecker implements HasValue.ValueChangeListener<String> {
 	}
 
 	private void checkErrors(String text) {
-		editor.clearMarkerAnnotations();
-		editor.clearMarkers();
+		List<AceMarker> markers = new ArrayList<AceMarker>();
+		List<MarkerAnnotation> anns = new ArrayList<MarkerAnnotation>();
 		
 		Matcher matcher = pattern.matcher(text);
 		int i = 0;
@@ -47,12 +50,14 @@ public class MyErrorChecker implements HasValue.ValueChangeListener<String> {
 			i = matcher.end() + 1;
 			AceRange range = AceRange.fromPositions(matcher.start(), matcher.end(), text);
 			AceMarker m = new AceMarker(newErrorMarkerId(), range, "myerrormarker1", AceMarker.Type.text, false, AceMarker.OnTextChange.ADJUST);
-			editor.addMarker(m);
+			markers.add(m);
 			
 			AceAnnotation ann = new AceAnnotation("X's not allowed here! ("+matcher.group()+")", AceAnnotation.Type.error);
-			editor.addMarkerAnnotation(ann, m);
+			anns.add(new MarkerAnnotation(m.getMarkerId(), ann));
 		}
 		
+		// Only the errors that weren't there already are sent to the client.
+		editor.replaceMarkersAndAnnotations(markers, anns);
 	}
 
 }
@@ -19,18 +19,16 @@
 
 package name.fraser.neil.plaintext;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.Stack;
-import java.util.regex.Matcher;
+import java.util.NoSuchElementException;
 import java.util.regex.Pattern;
 
 /*
@@ -54,10 +52,30 @@ public class diff_match_patch {
      * Number of seconds to map a diff before giving up (0 for infinity).
      */
     public float Diff_Timeout = 1.0f;
+    /**
+     * Number of steps to spend on a diff before giving up (0 for no budget).
+     * A step is one move or one matched character of diff_bisect().  If set,
+     * Diff_Timeout is ignored, so that a diff doesn't depend on the load of
+     * the machine: the same texts always give the same diff.
+     */
+    public long Diff_Budget = 0;
     /**
      * Cost of an empty edit operation in terms of edit characters.
      */
     public short Diff_EditCost = 4;
+    /**
+     * Length of the changed part of two texts (what is left after stripping
+     * their common prefix and suffix) above which a diff with checklines
+     * only diffs by lines and refines the changed hunks (0 for never).
+     */
+    public int Diff_LineModeThreshold = 0;
+    /**
+     * Longest changed hunk (both sides together) that a line-refined diff
+     * rediffs as a whole at character level.  Longer hunks are rediffed line
+     * by line if both sides have as many lines, otherwise they are kept as a
+     * deletion and an insertion.
+     */
+    public int Diff_HunkMaxLength = 10000;
     /**
      * At what point is no match declared (0.0 = perfection, 1.0 = very loose).
      */
@@ -81,9 +99,30 @@ public class diff_match_patch {
     public short Patch_Margin = 4;
 
     /**
-     * The number of bits in an int.
+     * The longest text a patch is matched with at once.  Longer patches are
+     * split, and the longer deletions left are matched by their ends, to
+     * keep the patches the same as those of the JavaScript version, whose
+     * Bitap is limited to the bits in an int.  The Bitap here matches
+     * patterns of any length.
      */
     private short Match_MaxBits = 32;
+    /**
+     * Largest scratch buffer (in elements) kept for reuse between diffs.
+     * Bigger diffs allocate their buffers per call and drop them afterwards.
+     */
+    public int Scratch_MaxSize = 1 << 20;
+
+    // Scratch buffers reused between diffs, see takeV() and takeLineArray().
+    // Because of them an instance must not be used by several threads at the
+    // same time; use one instance per thread (or per editor) instead.
+    private int[] scratchV1;
+    private int[] scratchV2;
+    private ArrayList<String> scratchLineArray;
+    private HashMap<String, Integer> scratchLineHash;
+    private StringBuilder scratchChars;
+
+    // Steps left for the diff being computed, see Diff_Budget.
+    private long budgetLeft = Long.MAX_VALUE;
 
     /**
      * Internal class for returning results from diff_linesToChars().
@@ -116,6 +155,24 @@ public class diff_match_patch {
         DELETE, INSERT, EQUAL
     }
 
+    // Ranges are compared char by char up to this length, and after that in
+    // blocks of BLOCK_COMPARE_LENGTH chars copied out with String.getChars.
+    // Arrays.equals on the blocks is compiled to vector instructions, which
+    // makes trimming a common prefix or suffix of a big document about twice
+    // as fast as charAt, without creating an object per block.
+    private static final int SCALAR_COMPARE_LENGTH = 64;
+    private static final int BLOCK_COMPARE_LENGTH = 1024;
+
+    // Operation codes of a DiffList, the same as the Operation ordinals.
+    private static final byte OP_DELETE = 0;
+    private static final byte OP_INSERT = 1;
+    private static final byte OP_EQUAL = 2;
+    // An equality that a cleanup is turning into a deletion and an insertion.
+    private static final byte OP_SPLIT = 3;
+    // A diff removed by a cleanup, dropped when the list is compacted.
+    private static final byte OP_DEAD = 4;
+    private static final Operation[] OPERATIONS = Operation.values();
+
     /**
      * Find the differences between two texts.
      * Run a faster, slightly less optimal diff.
@@ -142,67 +199,351 @@ public class diff_match_patch {
      */
     public LinkedList<Diff> diff_main(String text1, String text2,
                                       boolean checklines) {
-        // Set a deadline by which time the diff must be complete.
-        long deadline;
-        if (Diff_Timeout <= 0) {
-            deadline = Long.MAX_VALUE;
-        } else {
-            deadline = System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
-        }
-        return diff_main(text1, text2, checklines, deadline);
+        return diff_list(text1, text2, checklines).toLinkedList();
     }
 
     /**
-     * Find the differences between two texts.  Simplifies the problem by
-     * stripping any common prefix or suffix off the texts before diffing.
+     * Find the differences between two texts.
+     * Same as diff_main() but returns the compact DiffList the engine works
+     * on, without creating a Diff object per operation.
      *
      * @param text1      Old string to be diffed.
      * @param text2      New string to be diffed.
      * @param checklines Speedup flag.  If false, then don't run a
      *                   line-level diff first to identify the changed areas.
      *                   If true, then run a faster slightly less optimal diff.
-     * @param deadline   Time when the diff should be complete by.  Used
-     *                   internally for recursive calls.  Users should set DiffTimeout instead.
-     * @return Linked List of Diff objects.
+     * @return DiffList from text1 to text2.
      */
-    private LinkedList<Diff> diff_main(String text1, String text2,
-                                       boolean checklines, long deadline) {
+    public DiffList diff_list(String text1, String text2, boolean checklines) {
         // Check for null inputs.
         if (text1 == null || text2 == null) {
             throw new IllegalArgumentException("Null inputs. (diff_main)");
         }
+        return diff_list(text1, 0, text1.length(), text2, 0, text2.length(),
+                checklines);
+    }
+
+    /**
+     * Find the differences between two ranges of text.
+     * Same as diff_list(String, String, boolean) on the substrings, without
+     * creating them.
+     *
+     * @param text1      Old string.
+     * @param start1     Start of the range of text1 to be diffed.
+     * @param end1       End of the range of text1 to be diffed.
+     * @param text2      New string.
+     * @param start2     Start of the range of text2 to be diffed.
+     * @param end2       End of the range of text2 to be diffed.
+     * @param checklines Speedup flag.  If false, then don't run a
+     *                   line-level diff first to identify the changed areas.
+     *                   If true, then run a faster slightly less optimal diff.
+     * @return DiffList from the range of text1 to the range of text2.
+     */
+    public DiffList diff_list(String text1, int start1, int end1,
+                              String text2, int start2, int end2,
+                              boolean checklines) {
+        if (start1 < 0 || end1 > text1.length() || start1 > end1
+                || start2 < 0 || end2 > text2.length() || start2 > end2) {
+            throw new IndexOutOfBoundsException("Invalid ranges. (diff_main)");
+        }
+        long deadline = diff_deadline();
+        budgetLeft = Diff_Budget > 0 ? Diff_Budget : Long.MAX_VALUE;
+        try {
+            DiffList diffs = diff_range(text1, start1, end1, text2, start2,
+                    end2, checklines, deadline);
+            diffs.budgetExhausted = budgetLeft < 0;
+            return diffs;
+        } finally {
+            budgetLeft = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Find the differences between two texts, given blocks of them that are
+     * known to match, e.g. lines matched by a line-based diff.  Only the gaps
+     * between the blocks are diffed, within one Diff_Timeout or Diff_Budget.
+     * A gap with as many lines on both sides is diffed line by line, which
+     * is what e.g. a reindented block needs.
+     *
+     * @param text1      Old string to be diffed.
+     * @param text2      New string to be diffed.
+     * @param anchors    Matching blocks as {start1, start2, length} triples,
+     *                   in order and not overlapping.
+     * @param checklines Speedup flag for diffing the gaps, see diff_list().
+     * @return DiffList from text1 to text2.
+     */
+    public DiffList diff_anchored(String text1, String text2, int[] anchors,
+                                  boolean checklines) {
+        if (text1 == null || text2 == null || anchors == null) {
+            throw new IllegalArgumentException("Null inputs. (diff_anchored)");
+        }
+        long deadline = diff_deadline();
+        budgetLeft = Diff_Budget > 0 ? Diff_Budget : Long.MAX_VALUE;
+        try {
+            DiffList diffs = new DiffList(text1, 0, text2, 0);
+            int pointer1 = 0;
+            int pointer2 = 0;
+            for (int x = 0; x <= anchors.length; x += 3) {
+                int next1 = text1.length();
+                int next2 = text2.length();
+                int length = 0;
+                if (x < anchors.length) {
+                    next1 = anchors[x];
+                    next2 = anchors[x + 1];
+                    length = anchors[x + 2];
+                    if (next1 < pointer1 || next2 < pointer2 || length < 0
+                            || next1 + length > text1.length()
+                            || next2 + length > text2.length()
+                            || diff_commonPrefix(text1, next1, next1 + length,
+                            text2, next2, next2 + length) != length) {
+                        throw new IllegalArgumentException(
+                                "Invalid anchor at " + x + ". (diff_anchored)");
+                    }
+                }
+                int lines = lineCount(text1, pointer1, next1);
+                if (lines > 1 && lines == lineCount(text2, pointer2, next2)) {
+                    diff_linePairs(text1, pointer1, next1, text2, pointer2,
+                            next2, deadline, diffs);
+                } else {
+                    diffs.addAll(diff_range(text1, pointer1, next1, text2,
+                            pointer2, next2, checklines, deadline));
+                }
+                if (length != 0) {
+                    diffs.add(OP_EQUAL, length);
+                }
+                pointer1 = next1 + length;
+                pointer2 = next2 + length;
+            }
+            diff_cleanupMerge(diffs);
+            diffs.budgetExhausted = budgetLeft < 0;
+            return diffs;
+        } finally {
+            budgetLeft = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Find the differences between two texts that are known to share a
+     * prefix and a suffix of the given lengths, e.g. because the caller made
+     * the edits itself.  Only the part between them is diffed, and the
+     * prefix and suffix are not compared, so this takes time proportional to
+     * the changed part rather than to the texts.
+     *
+     * @param text1      Old string to be diffed.
+     * @param text2      New string to be diffed.
+     * @param prefix     Length of the common prefix, or less.
+     * @param suffix     Length of the common suffix, or less.
+     * @param checklines Speedup flag for diffing the middle, see diff_list().
+     * @return DiffList from text1 to text2.
+     */
+    public DiffList diff_bounded(String text1, String text2, int prefix,
+                                 int suffix, boolean checklines) {
+        if (text1 == null || text2 == null) {
+            throw new IllegalArgumentException("Null inputs. (diff_bounded)");
+        }
+        int end1 = text1.length() - suffix;
+        int end2 = text2.length() - suffix;
+        if (prefix < 0 || suffix < 0 || prefix > end1 || prefix > end2) {
+            throw new IndexOutOfBoundsException(
+                    "Invalid prefix or suffix. (diff_bounded)");
+        }
+        long deadline = diff_deadline();
+        budgetLeft = Diff_Budget > 0 ? Diff_Budget : Long.MAX_VALUE;
+        try {
+            DiffList diffs = new DiffList(text1, 0, text2, 0);
+            if (prefix != 0) {
+                diffs.add(OP_EQUAL, prefix);
+            }
+            diffs.addAll(diff_range(text1, prefix, end1, text2, prefix, end2,
+                    checklines, deadline));
+            if (suffix != 0) {
+                diffs.add(OP_EQUAL, suffix);
+            }
+            diff_cleanupMerge(diffs);
+            diffs.budgetExhausted = budgetLeft < 0;
+            return diffs;
+        } finally {
+            budgetLeft = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Join the diffs of consecutive ranges of two texts into one diff, e.g.
+     * ranges that were diffed separately on different threads.
+     *
+     * @param parts Diffs of the same texts, each one starting where the
+     *              previous one ends.  The first starts at the beginning of
+     *              both texts and the last one ends at the end of both.
+     * @return DiffList from text1 to text2.
+     */
+    public DiffList diff_concat(List<DiffList> parts) {
+        if (parts.isEmpty()) {
+            throw new IllegalArgumentException("No parts. (diff_concat)");
+        }
+        DiffList first = parts.get(0);
+        DiffList diffs = new DiffList(first.text1, 0, first.text2, 0);
+        int pointer1 = 0;
+        int pointer2 = 0;
+        for (DiffList part : parts) {
+            if (part.text1 != first.text1 || part.text2 != first.text2
+                    || part.start1 != pointer1 || part.start2 != pointer2) {
+                throw new IllegalArgumentException(
+                        "Parts are not consecutive. (diff_concat)");
+            }
+            for (int x = 0; x < part.size; x++) {
+                if (part.ops[x] != OP_INSERT) {
+                    pointer1 += part.lengths[x];
+                }
+                if (part.ops[x] != OP_DELETE) {
+                    pointer2 += part.lengths[x];
+                }
+            }
+            diffs.addAll(part);
+        }
+        if (pointer1 != first.text1.length()
+                || pointer2 != first.text2.length()) {
+            throw new IllegalArgumentException(
+                    "Parts don't cover the texts. (diff_concat)");
+        }
+        diff_cleanupMerge(diffs);
+        return diffs;
+    }
+
+    /**
+     * @return Time by which a diff started now must be complete, according
+     * to Diff_Timeout and Diff_Budget.
+     */
+    private long diff_deadline() {
+        if (Diff_Timeout <= 0 || Diff_Budget > 0) {
+            return Long.MAX_VALUE;
+        }
+        return System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
+    }
+
+    /**
+     * Find the differences between two ranges of text with the given
+     * deadline, by lines first if so configured.
+     *
+     * @param text1      Old string.
+     * @param start1     Start of the range of text1 to be diffed.
+     * @param end1       End of the range of text1 to be diffed.
+     * @param text2      New string.
+     * @param start2     Start of the range of text2 to be diffed.
+     * @param end2       End of the range of text2 to be diffed.
+     * @param checklines Speedup flag, see diff_list().
+     * @param deadline   Time when the diff should be complete by.
+     * @return DiffList of the ranges.
+     */
+    private DiffList diff_range(String text1, int start1, int end1,
+                                String text2, int start2, int end2,
+                                boolean checklines, long deadline) {
+        if (checklines && Diff_LineModeThreshold > 0) {
+            return diff_lineRefined(text1, start1, end1, text2, start2, end2,
+                    deadline);
+        }
+        return diff_main(text1, start1, end1, text2, start2, end2, checklines,
+                deadline);
+    }
+
+    /**
+     * Find the differences between two ranges of text, diffing only by lines
+     * if the changed part is longer than Diff_LineModeThreshold.  The common
+     * prefix and suffix are stripped at line boundaries first, so that a
+     * small edit in a large text stays cheap.
+     *
+     * @param text1    Old string.
+     * @param start1   Start of the range of text1 to be diffed.
+     * @param end1     End of the range of text1 to be diffed.
+     * @param text2    New string.
+     * @param start2   Start of the range of text2 to be diffed.
+     * @param end2     End of the range of text2 to be diffed.
+     * @param deadline Time when the diff should be complete by.
+     * @return DiffList of the ranges.
+     */
+    private DiffList diff_lineRefined(String text1, int start1, int end1,
+                                      String text2, int start2, int end2,
+                                      long deadline) {
+        int commonprefix = diff_commonPrefix(text1, start1, end1,
+                text2, start2, end2);
+        int commonsuffix = diff_commonSuffix(text1, start1 + commonprefix, end1,
+                text2, start2 + commonprefix, end2);
+        // Back off to whole lines, so that the line diff sees complete lines.
+        commonprefix = Math.max(start1,
+                text1.lastIndexOf('\n', start1 + commonprefix - 1) + 1) - start1;
+        int suffixLine = text1.indexOf('\n', end1 - commonsuffix);
+        commonsuffix = suffixLine == -1 || suffixLine >= end1
+                ? 0 : end1 - suffixLine - 1;
+
+        DiffList diffs = new DiffList(text1, start1, text2, start2);
+        if (commonprefix != 0) {
+            diffs.add(OP_EQUAL, commonprefix);
+        }
+        int middle1 = end1 - commonsuffix;
+        int middle2 = end2 - commonsuffix;
+        if (Math.max(middle1 - start1, middle2 - start2) - commonprefix
+                > Diff_LineModeThreshold) {
+            diff_lineMode(text1, start1 + commonprefix, middle1,
+                    text2, start2 + commonprefix, middle2, deadline, true,
+                    diffs);
+        } else {
+            diffs.addAll(diff_main(text1, start1 + commonprefix, middle1,
+                    text2, start2 + commonprefix, middle2, true, deadline));
+        }
+        if (commonsuffix != 0) {
+            diffs.add(OP_EQUAL, commonsuffix);
+        }
+        diff_cleanupMerge(diffs);
+        return diffs;
+    }
+
+    /**
+     * Find the differences between two ranges of text.  Simplifies the
+     * problem by stripping any common prefix or suffix off the ranges before
+     * diffing.
+     *
+     * @param text1      Old string.
+     * @param start1     Start of the range of text1 to be diffed.
+     * @param end1       End of the range of text1 to be diffed.
+     * @param text2      New string.
+     * @param start2     Start of the range of text2 to be diffed.
+     * @param end2       End of the range of text2 to be diffed.
+     * @param checklines Speedup flag.  If false, then don't run a
+     *                   line-level diff first to identify the changed areas.
+     *                   If true, then run a faster slightly less optimal diff.
+     * @param deadline   Time when the diff should be complete by.  Used
+     *                   internally for recursive calls.  Users should set DiffTimeout instead.
+     * @return DiffList of the ranges.
+     */
+    private DiffList diff_main(String text1, int start1, int end1,
+                               String text2, int start2, int end2,
+                               boolean checklines, long deadline) {
+        DiffList diffs = new DiffList(text1, start1, text2, start2);
 
         // Check for equality (speedup).
-        LinkedList<Diff> diffs;
-        if (text1.equals(text2)) {
-            diffs = new LinkedList<Diff>();
-            if (text1.length() != 0) {
-                diffs.add(new Diff(Operation.EQUAL, text1));
+        if (end1 - start1 == end2 - start2
+                && text1.regionMatches(start1, text2, start2, end1 - start1)) {
+            if (end1 != start1) {
+                diffs.add(OP_EQUAL, end1 - start1);
             }
             return diffs;
         }
 
         // Trim off common prefix (speedup).
-        int commonlength = diff_commonPrefix(text1, text2);
-        String commonprefix = text1.substring(0, commonlength);
-        text1 = text1.substring(commonlength);
-        text2 = text2.substring(commonlength);
-
+        int commonprefix = diff_commonPrefix(text1, start1, end1,
+                text2, start2, end2);
         // Trim off common suffix (speedup).
-        commonlength = diff_commonSuffix(text1, text2);
-        String commonsuffix = text1.substring(text1.length() - commonlength);
-        text1 = text1.substring(0, text1.length() - commonlength);
-        text2 = text2.substring(0, text2.length() - commonlength);
+        int commonsuffix = diff_commonSuffix(text1, start1 + commonprefix, end1,
+                text2, start2 + commonprefix, end2);
 
-        // Compute the diff on the middle block.
-        diffs = diff_compute(text1, text2, checklines, deadline);
-
-        // Restore the prefix and suffix.
-        if (commonprefix.length() != 0) {
-            diffs.addFirst(new Diff(Operation.EQUAL, commonprefix));
+        // Compute the diff on the middle block, between the prefix and suffix.
+        if (commonprefix != 0) {
+            diffs.add(OP_EQUAL, commonprefix);
         }
-        if (commonsuffix.length() != 0) {
-            diffs.addLast(new Diff(Operation.EQUAL, commonsuffix));
+        diff_compute(text1, start1 + commonprefix, end1 - commonsuffix,
+                text2, start2 + commonprefix, end2 - commonsuffix,
+                checklines, deadline, diffs);
+        if (commonsuffix != 0) {
+            diffs.add(OP_EQUAL, commonsuffix);
         }
 
         diff_cleanupMerge(diffs);
@@ -210,151 +551,284 @@ public class diff_match_patch {
     }
 
     /**
-     * Find the differences between two texts.  Assumes that the texts do not
-     * have any common prefix or suffix.
+     * Find the differences between two ranges of text.  Assumes that the
+     * ranges do not have any common prefix or suffix.
      *
-     * @param text1      Old string to be diffed.
-     * @param text2      New string to be diffed.
+     * @param text1      Old string.
+     * @param start1     Start of the range of text1 to be diffed.
+     * @param end1       End of the range of text1 to be diffed.
+     * @param text2      New string.
+     * @param start2     Start of the range of text2 to be diffed.
+     * @param end2       End of the range of text2 to be diffed.
      * @param checklines Speedup flag.  If false, then don't run a
      *                   line-level diff first to identify the changed areas.
      *                   If true, then run a faster slightly less optimal diff.
      * @param deadline   Time when the diff should be complete by.
-     * @return Linked List of Diff objects.
+     * @param diffs      DiffList to append the result to.
      */
-    private LinkedList<Diff> diff_compute(String text1, String text2,
-                                          boolean checklines, long deadline) {
-        LinkedList<Diff> diffs = new LinkedList<Diff>();
+    private void diff_compute(String text1, int start1, int end1,
+                              String text2, int start2, int end2,
+                              boolean checklines, long deadline, DiffList diffs) {
+        int text1_length = end1 - start1;
+        int text2_length = end2 - start2;
 
-        if (text1.length() == 0) {
+        if (text1_length == 0) {
             // Just add some text (speedup).
-            diffs.add(new Diff(Operation.INSERT, text2));
-            return diffs;
+            diffs.add(OP_INSERT, text2_length);
+            return;
         }
 
-        if (text2.length() == 0) {
+        if (text2_length == 0) {
             // Just delete some text (speedup).
-            diffs.add(new Diff(Operation.DELETE, text1));
-            return diffs;
+            diffs.add(OP_DELETE, text1_length);
+            return;
         }
 
-        String longtext = text1.length() > text2.length() ? text1 : text2;
-        String shorttext = text1.length() > text2.length() ? text2 : text1;
-        int i = longtext.indexOf(shorttext);
+        boolean longer1 = text1_length > text2_length;
+        int shortlength = longer1 ? text2_length : text1_length;
+        int i = longer1
+                ? indexOf(text1, start1, end1, text2, start2, end2)
+                : indexOf(text2, start2, end2, text1, start1, end1);
         if (i != -1) {
             // Shorter text is inside the longer text (speedup).
-            Operation op = (text1.length() > text2.length()) ?
-                    Operation.DELETE : Operation.INSERT;
-            diffs.add(new Diff(op, longtext.substring(0, i)));
-            diffs.add(new Diff(Operation.EQUAL, shorttext));
-            diffs.add(new Diff(op, longtext.substring(i + shorttext.length())));
-            return diffs;
+            byte op = longer1 ? OP_DELETE : OP_INSERT;
+            int longstart = longer1 ? start1 : start2;
+            int longend = longer1 ? end1 : end2;
+            diffs.add(op, i - longstart);
+            diffs.add(OP_EQUAL, shortlength);
+            diffs.add(op, longend - i - shortlength);
+            return;
         }
 
-        if (shorttext.length() == 1) {
+        if (shortlength == 1) {
             // Single character string.
             // After the previous speedup, the character can't be an equality.
-            diffs.add(new Diff(Operation.DELETE, text1));
-            diffs.add(new Diff(Operation.INSERT, text2));
-            return diffs;
+            diffs.add(OP_DELETE, text1_length);
+            diffs.add(OP_INSERT, text2_length);
+            return;
         }
 
         // Check to see if the problem can be split in two.
-        String[] hm = diff_halfMatch(text1, text2);
+        int[] hm = diff_halfMatch(text1, start1, end1, text2, start2, end2);
         if (hm != null) {
-            // A half-match was found, sort out the return data.
-            String text1_a = hm[0];
-            String text1_b = hm[1];
-            String text2_a = hm[2];
-            String text2_b = hm[3];
-            String mid_common = hm[4];
-            // Send both pairs off for separate processing.
-            LinkedList<Diff> diffs_a = diff_main(text1_a, text2_a,
-                    checklines, deadline);
-            LinkedList<Diff> diffs_b = diff_main(text1_b, text2_b,
-                    checklines, deadline);
-            // Merge the results.
-            diffs = diffs_a;
-            diffs.add(new Diff(Operation.EQUAL, mid_common));
-            diffs.addAll(diffs_b);
-            return diffs;
+            // A half-match was found, send both pairs off for separate processing.
+            diffs.addAll(diff_main(text1, start1, hm[0], text2, start2, hm[1],
+                    checklines, deadline));
+            diffs.add(OP_EQUAL, hm[2]);
+            diffs.addAll(diff_main(text1, hm[0] + hm[2], end1,
+                    text2, hm[1] + hm[2], end2, checklines, deadline));
+            return;
         }
 
-        if (checklines && text1.length() > 100 && text2.length() > 100) {
-            return diff_lineMode(text1, text2, deadline);
+        if (checklines && text1_length > 100 && text2_length > 100) {
+            diff_lineMode(text1, start1, end1, text2, start2, end2, deadline,
+                    false, diffs);
+            return;
         }
 
-        return diff_bisect(text1, text2, deadline);
+        diff_bisect(text1, start1, end1, text2, start2, end2, deadline, diffs);
     }
 
     /**
-     * Do a quick line-level diff on both strings, then rediff the parts for
+     * Do a quick line-level diff on both ranges, then rediff the parts for
      * greater accuracy.
      * This speedup can produce non-minimal diffs.
      *
-     * @param text1    Old string to be diffed.
-     * @param text2    New string to be diffed.
+     * @param text1    Old string.
+     * @param start1   Start of the range of text1 to be diffed.
+     * @param end1     End of the range of text1 to be diffed.
+     * @param text2    New string.
+     * @param start2   Start of the range of text2 to be diffed.
+     * @param end2     End of the range of text2 to be diffed.
      * @param deadline Time when the diff should be complete by.
-     * @return Linked List of Diff objects.
+     * @param refine   Whether hunks longer than Diff_HunkMaxLength are
+     *                 rediffed line by line instead of as a whole.
+     * @param result   DiffList to append the result to.
      */
-    private LinkedList<Diff> diff_lineMode(String text1, String text2,
-                                           long deadline) {
+    private void diff_lineMode(String text1, int start1, int end1,
+                               String text2, int start2, int end2,
+                               long deadline, boolean refine,
+                               DiffList result) {
         // Scan the text on a line-by-line basis first.
-        LinesToCharsResult b = diff_linesToChars(text1, text2);
-        text1 = b.chars1;
-        text2 = b.chars2;
-        List<String> linearray = b.lineArray;
+        ArrayList<String> lineArray = takeLineArray();
+        HashMap<String, Integer> lineHash = takeLineHash();
+        lineArray.add("");
+        String chars1 = diff_linesToCharsMunge(text1, start1, end1, lineArray,
+                lineHash, 40000);
+        String chars2 = diff_linesToCharsMunge(text2, start2, end2, lineArray,
+                lineHash, 65535);
+        giveLineHash(lineHash);
 
-        LinkedList<Diff> diffs = diff_main(text1, text2, false, deadline);
+        DiffList lineDiffs = diff_main(chars1, 0, chars1.length(),
+                chars2, 0, chars2.length(), false, deadline);
 
         // Convert the diff back to original text.
-        diff_charsToLines(diffs, linearray);
+        int[] lineLengths = new int[lineArray.size()];
+        for (int x = 0; x < lineLengths.length; x++) {
+            lineLengths[x] = lineArray.get(x).length();
+        }
+        giveLineArray(lineArray);
+        DiffList diffs = new DiffList(text1, start1, text2, start2,
+                lineDiffs.size + 1);
+        int pointer1 = 0;
+        int pointer2 = 0;
+        for (int x = 0; x < lineDiffs.size; x++) {
+            byte op = lineDiffs.ops[x];
+            String chars = op == OP_INSERT ? chars2 : chars1;
+            int pointer = op == OP_INSERT ? pointer2 : pointer1;
+            int length = 0;
+            for (int y = pointer; y < pointer + lineDiffs.lengths[x]; y++) {
+                length += lineLengths[chars.charAt(y)];
+            }
+            diffs.add(op, length);
+            if (op != OP_INSERT) {
+                pointer1 += lineDiffs.lengths[x];
+            }
+            if (op != OP_DELETE) {
+                pointer2 += lineDiffs.lengths[x];
+            }
+        }
         // Eliminate freak matches (e.g. blank lines)
         diff_cleanupSemantic(diffs);
 
         // Rediff any replacement blocks, this time character-by-character.
-        // Add a dummy entry at the end.
-        diffs.add(new Diff(Operation.EQUAL, ""));
         int count_delete = 0;
         int count_insert = 0;
-        String text_delete = "";
-        String text_insert = "";
-        ListIterator<Diff> pointer = diffs.listIterator();
-        Diff thisDiff = pointer.next();
-        while (thisDiff != null) {
-            switch (thisDiff.operation) {
-                case INSERT:
+        int length_delete = 0;
+        int length_insert = 0;
+        int pointer_1 = start1;
+        int pointer_2 = start2;
+        int blockStart = 0;
+        // The extra iteration at the end acts as a dummy equality.
+        for (int x = 0; x <= diffs.size; x++) {
+            byte op = x < diffs.size ? diffs.ops[x] : OP_EQUAL;
+            int length = x < diffs.size ? diffs.lengths[x] : 0;
+            switch (op) {
+                case OP_INSERT:
                     count_insert++;
-                    text_insert += thisDiff.text;
+                    length_insert += length;
+                    pointer_2 += length;
                     break;
-                case DELETE:
+                case OP_DELETE:
                     count_delete++;
-                    text_delete += thisDiff.text;
+                    length_delete += length;
+                    pointer_1 += length;
                     break;
-                case EQUAL:
+                default:
                     // Upon reaching an equality, check for prior redundancies.
                     if (count_delete >= 1 && count_insert >= 1) {
-                        // Delete the offending records and add the merged ones.
-                        pointer.previous();
-                        for (int j = 0; j < count_delete + count_insert; j++) {
-                            pointer.previous();
-                            pointer.remove();
+                        if (refine && length_delete + length_insert
+                                > Diff_HunkMaxLength) {
+                            diff_refineHunk(text1, pointer_1 - length_delete,
+                                    pointer_1, text2, pointer_2 - length_insert,
+                                    pointer_2, deadline, result);
+                        } else {
+                            result.addAll(diff_main(text1,
+                                    pointer_1 - length_delete, pointer_1, text2,
+                                    pointer_2 - length_insert, pointer_2, false,
+                                    deadline));
                         }
-                        for (Diff newDiff : diff_main(text_delete, text_insert, false,
-                                deadline)) {
-                            pointer.add(newDiff);
+                    } else {
+                        for (int y = blockStart; y < x; y++) {
+                            result.add(diffs.ops[y], diffs.lengths[y]);
                         }
                     }
+                    if (x < diffs.size) {
+                        result.add(OP_EQUAL, length);
+                    }
+                    pointer_1 += length;
+                    pointer_2 += length;
+                    blockStart = x + 1;
                     count_insert = 0;
                     count_delete = 0;
-                    text_delete = "";
-                    text_insert = "";
+                    length_delete = 0;
+                    length_insert = 0;
                     break;
             }
-            thisDiff = pointer.hasNext() ? pointer.next() : null;
         }
-        diffs.removeLast();  // Remove the dummy entry at the end.
+    }
 
-        return diffs;
+    /**
+     * Rediff a hunk that is too long to rediff as a whole.  If both sides
+     * have as many lines, each line is diffed against its counterpart
+     * (which is what e.g. reindenting a block needs), otherwise the hunk is
+     * kept as a deletion and an insertion.
+     *
+     * @param text1    Old string.
+     * @param start1   Start of the hunk in text1.
+     * @param end1     End of the hunk in text1.
+     * @param text2    New string.
+     * @param start2   Start of the hunk in text2.
+     * @param end2     End of the hunk in text2.
+     * @param deadline Time when the diff should be complete by.
+     * @param result   DiffList to append the result to.
+     */
+    private void diff_refineHunk(String text1, int start1, int end1,
+                                 String text2, int start2, int end2,
+                                 long deadline, DiffList result) {
+        if (lineCount(text1, start1, end1) != lineCount(text2, start2, end2)) {
+            result.add(OP_DELETE, end1 - start1);
+            result.add(OP_INSERT, end2 - start2);
+            return;
+        }
+        diff_linePairs(text1, start1, end1, text2, start2, end2, deadline,
+                result);
+    }
+
+    /**
+     * Diff each line of a range of text1 against the line at the same place
+     * in a range of text2 that has as many lines.  Lines too long for
+     * Diff_HunkMaxLength are kept as a deletion and an insertion.
+     *
+     * @param text1    Old string.
+     * @param start1   Start of the range in text1.
+     * @param end1     End of the range in text1.
+     * @param text2    New string.
+     * @param start2   Start of the range in text2.
+     * @param end2     End of the range in text2.
+     * @param deadline Time when the diff should be complete by.
+     * @param result   DiffList to append the result to.
+     */
+    private void diff_linePairs(String text1, int start1, int end1,
+                                String text2, int start2, int end2,
+                                long deadline, DiffList result) {
+        int pointer1 = start1;
+        int pointer2 = start2;
+        while (pointer1 < end1) {
+            int lineEnd1 = text1.indexOf('\n', pointer1);
+            lineEnd1 = lineEnd1 == -1 || lineEnd1 >= end1 ? end1 : lineEnd1 + 1;
+            int lineEnd2 = text2.indexOf('\n', pointer2);
+            lineEnd2 = lineEnd2 == -1 || lineEnd2 >= end2 ? end2 : lineEnd2 + 1;
+            if (lineEnd1 - pointer1 + lineEnd2 - pointer2 <= Diff_HunkMaxLength) {
+                result.addAll(diff_main(text1, pointer1, lineEnd1, text2,
+                        pointer2, lineEnd2, false, deadline));
+            } else {
+                result.add(OP_DELETE, lineEnd1 - pointer1);
+                result.add(OP_INSERT, lineEnd2 - pointer2);
+            }
+            pointer1 = lineEnd1;
+            pointer2 = lineEnd2;
+        }
+    }
+
+    /**
+     * Count the lines of a range of text.  The last line does not need to
+     * end with a newline.
+     *
+     * @param text  Text to count the lines of.
+     * @param start Start of the range.
+     * @param end   End of the range.
+     * @return Number of lines in the range.
+     */
+    private static int lineCount(String text, int start, int end) {
+        int count = 0;
+        int pointer = start;
+        while (pointer < end) {
+            int lineEnd = text.indexOf('\n', pointer);
+            pointer = lineEnd == -1 ? end : lineEnd + 1;
+            count++;
+        }
+        return count;
     }
 
     /**
@@ -369,14 +843,36 @@ public class diff_match_patch {
      */
     protected LinkedList<Diff> diff_bisect(String text1, String text2,
                                            long deadline) {
+        DiffList diffs = new DiffList(text1, 0, text2, 0);
+        diff_bisect(text1, 0, text1.length(), text2, 0, text2.length(),
+                deadline, diffs);
+        return diffs.toLinkedList();
+    }
+
+    /**
+     * Find the 'middle snake' of a diff of two ranges, split the problem in
+     * two and append the recursively constructed diff.
+     *
+     * @param text1    Old string.
+     * @param start1   Start of the range of text1 to be diffed.
+     * @param end1     End of the range of text1 to be diffed.
+     * @param text2    New string.
+     * @param start2   Start of the range of text2 to be diffed.
+     * @param end2     End of the range of text2 to be diffed.
+     * @param deadline Time at which to bail if not yet complete.
+     * @param diffs    DiffList to append the result to.
+     */
+    private void diff_bisect(String text1, int start1, int end1,
+                             String text2, int start2, int end2,
+                             long deadline, DiffList diffs) {
         // Cache the text lengths to prevent multiple calls.
-        int text1_length = text1.length();
-        int text2_length = text2.length();
+        int text1_length = end1 - start1;
+        int text2_length = end2 - start2;
         int max_d = (text1_length + text2_length + 1) / 2;
         int v_offset = max_d;
         int v_length = 2 * max_d;
-        int[] v1 = new int[v_length];
-        int[] v2 = new int[v_length];
+        int[] v1 = takeV(true, v_length);
+        int[] v2 = takeV(false, v_length);
         for (int x = 0; x < v_length; x++) {
             v1[x] = -1;
             v2[x] = -1;
@@ -394,10 +890,11 @@ public class diff_match_patch {
         int k2start = 0;
         int k2end = 0;
         for (int d = 0; d < max_d; d++) {
-            // Bail out if deadline is reached.
-            if (System.currentTimeMillis() > deadline) {
+            // Bail out if deadline is reached or the budget is spent.
+            if (budgetLeft < 0 || System.currentTimeMillis() > deadline) {
                 break;
             }
+            long steps = 0;
 
             // Walk the front path one step.
             for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
@@ -409,11 +906,13 @@ public class diff_match_patch {
                     x1 = v1[k1_offset - 1] + 1;
                 }
                 int y1 = x1 - k1;
+                steps -= x1;
                 while (x1 < text1_length && y1 < text2_length
-                        && text1.charAt(x1) == text2.charAt(y1)) {
+                        && text1.charAt(start1 + x1) == text2.charAt(start2 + y1)) {
                     x1++;
                     y1++;
                 }
+                steps += x1 + 1;
                 v1[k1_offset] = x1;
                 if (x1 > text1_length) {
                     // Ran off the right of the graph.
@@ -428,7 +927,11 @@ public class diff_match_patch {
                         int x2 = text1_length - v2[k2_offset];
                         if (x1 >= x2) {
                             // Overlap detected.
-                            return diff_bisectSplit(text1, text2, x1, y1, deadline);
+                            budgetLeft -= steps;
+                            giveV(v1, v2);
+                            diff_bisectSplit(text1, start1, end1, text2, start2,
+                                    end2, x1, y1, deadline, diffs);
+                            return;
                         }
                     }
                 }
@@ -444,12 +947,14 @@ public class diff_match_patch {
                     x2 = v2[k2_offset - 1] + 1;
                 }
                 int y2 = x2 - k2;
+                steps -= x2;
                 while (x2 < text1_length && y2 < text2_length
-                        && text1.charAt(text1_length - x2 - 1)
-                        == text2.charAt(text2_length - y2 - 1)) {
+                        && text1.charAt(end1 - x2 - 1)
+                        == text2.charAt(end2 - y2 - 1)) {
                     x2++;
                     y2++;
                 }
+                steps += x2 + 1;
                 v2[k2_offset] = x2;
                 if (x2 > text1_length) {
                     // Ran off the left of the graph.
@@ -466,44 +971,47 @@ public class diff_match_patch {
                         x2 = text1_length - x2;
                         if (x1 >= x2) {
                             // Overlap detected.
-                            return diff_bisectSplit(text1, text2, x1, y1, deadline);
+                            budgetLeft -= steps;
+                            giveV(v1, v2);
+                            diff_bisectSplit(text1, start1, end1, text2, start2,
+                                    end2, x1, y1, deadline, diffs);
+                            return;
                         }
                     }
                 }
             }
+            budgetLeft -= steps;
         }
+        giveV(v1, v2);
         // Diff took too long and hit the deadline or
         // number of diffs equals number of characters, no commonality at all.
-        LinkedList<Diff> diffs = new LinkedList<Diff>();
-        diffs.add(new Diff(Operation.DELETE, text1));
-        diffs.add(new Diff(Operation.INSERT, text2));
-        return diffs;
+        diffs.add(OP_DELETE, text1_length);
+        diffs.add(OP_INSERT, text2_length);
     }
 
     /**
      * Given the location of the 'middle snake', split the diff in two parts
      * and recurse.
      *
-     * @param text1    Old string to be diffed.
-     * @param text2    New string to be diffed.
-     * @param x        Index of split point in text1.
-     * @param y        Index of split point in text2.
+     * @param text1    Old string.
+     * @param start1   Start of the range of text1 to be diffed.
+     * @param end1     End of the range of text1 to be diffed.
+     * @param text2    New string.
+     * @param start2   Start of the range of text2 to be diffed.
+     * @param end2     End of the range of text2 to be diffed.
+     * @param x        Index of split point in the range of text1.
+     * @param y        Index of split point in the range of text2.
      * @param deadline Time at which to bail if not yet complete.
-     * @return LinkedList of Diff objects.
+     * @param diffs    DiffList to append the result to.
      */
-    private LinkedList<Diff> diff_bisectSplit(String text1, String text2,
-                                              int x, int y, long deadline) {
-        String text1a = text1.substring(0, x);
-        String text2a = text2.substring(0, y);
-        String text1b = text1.substring(x);
-        String text2b = text2.substring(y);
-
+    private void diff_bisectSplit(String text1, int start1, int end1,
+                                  String text2, int start2, int end2,
+                                  int x, int y, long deadline, DiffList diffs) {
         // Compute both diffs serially.
-        LinkedList<Diff> diffs = diff_main(text1a, text2a, false, deadline);
-        LinkedList<Diff> diffsb = diff_main(text1b, text2b, false, deadline);
-
-        diffs.addAll(diffsb);
-        return diffs;
+        diffs.addAll(diff_main(text1, start1, start1 + x, text2, start2,
+                start2 + y, false, deadline));
+        diffs.addAll(diff_main(text1, start1 + x, end1, text2, start2 + y,
+                end2, false, deadline));
     }
 
     /**
@@ -518,7 +1026,7 @@ public class diff_match_patch {
      */
     protected LinesToCharsResult diff_linesToChars(String text1, String text2) {
         List<String> lineArray = new ArrayList<String>();
-        Map<String, Integer> lineHash = new HashMap<String, Integer>();
+        HashMap<String, Integer> lineHash = takeLineHash();
         // e.g. linearray[4] == "Hello\n"
         // e.g. linehash.get("Hello\n") == 4
 
@@ -526,46 +1034,154 @@ public class diff_match_patch {
         // So we'll insert a junk entry to avoid generating a null character.
         lineArray.add("");
 
-        String chars1 = diff_linesToCharsMunge(text1, lineArray, lineHash);
-        String chars2 = diff_linesToCharsMunge(text2, lineArray, lineHash);
+        // Allocate 2/3rds of the space for text1, the rest for text2.
+        String chars1 = diff_linesToCharsMunge(text1, 0, text1.length(),
+                lineArray, lineHash, 40000);
+        String chars2 = diff_linesToCharsMunge(text2, 0, text2.length(),
+                lineArray, lineHash, 65535);
+        giveLineHash(lineHash);
         return new LinesToCharsResult(chars1, chars2, lineArray);
     }
 
     /**
-     * Split a text into a list of strings.  Reduce the texts to a string of
-     * hashes where each Unicode character represents one line.
+     * Split a range of text into a list of strings.  Reduce the text to a
+     * string of hashes where each Unicode character represents one line.
      *
      * @param text      String to encode.
+     * @param start     Start of the range to encode.
+     * @param end       End of the range to encode.
      * @param lineArray List of unique strings.
      * @param lineHash  Map of strings to indices.
+     * @param maxLines  Maximum length of lineArray.
      * @return Encoded string.
      */
-    private String diff_linesToCharsMunge(String text, List<String> lineArray,
-                                          Map<String, Integer> lineHash) {
-        int lineStart = 0;
-        int lineEnd = -1;
+    private String diff_linesToCharsMunge(String text, int start, int end,
+                                          List<String> lineArray,
+                                          Map<String, Integer> lineHash,
+                                          int maxLines) {
+        int lineStart = start;
+        int lineEnd = start - 1;
         String line;
-        StringBuilder chars = new StringBuilder();
+        StringBuilder chars = takeChars();
         // Walk the text, pulling out a substring for each line.
         // text.split('\n') would would temporarily double our memory footprint.
         // Modifying text would create many large strings to garbage collect.
-        while (lineEnd < text.length() - 1) {
+        while (lineEnd < end - 1) {
             lineEnd = text.indexOf('\n', lineStart);
-            if (lineEnd == -1) {
-                lineEnd = text.length() - 1;
+            if (lineEnd == -1 || lineEnd >= end) {
+                lineEnd = end - 1;
             }
             line = text.substring(lineStart, lineEnd + 1);
-            lineStart = lineEnd + 1;
 
             if (lineHash.containsKey(line)) {
                 chars.append(String.valueOf((char) (int) lineHash.get(line)));
             } else {
+                if (lineArray.size() == maxLines) {
+                    // Bail out at 65535 because
+                    // String.valueOf((char) 65536).equals(String.valueOf(((char) 0)))
+                    line = text.substring(lineStart, end);
+                    lineEnd = end;
+                }
                 lineArray.add(line);
                 lineHash.put(line, lineArray.size() - 1);
                 chars.append(String.valueOf((char) (lineArray.size() - 1)));
             }
+            lineStart = lineEnd + 1;
+        }
+        String result = chars.toString();
+        giveChars(chars);
+        return result;
+    }
+
+    /**
+     * Drop the scratch buffers kept between diffs.  They are created again
+     * when needed, so this is only useful to free memory early.
+     */
+    public void releaseScratch() {
+        scratchV1 = null;
+        scratchV2 = null;
+        scratchLineArray = null;
+        scratchLineHash = null;
+        scratchChars = null;
+    }
+
+    /**
+     * Take a V array of diff_bisect() from the scratch buffers, or allocate
+     * a new one.  Only the first length elements are meant to be used.
+     *
+     * @param first  Whether this is the front (true) or reverse path array.
+     * @param length Required length of the array.
+     * @return Array of at least the given length.
+     */
+    private int[] takeV(boolean first, int length) {
+        int[] v = first ? scratchV1 : scratchV2;
+        if (v == null || v.length < length) {
+            return new int[length];
+        }
+        if (first) {
+            scratchV1 = null;
+        } else {
+            scratchV2 = null;
+        }
+        return v;
+    }
+
+    /**
+     * Return the V arrays of diff_bisect() to the scratch buffers if they are
+     * not too big and larger than the ones kept.
+     *
+     * @param v1 Front path array.
+     * @param v2 Reverse path array.
+     */
+    private void giveV(int[] v1, int[] v2) {
+        if (v1.length <= Scratch_MaxSize
+                && (scratchV1 == null || scratchV1.length < v1.length)) {
+            scratchV1 = v1;
+        }
+        if (v2.length <= Scratch_MaxSize
+                && (scratchV2 == null || scratchV2.length < v2.length)) {
+            scratchV2 = v2;
+        }
+    }
+
+    private ArrayList<String> takeLineArray() {
+        ArrayList<String> lineArray = scratchLineArray;
+        scratchLineArray = null;
+        return lineArray == null ? new ArrayList<String>() : lineArray;
+    }
+
+    private void giveLineArray(ArrayList<String> lineArray) {
+        // Never keep the lines, only the capacity.
+        if (lineArray.size() <= Scratch_MaxSize) {
+            lineArray.clear();
+            scratchLineArray = lineArray;
+        }
+    }
+
+    private HashMap<String, Integer> takeLineHash() {
+        HashMap<String, Integer> lineHash = scratchLineHash;
+        scratchLineHash = null;
+        return lineHash == null ? new HashMap<String, Integer>() : lineHash;
+    }
+
+    private void giveLineHash(HashMap<String, Integer> lineHash) {
+        if (lineHash.size() <= Scratch_MaxSize) {
+            lineHash.clear();
+            scratchLineHash = lineHash;
+        }
+    }
+
+    private StringBuilder takeChars() {
+        StringBuilder chars = scratchChars;
+        scratchChars = null;
+        return chars == null ? new StringBuilder() : chars;
+    }
+
+    private void giveChars(StringBuilder chars) {
+        if (chars.capacity() <= Scratch_MaxSize) {
+            chars.setLength(0);
+            scratchChars = chars;
         }
-        return chars.toString();
     }
 
     /**
@@ -595,10 +1211,50 @@ public class diff_match_patch {
      * @return The number of characters common to the start of each string.
      */
     public int diff_commonPrefix(String text1, String text2) {
+        return diff_commonPrefix(text1, 0, text1.length(), text2, 0, text2.length());
+    }
+
+    /**
+     * Determine the common prefix of two ranges of text.
+     *
+     * @param text1  First string.
+     * @param start1 Start of the range of text1.
+     * @param end1   End of the range of text1.
+     * @param text2  Second string.
+     * @param start2 Start of the range of text2.
+     * @param end2   End of the range of text2.
+     * @return The number of characters common to the start of each range.
+     */
+    private static int diff_commonPrefix(String text1, int start1, int end1,
+                                         String text2, int start2, int end2) {
         // Performance analysis: http://neil.fraser.name/news/2007/10/09/
-        int n = Math.min(text1.length(), text2.length());
-        for (int i = 0; i < n; i++) {
-            if (text1.charAt(i) != text2.charAt(i)) {
+        int n = Math.min(end1 - start1, end2 - start2);
+        int i = 0;
+        int scalar = Math.min(n, SCALAR_COMPARE_LENGTH);
+        for (; i < scalar; i++) {
+            if (text1.charAt(start1 + i) != text2.charAt(start2 + i)) {
+                return i;
+            }
+        }
+        if (n - i >= BLOCK_COMPARE_LENGTH) {
+            char[] block1 = new char[BLOCK_COMPARE_LENGTH];
+            char[] block2 = new char[BLOCK_COMPARE_LENGTH];
+            for (; n - i >= BLOCK_COMPARE_LENGTH; i += BLOCK_COMPARE_LENGTH) {
+                text1.getChars(start1 + i, start1 + i + BLOCK_COMPARE_LENGTH,
+                        block1, 0);
+                text2.getChars(start2 + i, start2 + i + BLOCK_COMPARE_LENGTH,
+                        block2, 0);
+                if (!Arrays.equals(block1, block2)) {
+                    int j = 0;
+                    while (block1[j] == block2[j]) {
+                        j++;
+                    }
+                    return i + j;
+                }
+            }
+        }
+        for (; i < n; i++) {
+            if (text1.charAt(start1 + i) != text2.charAt(start2 + i)) {
                 return i;
             }
         }
@@ -613,18 +1269,66 @@ public class diff_match_patch {
      * @return The number of characters common to the end of each string.
      */
     public int diff_commonSuffix(String text1, String text2) {
+        return diff_commonSuffix(text1, 0, text1.length(), text2, 0, text2.length());
+    }
+
+    /**
+     * Determine the common suffix of two ranges of text.
+     *
+     * @param text1  First string.
+     * @param start1 Start of the range of text1.
+     * @param end1   End of the range of text1.
+     * @param text2  Second string.
+     * @param start2 Start of the range of text2.
+     * @param end2   End of the range of text2.
+     * @return The number of characters common to the end of each range.
+     */
+    private static int diff_commonSuffix(String text1, int start1, int end1,
+                                         String text2, int start2, int end2) {
         // Performance analysis: http://neil.fraser.name/news/2007/10/09/
-        int text1_length = text1.length();
-        int text2_length = text2.length();
-        int n = Math.min(text1_length, text2_length);
-        for (int i = 1; i <= n; i++) {
-            if (text1.charAt(text1_length - i) != text2.charAt(text2_length - i)) {
-                return i - 1;
+        int n = Math.min(end1 - start1, end2 - start2);
+        int i = 0;
+        int scalar = Math.min(n, SCALAR_COMPARE_LENGTH);
+        for (; i < scalar; i++) {
+            if (text1.charAt(end1 - i - 1) != text2.charAt(end2 - i - 1)) {
+                return i;
+            }
+        }
+        if (n - i >= BLOCK_COMPARE_LENGTH) {
+            char[] block1 = new char[BLOCK_COMPARE_LENGTH];
+            char[] block2 = new char[BLOCK_COMPARE_LENGTH];
+            for (; n - i >= BLOCK_COMPARE_LENGTH; i += BLOCK_COMPARE_LENGTH) {
+                text1.getChars(end1 - i - BLOCK_COMPARE_LENGTH, end1 - i,
+                        block1, 0);
+                text2.getChars(end2 - i - BLOCK_COMPARE_LENGTH, end2 - i,
+                        block2, 0);
+                if (!Arrays.equals(block1, block2)) {
+                    int j = BLOCK_COMPARE_LENGTH - 1;
+                    while (block1[j] == block2[j]) {
+                        j--;
+                    }
+                    return i + BLOCK_COMPARE_LENGTH - 1 - j;
+                }
+            }
+        }
+        for (; i < n; i++) {
+            if (text1.charAt(end1 - i - 1) != text2.charAt(end2 - i - 1)) {
+                return i;
             }
         }
         return n;
     }
 
+    /**
+     * Whether two ranges of the same length are equal, compared like
+     * diff_commonPrefix does.
+     */
+    private static boolean regionEquals(String text1, int start1,
+                                        String text2, int start2, int length) {
+        return diff_commonPrefix(text1, start1, start1 + length,
+                text2, start2, start2 + length) == length;
+    }
+
     /**
      * Determine if the suffix of one string is the prefix of another.
      *
@@ -634,22 +1338,36 @@ public class diff_match_patch {
      * string and the start of the second string.
      */
     protected int diff_commonOverlap(String text1, String text2) {
+        return diff_commonOverlap(text1, 0, text1.length(), text2, 0, text2.length());
+    }
+
+    /**
+     * Determine if the suffix of one range of text is the prefix of another.
+     *
+     * @param text1  First string.
+     * @param start1 Start of the range of text1.
+     * @param end1   End of the range of text1.
+     * @param text2  Second string.
+     * @param start2 Start of the range of text2.
+     * @param end2   End of the range of text2.
+     * @return The number of characters common to the end of the first
+     * range and the start of the second range.
+     */
+    private static int diff_commonOverlap(String text1, int start1, int end1,
+                                          String text2, int start2, int end2) {
         // Cache the text lengths to prevent multiple calls.
-        int text1_length = text1.length();
-        int text2_length = text2.length();
+        int text1_length = end1 - start1;
+        int text2_length = end2 - start2;
         // Eliminate the null case.
         if (text1_length == 0 || text2_length == 0) {
             return 0;
         }
-        // Truncate the longer string.
-        if (text1_length > text2_length) {
-            text1 = text1.substring(text1_length - text2_length);
-        } else if (text1_length < text2_length) {
-            text2 = text2.substring(0, text1_length);
-        }
+        // Truncate the longer range.
         int text_length = Math.min(text1_length, text2_length);
+        start1 = end1 - text_length;
+        end2 = start2 + text_length;
         // Quick check for the worst case.
-        if (text1.equals(text2)) {
+        if (regionEquals(text1, start1, text2, start2, text_length)) {
             return text_length;
         }
 
@@ -659,20 +1377,54 @@ public class diff_match_patch {
         int best = 0;
         int length = 1;
         while (true) {
-            String pattern = text1.substring(text_length - length);
-            int found = text2.indexOf(pattern);
+            int found = indexOf(text2, start2, end2, text1, end1 - length, end1);
             if (found == -1) {
                 return best;
             }
+            found -= start2;
             length += found;
-            if (found == 0 || text1.substring(text_length - length).equals(
-                    text2.substring(0, length))) {
+            if (found == 0 || regionEquals(text1, end1 - length, text2, start2,
+                    length)) {
                 best = length;
                 length++;
             }
         }
     }
 
+    /**
+     * Find the first occurrence of a range of one string in a range of
+     * another, without creating substrings.
+     *
+     * @param text         String to search in.
+     * @param start        Start of the range to search in.
+     * @param end          End of the range to search in.
+     * @param pattern      String to search for.
+     * @param patternStart Start of the range to search for.
+     * @param patternEnd   End of the range to search for.
+     * @return Index of the match in text, or -1 if not found.
+     */
+    private static int indexOf(String text, int start, int end,
+                               String pattern, int patternStart, int patternEnd) {
+        int length = patternEnd - patternStart;
+        if (length == 0) {
+            return start <= end ? start : -1;
+        }
+        char first = pattern.charAt(patternStart);
+        int max = end - length;
+        for (int i = start; i <= max; i++) {
+            if (text.charAt(i) != first) {
+                while (++i <= max && text.charAt(i) != first) {
+                    // Intentionally empty loop.
+                }
+            }
+            if (i <= max && text.regionMatches(i + 1, pattern, patternStart + 1,
+                    length - 1)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Do the two texts share a substring which is at least half the length of
      * the longer text?
@@ -685,23 +1437,55 @@ public class diff_match_patch {
      * common middle.  Or null if there was no match.
      */
     protected String[] diff_halfMatch(String text1, String text2) {
-        if (Diff_Timeout <= 0) {
+        int[] hm = diff_halfMatch(text1, 0, text1.length(), text2, 0, text2.length());
+        if (hm == null) {
+            return null;
+        }
+        return new String[]{text1.substring(0, hm[0]),
+                text1.substring(hm[0] + hm[2]), text2.substring(0, hm[1]),
+                text2.substring(hm[1] + hm[2]), text1.substring(hm[0], hm[0] + hm[2])};
+    }
+
+    /**
+     * Do the two ranges share a substring which is at least half the length
+     * of the longer range?
+     * This speedup can produce non-minimal diffs.
+     *
+     * @param text1  First string.
+     * @param start1 Start of the range of text1.
+     * @param end1   End of the range of text1.
+     * @param text2  Second string.
+     * @param start2 Start of the range of text2.
+     * @param end2   End of the range of text2.
+     * @return Three element int array, containing the start of the common
+     * middle in text1, its start in text2 and its length.  Or null if there
+     * was no match.
+     */
+    private int[] diff_halfMatch(String text1, int start1, int end1,
+                                 String text2, int start2, int end2) {
+        if (Diff_Timeout <= 0 && Diff_Budget <= 0) {
             // Don't risk returning a non-optimal diff if we have unlimited time.
             return null;
         }
-        String longtext = text1.length() > text2.length() ? text1 : text2;
-        String shorttext = text1.length() > text2.length() ? text2 : text1;
-        if (longtext.length() < 4 || shorttext.length() * 2 < longtext.length()) {
+        boolean longer1 = end1 - start1 > end2 - start2;
+        String longtext = longer1 ? text1 : text2;
+        int longstart = longer1 ? start1 : start2;
+        int longend = longer1 ? end1 : end2;
+        String shorttext = longer1 ? text2 : text1;
+        int shortstart = longer1 ? start2 : start1;
+        int shortend = longer1 ? end2 : end1;
+        int longlength = longend - longstart;
+        if (longlength < 4 || (shortend - shortstart) * 2 < longlength) {
             return null;  // Pointless.
         }
 
         // First check if the second quarter is the seed for a half-match.
-        String[] hm1 = diff_halfMatchI(longtext, shorttext,
-                (longtext.length() + 3) / 4);
+        int[] hm1 = diff_halfMatchI(longtext, longstart, longend,
+                shorttext, shortstart, shortend, longstart + (longlength + 3) / 4);
         // Check again based on the third quarter.
-        String[] hm2 = diff_halfMatchI(longtext, shorttext,
-                (longtext.length() + 1) / 2);
-        String[] hm;
+        int[] hm2 = diff_halfMatchI(longtext, longstart, longend,
+                shorttext, shortstart, shortend, longstart + (longlength + 1) / 2);
+        int[] hm;
         if (hm1 == null && hm2 == null) {
             return null;
         } else if (hm2 == null) {
@@ -710,15 +1494,14 @@ public class diff_match_patch {
             hm = hm2;
         } else {
             // Both matched.  Select the longest.
-            hm = hm1[4].length() > hm2[4].length() ? hm1 : hm2;
+            hm = hm1[2] > hm2[2] ? hm1 : hm2;
         }
 
         // A half-match was found, sort out the return data.
-        if (text1.length() > text2.length()) {
+        if (longer1) {
             return hm;
-            //return new String[]{hm[0], hm[1], hm[2], hm[3], hm[4]};
         } else {
-            return new String[]{hm[2], hm[3], hm[0], hm[1], hm[4]};
+            return new int[]{hm[1], hm[0], hm[2]};
         }
     }
 
@@ -726,37 +1509,39 @@ public class diff_match_patch {
      * Does a substring of shorttext exist within longtext such that the
      * substring is at least half the length of longtext?
      *
-     * @param longtext  Longer string.
-     * @param shorttext Shorter string.
-     * @param i         Start index of quarter length substring within longtext.
-     * @return Five element String array, containing the prefix of longtext, the
-     * suffix of longtext, the prefix of shorttext, the suffix of shorttext
-     * and the common middle.  Or null if there was no match.
+     * @param longtext   Longer string.
+     * @param longstart  Start of the range of longtext.
+     * @param longend    End of the range of longtext.
+     * @param shorttext  Shorter string.
+     * @param shortstart Start of the range of shorttext.
+     * @param shortend   End of the range of shorttext.
+     * @param i          Start index of quarter length substring within longtext.
+     * @return Three element int array, containing the start of the common
+     * middle in longtext, its start in shorttext and its length.  Or null if
+     * there was no match.
      */
-    private String[] diff_halfMatchI(String longtext, String shorttext, int i) {
+    private static int[] diff_halfMatchI(String longtext, int longstart, int longend,
+                                         String shorttext, int shortstart, int shortend,
+                                         int i) {
         // Start with a 1/4 length substring at position i as a seed.
-        String seed = longtext.substring(i, i + longtext.length() / 4);
-        int j = -1;
-        String best_common = "";
-        String best_longtext_a = "", best_longtext_b = "";
-        String best_shorttext_a = "", best_shorttext_b = "";
-        while ((j = shorttext.indexOf(seed, j + 1)) != -1) {
-            int prefixLength = diff_commonPrefix(longtext.substring(i),
-                    shorttext.substring(j));
-            int suffixLength = diff_commonSuffix(longtext.substring(0, i),
-                    shorttext.substring(0, j));
-            if (best_common.length() < suffixLength + prefixLength) {
-                best_common = shorttext.substring(j - suffixLength, j)
-                        + shorttext.substring(j, j + prefixLength);
-                best_longtext_a = longtext.substring(0, i - suffixLength);
-                best_longtext_b = longtext.substring(i + prefixLength);
-                best_shorttext_a = shorttext.substring(0, j - suffixLength);
-                best_shorttext_b = shorttext.substring(j + prefixLength);
-            }
-        }
-        if (best_common.length() * 2 >= longtext.length()) {
-            return new String[]{best_longtext_a, best_longtext_b,
-                    best_shorttext_a, best_shorttext_b, best_common};
+        int seedend = i + (longend - longstart) / 4;
+        int j = shortstart - 1;
+        int best_common = 0;
+        int best_long = 0;
+        int best_short = 0;
+        while ((j = indexOf(shorttext, j + 1, shortend, longtext, i, seedend)) != -1) {
+            int prefixLength = diff_commonPrefix(longtext, i, longend,
+                    shorttext, j, shortend);
+            int suffixLength = diff_commonSuffix(longtext, longstart, i,
+                    shorttext, shortstart, j);
+            if (best_common < suffixLength + prefixLength) {
+                best_common = suffixLength + prefixLength;
+                best_long = i - suffixLength;
+                best_short = j - suffixLength;
+            }
+        }
+        if (best_common * 2 >= longend - longstart) {
+            return new int[]{best_long, best_short, best_common};
         } else {
             return null;
         }
@@ -768,81 +1553,86 @@ public class diff_match_patch {
      * @param diffs LinkedList of Diff objects.
      */
     public void diff_cleanupSemantic(LinkedList<Diff> diffs) {
-        if (diffs.isEmpty()) {
+        DiffList list = DiffList.fromDiffs(diffs);
+        diff_cleanupSemantic(list);
+        list.copyTo(diffs);
+    }
+
+    /**
+     * Reduce the number of edits by eliminating semantically trivial equalities.
+     *
+     * @param diffs DiffList to clean up.
+     */
+    public void diff_cleanupSemantic(DiffList diffs) {
+        if (diffs.size == 0) {
             return;
         }
         boolean changes = false;
-        Stack<Diff> equalities = new Stack<Diff>();  // Stack of qualities.
-        String lastequality = null; // Always equal to equalities.lastElement().text
-        ListIterator<Diff> pointer = diffs.listIterator();
+        IntStack equalities = new IntStack();  // Stack of indices of equalities.
+        int lastequality = -1; // Always the length of the top equality, -1 if none.
         // Number of characters that changed prior to the equality.
         int length_insertions1 = 0;
         int length_deletions1 = 0;
         // Number of characters that changed after the equality.
         int length_insertions2 = 0;
         int length_deletions2 = 0;
-        Diff thisDiff = pointer.next();
-        while (thisDiff != null) {
-            if (thisDiff.operation == Operation.EQUAL) {
+        // Equalities turned into a deletion and an insertion are marked
+        // OP_SPLIT, and visited as the deletion (half 0) then the insertion.
+        int pointer = 0;
+        int half = 0;
+        while (pointer < diffs.size) {
+            byte op = diffs.ops[pointer];
+            if (op == OP_SPLIT) {
+                op = half == 0 ? OP_DELETE : OP_INSERT;
+            }
+            if (op == OP_EQUAL) {
                 // Equality found.
-                equalities.push(thisDiff);
+                equalities.push(pointer);
                 length_insertions1 = length_insertions2;
                 length_deletions1 = length_deletions2;
                 length_insertions2 = 0;
                 length_deletions2 = 0;
-                lastequality = thisDiff.text;
+                lastequality = diffs.lengths[pointer];
             } else {
                 // An insertion or deletion.
-                if (thisDiff.operation == Operation.INSERT) {
-                    length_insertions2 += thisDiff.text.length();
+                if (op == OP_INSERT) {
+                    length_insertions2 += diffs.lengths[pointer];
                 } else {
-                    length_deletions2 += thisDiff.text.length();
+                    length_deletions2 += diffs.lengths[pointer];
                 }
                 // Eliminate an equality that is smaller or equal to the edits on both
                 // sides of it.
-                if (lastequality != null && (lastequality.length()
+                if (lastequality != -1 && (lastequality
                         <= Math.max(length_insertions1, length_deletions1))
-                        && (lastequality.length()
+                        && (lastequality
                         <= Math.max(length_insertions2, length_deletions2))) {
-                    //System.out.println("Splitting: '" + lastequality + "'");
-                    // Walk back to offending equality.
-                    while (thisDiff != equalities.lastElement()) {
-                        thisDiff = pointer.previous();
-                    }
-                    pointer.next();
-
-                    // Replace equality with a delete.
-                    pointer.set(new Diff(Operation.DELETE, lastequality));
-                    // Insert a corresponding an insert.
-                    pointer.add(new Diff(Operation.INSERT, lastequality));
+                    // Replace the equality with a delete and an insert.
+                    diffs.ops[equalities.top()] = OP_SPLIT;
 
                     equalities.pop();  // Throw away the equality we just deleted.
-                    if (!equalities.empty()) {
+                    if (!equalities.isEmpty()) {
                         // Throw away the previous equality (it needs to be reevaluated).
                         equalities.pop();
                     }
-                    if (equalities.empty()) {
-                        // There are no previous equalities, walk back to the start.
-                        while (pointer.hasPrevious()) {
-                            pointer.previous();
-                        }
-                    } else {
-                        // There is a safe equality we can fall back to.
-                        thisDiff = equalities.lastElement();
-                        while (thisDiff != pointer.previous()) {
-                            // Intentionally empty loop.
-                        }
-                    }
+                    // Walk back to the previous equality, or to the start.
+                    pointer = equalities.isEmpty() ? 0 : equalities.top();
+                    half = 0;
 
                     length_insertions1 = 0;  // Reset the counters.
                     length_insertions2 = 0;
                     length_deletions1 = 0;
                     length_deletions2 = 0;
-                    lastequality = null;
+                    lastequality = -1;
                     changes = true;
+                    continue;
                 }
             }
-            thisDiff = pointer.hasNext() ? pointer.next() : null;
+            if (diffs.ops[pointer] == OP_SPLIT && half == 0) {
+                half = 1;
+            } else {
+                pointer++;
+                half = 0;
+            }
         }
 
         // Normalize the diff.
@@ -857,57 +1647,67 @@ public class diff_match_patch {
         // e.g: <del>xxxabc</del><ins>defxxx</ins>
         //   -> <ins>def</ins>xxx<del>abc</del>
         // Only extract an overlap if it is as big as the edit ahead or behind it.
-        pointer = diffs.listIterator();
-        Diff prevDiff = null;
-        thisDiff = null;
-        if (pointer.hasNext()) {
-            prevDiff = pointer.next();
-            if (pointer.hasNext()) {
-                thisDiff = pointer.next();
-            }
-        }
-        while (thisDiff != null) {
-            if (prevDiff.operation == Operation.DELETE &&
-                    thisDiff.operation == Operation.INSERT) {
-                String deletion = prevDiff.text;
-                String insertion = thisDiff.text;
-                int overlap_length1 = this.diff_commonOverlap(deletion, insertion);
-                int overlap_length2 = this.diff_commonOverlap(insertion, deletion);
-                if (overlap_length1 >= overlap_length2) {
-                    if (overlap_length1 >= deletion.length() / 2.0 ||
-                            overlap_length1 >= insertion.length() / 2.0) {
-                        // Overlap found. Insert an equality and trim the surrounding edits.
-                        pointer.previous();
-                        pointer.add(new Diff(Operation.EQUAL,
-                                insertion.substring(0, overlap_length1)));
-                        prevDiff.text =
-                                deletion.substring(0, deletion.length() - overlap_length1);
-                        thisDiff.text = insertion.substring(overlap_length1);
-                        // pointer.add inserts the element before the cursor, so there is
-                        // no need to step past the new element.
-                    }
+        String text1 = diffs.text1;
+        String text2 = diffs.text2;
+        DiffList result = new DiffList(text1, diffs.start1, text2, diffs.start2,
+                diffs.size);
+        int pointer1 = diffs.start1;
+        int pointer2 = diffs.start2;
+        int x = 0;
+        while (x < diffs.size) {
+            byte op = diffs.ops[x];
+            int length = diffs.lengths[x];
+            if (op == OP_DELETE && x + 1 < diffs.size
+                    && diffs.ops[x + 1] == OP_INSERT) {
+                int deletion = length;
+                int insertion = diffs.lengths[x + 1];
+                int overlap_length1 = diff_commonOverlap(text1, pointer1,
+                        pointer1 + deletion, text2, pointer2, pointer2 + insertion);
+                int overlap_length2 = diff_commonOverlap(text2, pointer2,
+                        pointer2 + insertion, text1, pointer1, pointer1 + deletion);
+                if (overlap_length1 >= overlap_length2
+                        && (overlap_length1 >= deletion / 2.0 ||
+                        overlap_length1 >= insertion / 2.0)) {
+                    // Overlap found. Insert an equality and trim the surrounding edits.
+                    result.add(OP_DELETE, deletion - overlap_length1);
+                    result.add(OP_EQUAL, overlap_length1);
+                    // The trimmed insertion is looked at again as the next diff.
+                    diffs.lengths[x + 1] = insertion - overlap_length1;
+                    pointer1 += deletion;
+                    pointer2 += overlap_length1;
+                    x++;
+                } else if (overlap_length1 < overlap_length2
+                        && (overlap_length2 >= deletion / 2.0 ||
+                        overlap_length2 >= insertion / 2.0)) {
+                    // Reverse overlap found.
+                    // Insert an equality and swap and trim the surrounding edits.
+                    result.add(OP_INSERT, insertion - overlap_length2);
+                    result.add(OP_EQUAL, overlap_length2);
+                    // The trimmed deletion is looked at again as the next diff.
+                    diffs.ops[x + 1] = OP_DELETE;
+                    diffs.lengths[x + 1] = deletion - overlap_length2;
+                    pointer1 += overlap_length2;
+                    pointer2 += insertion;
+                    x++;
                 } else {
-                    if (overlap_length2 >= deletion.length() / 2.0 ||
-                            overlap_length2 >= insertion.length() / 2.0) {
-                        // Reverse overlap found.
-                        // Insert an equality and swap and trim the surrounding edits.
-                        pointer.previous();
-                        pointer.add(new Diff(Operation.EQUAL,
-                                deletion.substring(0, overlap_length2)));
-                        prevDiff.operation = Operation.INSERT;
-                        prevDiff.text =
-                                insertion.substring(0, insertion.length() - overlap_length2);
-                        thisDiff.operation = Operation.DELETE;
-                        thisDiff.text = deletion.substring(overlap_length2);
-                        // pointer.add inserts the element before the cursor, so there is
-                        // no need to step past the new element.
-                    }
+                    result.add(OP_DELETE, deletion);
+                    result.add(OP_INSERT, insertion);
+                    pointer1 += deletion;
+                    pointer2 += insertion;
+                    x += 2;
                 }
-                thisDiff = pointer.hasNext() ? pointer.next() : null;
+            } else {
+                result.add(op, length);
+                if (op != OP_INSERT) {
+                    pointer1 += length;
+                }
+                if (op != OP_DELETE) {
+                    pointer2 += length;
+                }
+                x++;
             }
-            prevDiff = thisDiff;
-            thisDiff = pointer.hasNext() ? pointer.next() : null;
         }
+        diffs.setTo(result);
     }
 
     /*
@@ -918,95 +1718,107 @@ public class diff_match_patch {
      * @param diffs LinkedList of Diff objects.
      */
     public void diff_cleanupSemanticLossless(LinkedList<Diff> diffs) {
-        String equality1, edit, equality2;
-        String commonString;
-        int commonOffset;
-        int score, bestScore;
-        String bestEquality1, bestEdit, bestEquality2;
-        // Create a new iterator at the start.
-        ListIterator<Diff> pointer = diffs.listIterator();
-        Diff prevDiff = pointer.hasNext() ? pointer.next() : null;
-        Diff thisDiff = pointer.hasNext() ? pointer.next() : null;
-        Diff nextDiff = pointer.hasNext() ? pointer.next() : null;
+        DiffList list = DiffList.fromDiffs(diffs);
+        diff_cleanupSemanticLossless(list);
+        list.copyTo(diffs);
+    }
+
+    /*
+     * Look for single edits surrounded on both sides by equalities
+     * which can be shifted sideways to align the edit to a word boundary.
+     * e.g: The c<ins>at c</ins>ame. -> The <ins>cat </ins>came.
+     *
+     * @param diffs DiffList to clean up.
+     */
+    public void diff_cleanupSemanticLossless(DiffList diffs) {
+        boolean removed = false;
+        // Start of the previous diff in text1 and text2.
+        int pointer1 = diffs.start1;
+        int pointer2 = diffs.start2;
+        int prevDiff = 0;
+        int thisDiff = 1;
+        int nextDiff = 2;
         // Intentionally ignore the first and last element (don't need checking).
-        while (nextDiff != null) {
-            if (prevDiff.operation == Operation.EQUAL &&
-                    nextDiff.operation == Operation.EQUAL) {
+        while (nextDiff < diffs.size) {
+            if (diffs.ops[prevDiff] == OP_EQUAL && diffs.ops[nextDiff] == OP_EQUAL) {
                 // This is a single edit surrounded by equalities.
-                equality1 = prevDiff.text;
-                edit = thisDiff.text;
-                equality2 = nextDiff.text;
+                // Both equalities are also in the text of the edit, around it.
+                boolean insert = diffs.ops[thisDiff] == OP_INSERT;
+                String text = insert ? diffs.text2 : diffs.text1;
+                int equality1 = insert ? pointer2 : pointer1;
+                int edit = equality1 + diffs.lengths[prevDiff];
+                int editLength = diffs.lengths[thisDiff];
+                int equality2 = edit + editLength + diffs.lengths[nextDiff];
 
                 // First, shift the edit as far left as possible.
-                commonOffset = diff_commonSuffix(equality1, edit);
-                if (commonOffset != 0) {
-                    commonString = edit.substring(edit.length() - commonOffset);
-                    equality1 = equality1.substring(0, equality1.length() - commonOffset);
-                    edit = commonString + edit.substring(0, edit.length() - commonOffset);
-                    equality2 = commonString + equality2;
-                }
+                edit -= diff_commonSuffix(text, equality1, edit,
+                        text, edit, edit + editLength);
 
                 // Second, step character by character right, looking for the best fit.
-                bestEquality1 = equality1;
-                bestEdit = edit;
-                bestEquality2 = equality2;
-                bestScore = diff_cleanupSemanticScore(equality1, edit)
-                        + diff_cleanupSemanticScore(edit, equality2);
-                while (edit.length() != 0 && equality2.length() != 0
-                        && edit.charAt(0) == equality2.charAt(0)) {
-                    equality1 += edit.charAt(0);
-                    edit = edit.substring(1) + equality2.charAt(0);
-                    equality2 = equality2.substring(1);
-                    score = diff_cleanupSemanticScore(equality1, edit)
-                            + diff_cleanupSemanticScore(edit, equality2);
+                int bestEdit = edit;
+                int bestScore = diff_cleanupSemanticScore(text, equality1, edit,
+                        edit + editLength)
+                        + diff_cleanupSemanticScore(text, edit, edit + editLength,
+                        equality2);
+                while (editLength != 0 && edit + editLength < equality2
+                        && text.charAt(edit) == text.charAt(edit + editLength)) {
+                    edit++;
+                    int score = diff_cleanupSemanticScore(text, equality1, edit,
+                            edit + editLength)
+                            + diff_cleanupSemanticScore(text, edit,
+                            edit + editLength, equality2);
                     // The >= encourages trailing rather than leading whitespace on edits.
                     if (score >= bestScore) {
                         bestScore = score;
-                        bestEquality1 = equality1;
                         bestEdit = edit;
-                        bestEquality2 = equality2;
                     }
                 }
 
-                if (!prevDiff.text.equals(bestEquality1)) {
+                if (bestEdit - equality1 != diffs.lengths[prevDiff]) {
                     // We have an improvement, save it back to the diff.
-                    if (bestEquality1.length() != 0) {
-                        prevDiff.text = bestEquality1;
-                    } else {
-                        pointer.previous(); // Walk past nextDiff.
-                        pointer.previous(); // Walk past thisDiff.
-                        pointer.previous(); // Walk past prevDiff.
-                        pointer.remove(); // Delete prevDiff.
-                        pointer.next(); // Walk past thisDiff.
-                        pointer.next(); // Walk past nextDiff.
+                    diffs.lengths[prevDiff] = bestEdit - equality1;
+                    diffs.lengths[nextDiff] = equality2 - bestEdit - editLength;
+                    if (diffs.lengths[prevDiff] == 0) {
+                        diffs.ops[prevDiff] = OP_DEAD;
+                        removed = true;
                     }
-                    thisDiff.text = bestEdit;
-                    if (bestEquality2.length() != 0) {
-                        nextDiff.text = bestEquality2;
-                    } else {
-                        pointer.remove(); // Delete nextDiff.
-                        nextDiff = thisDiff;
-                        thisDiff = prevDiff;
+                    if (diffs.lengths[nextDiff] == 0) {
+                        diffs.ops[nextDiff] = OP_DEAD;
+                        removed = true;
+                        // Keep prevDiff and thisDiff, look at the diff after nextDiff.
+                        nextDiff++;
+                        continue;
                     }
                 }
             }
+            if (diffs.ops[prevDiff] != OP_INSERT) {
+                pointer1 += diffs.lengths[prevDiff];
+            }
+            if (diffs.ops[prevDiff] != OP_DELETE) {
+                pointer2 += diffs.lengths[prevDiff];
+            }
             prevDiff = thisDiff;
             thisDiff = nextDiff;
-            nextDiff = pointer.hasNext() ? pointer.next() : null;
+            nextDiff++;
+        }
+        if (removed) {
+            diffs.compact();
         }
     }
 
     /**
-     * Given two strings, compute a score representing whether the internal
-     * boundary falls on logical boundaries.
+     * Given two adjacent ranges of a string, compute a score representing
+     * whether the internal boundary falls on logical boundaries.
      * Scores range from 6 (best) to 0 (worst).
      *
-     * @param one First string.
-     * @param two Second string.
+     * @param text  The string.
+     * @param one   Start of the first range.
+     * @param two   End of the first range and start of the second one.
+     * @param end   End of the second range.
      * @return The score.
      */
-    private int diff_cleanupSemanticScore(String one, String two) {
-        if (one.length() == 0 || two.length() == 0) {
+    private int diff_cleanupSemanticScore(String text, int one, int two, int end) {
+        if (one == two || two == end) {
             // Edges are the best.
             return 6;
         }
@@ -1016,8 +1828,8 @@ public class diff_match_patch {
         // 'whitespace'.  Since this function's purpose is largely cosmetic,
         // the choice has been made to use each language's native features
         // rather than force total conformity.
-        char char1 = one.charAt(one.length() - 1);
-        char char2 = two.charAt(0);
+        char char1 = text.charAt(two - 1);
+        char char2 = text.charAt(two);
         boolean nonAlphaNumeric1 = !Character.isLetterOrDigit(char1);
         boolean nonAlphaNumeric2 = !Character.isLetterOrDigit(char2);
         boolean whitespace1 = nonAlphaNumeric1 && Character.isWhitespace(char1);
@@ -1026,8 +1838,11 @@ public class diff_match_patch {
                 && Character.getType(char1) == Character.CONTROL;
         boolean lineBreak2 = whitespace2
                 && Character.getType(char2) == Character.CONTROL;
-        boolean blankLine1 = lineBreak1 && BLANKLINEEND.matcher(one).find();
-        boolean blankLine2 = lineBreak2 && BLANKLINESTART.matcher(two).find();
+        // The patterns can only match within the last 5 / first 4 characters.
+        boolean blankLine1 = lineBreak1 && BLANKLINEEND.matcher(
+                text.substring(Math.max(one, two - 5), two)).find();
+        boolean blankLine2 = lineBreak2 && BLANKLINESTART.matcher(
+                text.substring(two, Math.min(end, two + 4))).find();
 
         if (blankLine1 || blankLine2) {
             // Five points for blank lines.
@@ -1060,13 +1875,23 @@ public class diff_match_patch {
      * @param diffs LinkedList of Diff objects.
      */
     public void diff_cleanupEfficiency(LinkedList<Diff> diffs) {
-        if (diffs.isEmpty()) {
+        DiffList list = DiffList.fromDiffs(diffs);
+        diff_cleanupEfficiency(list);
+        list.copyTo(diffs);
+    }
+
+    /**
+     * Reduce the number of edits by eliminating operationally trivial equalities.
+     *
+     * @param diffs DiffList to clean up.
+     */
+    public void diff_cleanupEfficiency(DiffList diffs) {
+        if (diffs.size == 0) {
             return;
         }
         boolean changes = false;
-        Stack<Diff> equalities = new Stack<Diff>();  // Stack of equalities.
-        String lastequality = null; // Always equal to equalities.lastElement().text
-        ListIterator<Diff> pointer = diffs.listIterator();
+        IntStack equalities = new IntStack();  // Stack of indices of equalities.
+        int lastequality = -1; // Always the length of the top equality, -1 if none.
         // Is there an insertion operation before the last equality.
         boolean pre_ins = false;
         // Is there a deletion operation before the last equality.
@@ -1075,27 +1900,37 @@ public class diff_match_patch {
         boolean post_ins = false;
         // Is there a deletion operation after the last equality.
         boolean post_del = false;
-        Diff thisDiff = pointer.next();
-        Diff safeDiff = thisDiff;  // The last Diff that is known to be unsplitable.
-        while (thisDiff != null) {
-            if (thisDiff.operation == Operation.EQUAL) {
+        // Equalities turned into a deletion and an insertion are marked
+        // OP_SPLIT, and visited as the deletion (half 0) then the insertion.
+        int pointer = 0;
+        int half = 0;
+        // The last diff that is known to be unsplitable.
+        int safeDiff = 0;
+        int safeHalf = 0;
+        while (pointer < diffs.size) {
+            byte op = diffs.ops[pointer];
+            if (op == OP_SPLIT) {
+                op = half == 0 ? OP_DELETE : OP_INSERT;
+            }
+            if (op == OP_EQUAL) {
                 // Equality found.
-                if (thisDiff.text.length() < Diff_EditCost && (post_ins || post_del)) {
+                if (diffs.lengths[pointer] < Diff_EditCost && (post_ins || post_del)) {
                     // Candidate found.
-                    equalities.push(thisDiff);
+                    equalities.push(pointer);
                     pre_ins = post_ins;
                     pre_del = post_del;
-                    lastequality = thisDiff.text;
+                    lastequality = diffs.lengths[pointer];
                 } else {
                     // Not a candidate, and can never become one.
                     equalities.clear();
-                    lastequality = null;
-                    safeDiff = thisDiff;
+                    lastequality = -1;
+                    safeDiff = pointer;
+                    safeHalf = half;
                 }
                 post_ins = post_del = false;
             } else {
                 // An insertion or deletion.
-                if (thisDiff.operation == Operation.DELETE) {
+                if (op == OP_DELETE) {
                     post_del = true;
                 } else {
                     post_ins = true;
@@ -1108,53 +1943,50 @@ public class diff_match_patch {
          * <ins>A</del>X<ins>C</ins><del>D</del>
          * <ins>A</ins><del>B</del>X<del>C</del>
          */
-                if (lastequality != null
+                if (lastequality != -1
                         && ((pre_ins && pre_del && post_ins && post_del)
-                        || ((lastequality.length() < Diff_EditCost / 2)
+                        || ((lastequality < Diff_EditCost / 2)
                         && ((pre_ins ? 1 : 0) + (pre_del ? 1 : 0)
                         + (post_ins ? 1 : 0) + (post_del ? 1 : 0)) == 3))) {
-                    //System.out.println("Splitting: '" + lastequality + "'");
-                    // Walk back to offending equality.
-                    while (thisDiff != equalities.lastElement()) {
-                        thisDiff = pointer.previous();
-                    }
-                    pointer.next();
-
-                    // Replace equality with a delete.
-                    pointer.set(new Diff(Operation.DELETE, lastequality));
-                    // Insert a corresponding an insert.
-                    pointer.add(thisDiff = new Diff(Operation.INSERT, lastequality));
-
-                    equalities.pop();  // Throw away the equality we just deleted.
-                    lastequality = null;
+                    // Replace the equality with a delete and an insert.
+                    int split = equalities.pop();
+                    diffs.ops[split] = OP_SPLIT;
+                    lastequality = -1;
+                    changes = true;
                     if (pre_ins && pre_del) {
                         // No changes made which could affect previous entry, keep going.
                         post_ins = post_del = true;
                         equalities.clear();
-                        safeDiff = thisDiff;
+                        safeDiff = split;
+                        safeHalf = 1;
+                        pointer = split + 1;
+                        half = 0;
                     } else {
-                        if (!equalities.empty()) {
+                        if (!equalities.isEmpty()) {
                             // Throw away the previous equality (it needs to be reevaluated).
                             equalities.pop();
                         }
-                        if (equalities.empty()) {
+                        if (equalities.isEmpty()) {
                             // There are no previous questionable equalities,
                             // walk back to the last known safe diff.
-                            thisDiff = safeDiff;
+                            pointer = safeDiff;
+                            half = safeHalf;
                         } else {
                             // There is an equality we can fall back to.
-                            thisDiff = equalities.lastElement();
-                        }
-                        while (thisDiff != pointer.previous()) {
-                            // Intentionally empty loop.
+                            pointer = equalities.top();
+                            half = 0;
                         }
                         post_ins = post_del = false;
                     }
-
-                    changes = true;
+                    continue;
                 }
             }
-            thisDiff = pointer.hasNext() ? pointer.next() : null;
+            if (diffs.ops[pointer] == OP_SPLIT && half == 0) {
+                half = 1;
+            } else {
+                pointer++;
+                half = 0;
+            }
         }
 
         if (changes) {
@@ -1169,97 +2001,124 @@ public class diff_match_patch {
      * @param diffs LinkedList of Diff objects.
      */
     public void diff_cleanupMerge(LinkedList<Diff> diffs) {
-        diffs.add(new Diff(Operation.EQUAL, ""));  // Add a dummy entry at the end.
-        ListIterator<Diff> pointer = diffs.listIterator();
+        DiffList list = DiffList.fromDiffs(diffs);
+        diff_cleanupMerge(list);
+        list.copyTo(diffs);
+    }
+
+    /**
+     * Reorder and merge like edit sections.  Merge equalities.
+     * Any edit section can move as long as it doesn't cross an equality.
+     *
+     * @param diffs DiffList to clean up.
+     */
+    public void diff_cleanupMerge(DiffList diffs) {
+        String text1 = diffs.text1;
+        String text2 = diffs.text2;
+        DiffList result = new DiffList(text1, diffs.start1, text2, diffs.start2,
+                diffs.size + 2);
         int count_delete = 0;
         int count_insert = 0;
-        String text_delete = "";
-        String text_insert = "";
-        Diff thisDiff = pointer.next();
-        Diff prevEqual = null;
+        int length_delete = 0;
+        int length_insert = 0;
+        // End of the diffs seen so far in text1 and text2.
+        int pointer1 = diffs.start1;
+        int pointer2 = diffs.start2;
+        int prevEqual = -1;
         int commonlength;
-        while (thisDiff != null) {
-            switch (thisDiff.operation) {
-                case INSERT:
+        // The extra iteration at the end acts as a dummy equality.
+        for (int x = 0; x <= diffs.size; x++) {
+            byte op = x < diffs.size ? diffs.ops[x] : OP_EQUAL;
+            int length = x < diffs.size ? diffs.lengths[x] : 0;
+            switch (op) {
+                case OP_INSERT:
                     count_insert++;
-                    text_insert += thisDiff.text;
-                    prevEqual = null;
+                    length_insert += length;
+                    pointer2 += length;
+                    prevEqual = -1;
                     break;
-                case DELETE:
+                case OP_DELETE:
                     count_delete++;
-                    text_delete += thisDiff.text;
-                    prevEqual = null;
+                    length_delete += length;
+                    pointer1 += length;
+                    prevEqual = -1;
                     break;
-                case EQUAL:
+                case OP_SPLIT:
+                    // An equality turned into a deletion and an insertion.
+                    count_delete++;
+                    count_insert++;
+                    length_delete += length;
+                    length_insert += length;
+                    pointer1 += length;
+                    pointer2 += length;
+                    prevEqual = -1;
+                    break;
+                case OP_EQUAL:
+                    int equal_length = length;
                     if (count_delete + count_insert > 1) {
-                        boolean both_types = count_delete != 0 && count_insert != 0;
-                        // Delete the offending records.
-                        pointer.previous();  // Reverse direction.
-                        while (count_delete-- > 0) {
-                            pointer.previous();
-                            pointer.remove();
-                        }
-                        while (count_insert-- > 0) {
-                            pointer.previous();
-                            pointer.remove();
-                        }
-                        if (both_types) {
+                        int delete_start = pointer1 - length_delete;
+                        int insert_start = pointer2 - length_insert;
+                        if (count_delete != 0 && count_insert != 0) {
                             // Factor out any common prefixies.
-                            commonlength = diff_commonPrefix(text_insert, text_delete);
+                            commonlength = diff_commonPrefix(text2, insert_start,
+                                    pointer2, text1, delete_start, pointer1);
                             if (commonlength != 0) {
-                                if (pointer.hasPrevious()) {
-                                    thisDiff = pointer.previous();
-                                    assert thisDiff.operation == Operation.EQUAL
+                                if (result.size != 0) {
+                                    assert result.ops[result.size - 1] == OP_EQUAL
                                             : "Previous diff should have been an equality.";
-                                    thisDiff.text += text_insert.substring(0, commonlength);
-                                    pointer.next();
+                                    result.lengths[result.size - 1] += commonlength;
                                 } else {
-                                    pointer.add(new Diff(Operation.EQUAL,
-                                            text_insert.substring(0, commonlength)));
+                                    result.add(OP_EQUAL, commonlength);
                                 }
-                                text_insert = text_insert.substring(commonlength);
-                                text_delete = text_delete.substring(commonlength);
+                                insert_start += commonlength;
+                                delete_start += commonlength;
+                                length_insert -= commonlength;
+                                length_delete -= commonlength;
                             }
                             // Factor out any common suffixies.
-                            commonlength = diff_commonSuffix(text_insert, text_delete);
+                            commonlength = diff_commonSuffix(text2, insert_start,
+                                    pointer2, text1, delete_start, pointer1);
                             if (commonlength != 0) {
-                                thisDiff = pointer.next();
-                                thisDiff.text = text_insert.substring(text_insert.length()
-                                        - commonlength) + thisDiff.text;
-                                text_insert = text_insert.substring(0, text_insert.length()
-                                        - commonlength);
-                                text_delete = text_delete.substring(0, text_delete.length()
-                                        - commonlength);
-                                pointer.previous();
+                                length += commonlength;
+                                length_insert -= commonlength;
+                                length_delete -= commonlength;
                             }
                         }
                         // Insert the merged records.
-                        if (text_delete.length() != 0) {
-                            pointer.add(new Diff(Operation.DELETE, text_delete));
+                        if (length_delete != 0) {
+                            result.add(OP_DELETE, length_delete);
                         }
-                        if (text_insert.length() != 0) {
-                            pointer.add(new Diff(Operation.INSERT, text_insert));
+                        if (length_insert != 0) {
+                            result.add(OP_INSERT, length_insert);
                         }
-                        // Step forward to the equality.
-                        thisDiff = pointer.hasNext() ? pointer.next() : null;
-                    } else if (prevEqual != null) {
+                        result.add(OP_EQUAL, length);
+                        prevEqual = result.size - 1;
+                    } else if (prevEqual != -1) {
                         // Merge this equality with the previous one.
-                        prevEqual.text += thisDiff.text;
-                        pointer.remove();
-                        thisDiff = pointer.previous();
-                        pointer.next();  // Forward direction
+                        result.lengths[prevEqual] += length;
+                    } else {
+                        if (count_delete != 0) {
+                            result.add(OP_DELETE, length_delete);
+                        } else if (count_insert != 0) {
+                            result.add(OP_INSERT, length_insert);
+                        }
+                        result.add(OP_EQUAL, length);
+                        prevEqual = result.size - 1;
                     }
+                    pointer1 += equal_length;
+                    pointer2 += equal_length;
                     count_insert = 0;
                     count_delete = 0;
-                    text_delete = "";
-                    text_insert = "";
-                    prevEqual = thisDiff;
+                    length_delete = 0;
+                    length_insert = 0;
+                    break;
+                default:
+                    // OP_DEAD, removed by an earlier cleanup.
                     break;
             }
-            thisDiff = pointer.hasNext() ? pointer.next() : null;
         }
-        if (diffs.getLast().text.length() == 0) {
-            diffs.removeLast();  // Remove the dummy entry at the end.
+        if (result.size != 0 && result.lengths[result.size - 1] == 0) {
+            result.size--;  // Remove the dummy entry at the end.
         }
 
     /*
@@ -1268,45 +2127,67 @@ public class diff_match_patch {
      * e.g: A<ins>BA</ins>C -> <ins>AB</ins>AC
      */
         boolean changes = false;
-        // Create a new iterator at the start.
-        // (As opposed to walking the current one back.)
-        pointer = diffs.listIterator();
-        Diff prevDiff = pointer.hasNext() ? pointer.next() : null;
-        thisDiff = pointer.hasNext() ? pointer.next() : null;
-        Diff nextDiff = pointer.hasNext() ? pointer.next() : null;
+        // Start of the previous diff in text1 and text2.
+        pointer1 = result.start1;
+        pointer2 = result.start2;
+        int prevDiff = 0;
+        int thisDiff = 1;
+        int nextDiff = 2;
         // Intentionally ignore the first and last element (don't need checking).
-        while (nextDiff != null) {
-            if (prevDiff.operation == Operation.EQUAL &&
-                    nextDiff.operation == Operation.EQUAL) {
+        while (nextDiff < result.size) {
+            byte op = result.ops[thisDiff];
+            if (result.ops[prevDiff] == OP_EQUAL &&
+                    result.ops[nextDiff] == OP_EQUAL) {
                 // This is a single edit surrounded by equalities.
-                if (thisDiff.text.endsWith(prevDiff.text)) {
+                // Both equalities are also in the text of the edit, around it.
+                String text = op == OP_INSERT ? text2 : text1;
+                int prevLength = result.lengths[prevDiff];
+                int editLength = result.lengths[thisDiff];
+                int nextLength = result.lengths[nextDiff];
+                int edit = (op == OP_INSERT ? pointer2 : pointer1) + prevLength;
+                if (editLength >= prevLength && text.regionMatches(
+                        edit + editLength - prevLength, text, edit - prevLength,
+                        prevLength)) {
                     // Shift the edit over the previous equality.
-                    thisDiff.text = prevDiff.text
-                            + thisDiff.text.substring(0, thisDiff.text.length()
-                            - prevDiff.text.length());
-                    nextDiff.text = prevDiff.text + nextDiff.text;
-                    pointer.previous(); // Walk past nextDiff.
-                    pointer.previous(); // Walk past thisDiff.
-                    pointer.previous(); // Walk past prevDiff.
-                    pointer.remove(); // Delete prevDiff.
-                    pointer.next(); // Walk past thisDiff.
-                    thisDiff = pointer.next(); // Walk past nextDiff.
-                    nextDiff = pointer.hasNext() ? pointer.next() : null;
+                    result.lengths[nextDiff] += prevLength;
+                    result.ops[prevDiff] = OP_DEAD;
+                    result.lengths[prevDiff] = 0;
+                    if (op == OP_DELETE) {
+                        pointer1 += editLength;
+                    } else {
+                        pointer2 += editLength;
+                    }
+                    prevDiff = nextDiff;
+                    thisDiff = nextDiff + 1;
+                    nextDiff = nextDiff + 2;
                     changes = true;
-                } else if (thisDiff.text.startsWith(nextDiff.text)) {
+                    continue;
+                } else if (editLength >= nextLength && text.regionMatches(
+                        edit, text, edit + editLength, nextLength)) {
                     // Shift the edit over the next equality.
-                    prevDiff.text += nextDiff.text;
-                    thisDiff.text = thisDiff.text.substring(nextDiff.text.length())
-                            + nextDiff.text;
-                    pointer.remove(); // Delete nextDiff.
-                    nextDiff = pointer.hasNext() ? pointer.next() : null;
+                    result.lengths[prevDiff] += nextLength;
+                    result.ops[nextDiff] = OP_DEAD;
+                    result.lengths[nextDiff] = 0;
+                    pointer1 += prevLength + nextLength;
+                    pointer2 += prevLength + nextLength;
+                    prevDiff = thisDiff;
+                    thisDiff = nextDiff + 1;
+                    nextDiff = nextDiff + 2;
                     changes = true;
+                    continue;
                 }
             }
+            if (result.ops[prevDiff] != OP_INSERT) {
+                pointer1 += result.lengths[prevDiff];
+            }
+            if (result.ops[prevDiff] != OP_DELETE) {
+                pointer2 += result.lengths[prevDiff];
+            }
             prevDiff = thisDiff;
             thisDiff = nextDiff;
-            nextDiff = pointer.hasNext() ? pointer.next() : null;
+            nextDiff++;
         }
+        diffs.setTo(result);
         // If shifts were made, the diff needs reordering and another shift sweep.
         if (changes) {
             diff_cleanupMerge(diffs);
@@ -1458,13 +2339,9 @@ public class diff_match_patch {
         for (Diff aDiff : diffs) {
             switch (aDiff.operation) {
                 case INSERT:
-                    try {
-                        text.append("+").append(URLEncoder.encode(aDiff.text, "UTF-8")
-                                .replace('+', ' ')).append("\t");
-                    } catch (UnsupportedEncodingException e) {
-                        // Not likely on modern system.
-                        throw new Error("This system does not support UTF-8.", e);
-                    }
+                    text.append("+");
+                    encodeURI(aDiff.text, 0, aDiff.text.length(), text);
+                    text.append("\t");
                     break;
                 case DELETE:
                     text.append("-").append(aDiff.text.length()).append("\t");
@@ -1474,13 +2351,46 @@ public class diff_match_patch {
                     break;
             }
         }
-        String delta = text.toString();
-        if (delta.length() != 0) {
+        if (text.length() != 0) {
+            // Strip off trailing tab character.
+            text.setLength(text.length() - 1);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Crush the diff into an encoded string, like diff_toDelta(LinkedList)
+     * but without creating Diff objects.
+     *
+     * @param diffs DiffList of the whole text1 and text2.
+     * @return Delta text.
+     */
+    public String diff_toDelta(DiffList diffs) {
+        StringBuilder text = new StringBuilder();
+        int pointer2 = diffs.start2;
+        for (int x = 0; x < diffs.size; x++) {
+            int length = diffs.lengths[x];
+            switch (diffs.ops[x]) {
+                case OP_INSERT:
+                    text.append('+');
+                    encodeURI(diffs.text2, pointer2, pointer2 + length, text);
+                    text.append('\t');
+                    pointer2 += length;
+                    break;
+                case OP_DELETE:
+                    text.append('-').append(length).append('\t');
+                    break;
+                case OP_EQUAL:
+                    text.append('=').append(length).append('\t');
+                    pointer2 += length;
+                    break;
+            }
+        }
+        if (text.length() != 0) {
             // Strip off trailing tab character.
-            delta = delta.substring(0, delta.length() - 1);
-            delta = unescapeForEncodeUriCompatability(delta);
+            text.setLength(text.length() - 1);
         }
-        return delta;
+        return text.toString();
     }
 
     /**
@@ -1507,13 +2417,8 @@ public class diff_match_patch {
             String param = token.substring(1);
             switch (token.charAt(0)) {
                 case '+':
-                    // decode would change all "+" to " "
-                    param = param.replace("+", "%2B");
                     try {
-                        param = URLDecoder.decode(param, "UTF-8");
-                    } catch (UnsupportedEncodingException e) {
-                        // Not likely on modern system.
-                        throw new Error("This system does not support UTF-8.", e);
+                        param = decodeURI(param, 0, param.length());
                     } catch (IllegalArgumentException e) {
                         // Malformed URI sequence.
                         throw new IllegalArgumentException(
@@ -1608,11 +2513,11 @@ public class diff_match_patch {
      * @return Best match index or -1.
      */
     protected int match_bitap(String text, String pattern, int loc) {
-        assert (Match_MaxBits == 0 || pattern.length() <= Match_MaxBits)
-                : "Pattern too long for this application.";
-
         // Initialise the alphabet.
-        Map<Character, Integer> s = match_alphabet(pattern);
+        Alphabet s = new Alphabet(pattern);
+        // The bit arrays of any length are kept in words of 64 bits, lowest
+        // word first, the arrays of a pass one after another in one long[].
+        int words = s.words;
 
         // Highest score beyond which we give up.
         double score_threshold = Match_Threshold;
@@ -1630,13 +2535,14 @@ public class diff_match_patch {
         }
 
         // Initialise the bit arrays.
-        int matchmask = 1 << (pattern.length() - 1);
+        int matchword = (pattern.length() - 1) >>> 6;
+        long matchmask = 1L << ((pattern.length() - 1) & 63);
         best_loc = -1;
 
         int bin_min, bin_mid;
         int bin_max = pattern.length() + text.length();
         // Empty initialization added to appease Java compiler.
-        int[] last_rd = new int[0];
+        long[] last_rd = new long[0];
         for (int d = 0; d < pattern.length(); d++) {
             // Scan for the best match; each iteration allows for one more error.
             // Run a binary search to determine how far from 'loc' we can stray at
@@ -1657,25 +2563,38 @@ public class diff_match_patch {
             int start = Math.max(1, loc - bin_mid + 1);
             int finish = Math.min(loc + bin_mid, text.length()) + pattern.length();
 
-            int[] rd = new int[finish + 2];
-            rd[finish + 1] = (1 << d) - 1;
+            long[] rd = new long[(finish + 2) * words];
+            // The lowest d bits of rd[finish + 1].
+            int top = (finish + 1) * words;
+            for (int w = 0; w < words && d > w << 6; w++) {
+                rd[top + w] = d >= (w + 1) << 6 ? -1L : (1L << (d - (w << 6))) - 1;
+            }
             for (int j = finish; j >= start; j--) {
                 int charMatch;
-                if (text.length() <= j - 1 || !s.containsKey(text.charAt(j - 1))) {
+                if (text.length() <= j - 1) {
                     // Out of range.
-                    charMatch = 0;
+                    charMatch = -1;
                 } else {
-                    charMatch = s.get(text.charAt(j - 1));
+                    charMatch = s.indexOf(text.charAt(j - 1));
                 }
-                if (d == 0) {
-                    // First pass: exact match.
-                    rd[j] = ((rd[j + 1] << 1) | 1) & charMatch;
-                } else {
-                    // Subsequent passes: fuzzy match.
-                    rd[j] = (((rd[j + 1] << 1) | 1) & charMatch)
-                            | (((last_rd[j + 1] | last_rd[j]) << 1) | 1) | last_rd[j + 1];
+                int at = j * words;
+                int next = at + words;
+                // The bits shifted out of the word below, with the 1 shifted in.
+                long carry = 1;
+                long last_carry = 1;
+                for (int w = 0; w < words; w++) {
+                    long shifted = (rd[next + w] << 1) | carry;
+                    carry = rd[next + w] >>> 63;
+                    long bits = charMatch == -1 ? 0 : shifted & s.masks[charMatch + w];
+                    if (d != 0) {
+                        // Subsequent passes: fuzzy match.
+                        long last = last_rd[next + w] | last_rd[at + w];
+                        bits |= ((last << 1) | last_carry) | last_rd[next + w];
+                        last_carry = last >>> 63;
+                    }
+                    rd[at + w] = bits;
                 }
-                if ((rd[j] & matchmask) != 0) {
+                if ((rd[at + matchword] & matchmask) != 0) {
                     double score = match_bitapScore(d, j - 1, loc, pattern);
                     // This match will almost certainly be better than any existing
                     // match.  But check anyway.
@@ -1722,23 +2641,60 @@ public class diff_match_patch {
     }
 
     /**
-     * Initialise the alphabet for the Bitap algorithm.
-     *
-     * @param pattern The text to encode.
-     * @return Hash of character locations.
+     * The alphabet of the Bitap algorithm: for each character of the pattern,
+     * the bits of the positions where it is in the pattern, the first
+     * character being the highest bit.  The masks are kept in words of 64
+     * bits so that patterns of any length can be matched, and looked up
+     * without boxing the characters.
      */
-    protected Map<Character, Integer> match_alphabet(String pattern) {
-        Map<Character, Integer> s = new HashMap<Character, Integer>();
-        char[] char_pattern = pattern.toCharArray();
-        for (char c : char_pattern) {
-            s.put(c, 0);
+    protected static class Alphabet {
+        /**
+         * Words of 64 bits in a mask.
+         */
+        public final int words;
+        /**
+         * The masks one after another, words longs each.
+         */
+        public final long[] masks;
+        // The characters of the pattern, sorted, at the indices of their masks.
+        private final char[] chars;
+        // The indices of the masks of the ASCII characters, or -1.
+        private final int[] ascii = new int[128];
+
+        public Alphabet(String pattern) {
+            int length = pattern.length();
+            words = Math.max(1, (length + 63) >>> 6);
+            char[] sorted = pattern.toCharArray();
+            Arrays.sort(sorted);
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (n == 0 || sorted[n - 1] != sorted[i]) {
+                    sorted[n++] = sorted[i];
+                }
+            }
+            chars = Arrays.copyOf(sorted, n);
+            masks = new long[n * words];
+            Arrays.fill(ascii, -1);
+            for (int i = 0; i < n && chars[i] < ascii.length; i++) {
+                ascii[chars[i]] = i * words;
+            }
+            for (int i = 0; i < length; i++) {
+                int bit = length - i - 1;
+                masks[indexOf(pattern.charAt(i)) + (bit >>> 6)] |= 1L << (bit & 63);
+            }
         }
-        int i = 0;
-        for (char c : char_pattern) {
-            s.put(c, s.get(c) | (1 << (pattern.length() - i - 1)));
-            i++;
+
+        /**
+         * The index of the mask of the character in {@link #masks}, or -1 if
+         * the character isn't in the pattern.
+         */
+        public int indexOf(char c) {
+            if (c < ascii.length) {
+                return ascii[c];
+            }
+            int i = Arrays.binarySearch(chars, c);
+            return i < 0 ? -1 : i * words;
         }
-        return s;
     }
 
 
@@ -1761,7 +2717,8 @@ public class diff_match_patch {
 
         // Look for the first and last matches of pattern in text.  If two different
         // matches are found, increase the pattern length.
-        while (text.indexOf(pattern) != text.lastIndexOf(pattern)
+        while (occursTwice(text, text.length(), text, text.length(), pattern,
+                Math.max(0, patch.start2 - padding))
                 && pattern.length() < Match_MaxBits - Patch_Margin - Patch_Margin) {
             padding += Patch_Margin;
             pattern = text.substring(Math.max(0, patch.start2 - padding),
@@ -1800,16 +2757,40 @@ public class diff_match_patch {
      * @return LinkedList of Patch objects.
      */
     public LinkedList<Patch> patch_make(String text1, String text2) {
+        return new LinkedList<Patch>(patch_list(text1, text2));
+    }
+
+    /**
+     * Compute a list of patches to turn text1 into text2.
+     * Same as patch_make(String text1, String text2) but without building a
+     * linked list of Diff objects on the way.
+     *
+     * @param text1 Old text.
+     * @param text2 New text.
+     * @return List of Patch objects.
+     */
+    public List<Patch> patch_list(String text1, String text2) {
         if (text1 == null || text2 == null) {
             throw new IllegalArgumentException("Null inputs. (patch_make)");
         }
         // No diffs provided, compute our own.
-        LinkedList<Diff> diffs = diff_main(text1, text2, true);
+        return patch_list(diff_list(text1, text2, true));
+    }
+
+    /**
+     * Compute a list of patches to turn the text1 of a DiffList into its
+     * text2, cleaning up the diffs first like patch_make(String, String).
+     * The DiffList is cleaned up in place.
+     *
+     * @param diffs DiffList of the whole text1 and text2.
+     * @return List of Patch objects.
+     */
+    public List<Patch> patch_list(DiffList diffs) {
         if (diffs.size() > 2) {
             diff_cleanupSemantic(diffs);
             diff_cleanupEfficiency(diffs);
         }
-        return patch_make(text1, diffs);
+        return patch_make(diffs);
     }
 
     /**
@@ -1897,17 +2878,109 @@ public class diff_match_patch {
                         patch.length2 += aDiff.text.length();
                     }
 
-                    if (aDiff.text.length() >= 2 * Patch_Margin) {
+                    if (aDiff.text.length() >= 2 * Patch_Margin) {
+                        // Time for a new patch.
+                        if (!patch.diffs.isEmpty()) {
+                            patch_addContext(patch, prepatch_text);
+                            patches.add(patch);
+                            patch = new Patch();
+                            // Unlike Unidiff, our patch lists have a rolling context.
+                            // http://code.google.com/p/google-diff-match-patch/wiki/Unidiff
+                            // Update prepatch text & pos to reflect the application of the
+                            // just completed patch.
+                            prepatch_text = postpatch_text;
+                            char_count1 = char_count2;
+                        }
+                    }
+                    break;
+            }
+
+            // Update the current character count.
+            if (aDiff.operation != Operation.INSERT) {
+                char_count1 += aDiff.text.length();
+            }
+            if (aDiff.operation != Operation.DELETE) {
+                char_count2 += aDiff.text.length();
+            }
+        }
+        // Pick up the leftover patch if not empty.
+        if (!patch.diffs.isEmpty()) {
+            patch_addContext(patch, prepatch_text);
+            patches.add(patch);
+        }
+
+        return patches;
+    }
+
+    /**
+     * Compute a list of patches to turn the text1 of a DiffList into its
+     * text2.
+     *
+     * @param diffs DiffList of the whole text1 and text2.
+     * @return List of Patch objects.
+     */
+    public List<Patch> patch_make(DiffList diffs) {
+        if (diffs == null) {
+            throw new IllegalArgumentException("Null inputs. (patch_make)");
+        }
+
+        List<Patch> patches = new ArrayList<Patch>();
+        if (diffs.size == 0) {
+            return patches;  // Get rid of the null case.
+        }
+        String text1 = diffs.text1;
+        String text2 = diffs.text2;
+        Patch patch = new Patch();
+        int char_count1 = 0;  // Number of characters into the prepatch text.
+        int char_count2 = 0;  // Number of characters into the text2 string.
+        int pointer1 = 0;  // Number of characters into the text1 string.
+        // The prepatch text is never built: after each completed patch it is
+        // the head of text2 followed by the tail of text1.
+        int prepatch_head = 0;  // Length of the head taken from text2.
+        int prepatch_tail = 0;  // Start of the tail taken from text1.
+        for (int x = 0; x < diffs.size; x++) {
+            byte op = diffs.ops[x];
+            int length = diffs.lengths[x];
+            if (patch.diffs.isEmpty() && op != OP_EQUAL) {
+                // A new patch starts here.
+                patch.start1 = char_count1;
+                patch.start2 = char_count2;
+            }
+
+            switch (op) {
+                case OP_INSERT:
+                    patch.diffs.add(new Diff(Operation.INSERT,
+                            text2.substring(char_count2, char_count2 + length)));
+                    patch.length2 += length;
+                    break;
+                case OP_DELETE:
+                    patch.length1 += length;
+                    patch.diffs.add(new Diff(Operation.DELETE,
+                            text1.substring(pointer1, pointer1 + length)));
+                    break;
+                default:
+                    if (length <= 2 * Patch_Margin
+                            && !patch.diffs.isEmpty() && x != diffs.size - 1) {
+                        // Small equality inside a patch.
+                        patch.diffs.add(new Diff(Operation.EQUAL,
+                                text1.substring(pointer1, pointer1 + length)));
+                        patch.length1 += length;
+                        patch.length2 += length;
+                    }
+
+                    if (length >= 2 * Patch_Margin) {
                         // Time for a new patch.
                         if (!patch.diffs.isEmpty()) {
-                            patch_addContext(patch, prepatch_text);
+                            patch_addContext(patch, text2, prepatch_head,
+                                    text1, prepatch_tail);
                             patches.add(patch);
                             patch = new Patch();
                             // Unlike Unidiff, our patch lists have a rolling context.
                             // http://code.google.com/p/google-diff-match-patch/wiki/Unidiff
                             // Update prepatch text & pos to reflect the application of the
                             // just completed patch.
-                            prepatch_text = postpatch_text;
+                            prepatch_head = char_count2;
+                            prepatch_tail = pointer1;
                             char_count1 = char_count2;
                         }
                     }
@@ -1915,29 +2988,122 @@ public class diff_match_patch {
             }
 
             // Update the current character count.
-            if (aDiff.operation != Operation.INSERT) {
-                char_count1 += aDiff.text.length();
+            if (op != OP_INSERT) {
+                char_count1 += length;
+                pointer1 += length;
             }
-            if (aDiff.operation != Operation.DELETE) {
-                char_count2 += aDiff.text.length();
+            if (op != OP_DELETE) {
+                char_count2 += length;
             }
         }
         // Pick up the leftover patch if not empty.
         if (!patch.diffs.isEmpty()) {
-            patch_addContext(patch, prepatch_text);
+            patch_addContext(patch, text2, prepatch_head, text1, prepatch_tail);
             patches.add(patch);
         }
 
         return patches;
     }
 
+    /**
+     * Increase the context until it is unique,
+     * but don't let the pattern expand beyond Match_MaxBits.
+     * The source text is head[0, headLength) followed by tail[tailStart, ...).
+     *
+     * @param patch      The patch to grow.
+     * @param head       String holding the start of the source text.
+     * @param headLength Length of the start of the source text.
+     * @param tail       String holding the rest of the source text.
+     * @param tailStart  Start of the rest of the source text in tail.
+     */
+    private void patch_addContext(Patch patch, String head, int headLength,
+                                  String tail, int tailStart) {
+        int text_length = headLength + tail.length() - tailStart;
+        if (text_length == 0) {
+            return;
+        }
+        String pattern = substring(head, headLength, tail, tailStart,
+                patch.start2, patch.start2 + patch.length1);
+        int padding = 0;
+
+        // Look for the first and last matches of pattern in text.  If two different
+        // matches are found, increase the pattern length.
+        while (occursTwice(head, headLength, tail, tailStart, pattern,
+                Math.max(0, patch.start2 - padding))
+                && pattern.length() < Match_MaxBits - Patch_Margin - Patch_Margin) {
+            padding += Patch_Margin;
+            pattern = substring(head, headLength, tail, tailStart,
+                    Math.max(0, patch.start2 - padding),
+                    Math.min(text_length, patch.start2 + patch.length1 + padding));
+        }
+        // Add one chunk for good luck.
+        padding += Patch_Margin;
+
+        // Add the prefix.
+        String prefix = substring(head, headLength, tail, tailStart,
+                Math.max(0, patch.start2 - padding), patch.start2);
+        if (prefix.length() != 0) {
+            patch.diffs.addFirst(new Diff(Operation.EQUAL, prefix));
+        }
+        // Add the suffix.
+        String suffix = substring(head, headLength, tail, tailStart,
+                patch.start2 + patch.length1,
+                Math.min(text_length, patch.start2 + patch.length1 + padding));
+        if (suffix.length() != 0) {
+            patch.diffs.addLast(new Diff(Operation.EQUAL, suffix));
+        }
+
+        // Roll back the start points.
+        patch.start1 -= prefix.length();
+        patch.start2 -= prefix.length();
+        // Extend the lengths.
+        patch.length1 += prefix.length() + suffix.length();
+        patch.length2 += prefix.length() + suffix.length();
+    }
+
+    /**
+     * Substring of the text made of head[0, headLength) followed by
+     * tail[tailStart, ...).
+     */
+    private static String substring(String head, int headLength, String tail,
+                                     int tailStart, int begin, int end) {
+        if (end <= headLength) {
+            return head.substring(begin, end);
+        } else if (begin >= headLength) {
+            return tail.substring(tailStart + begin - headLength,
+                    tailStart + end - headLength);
+        }
+        return head.substring(begin, headLength)
+                + tail.substring(tailStart, tailStart + end - headLength);
+    }
+
+    /**
+     * Does the pattern, found at patternStart of the text made of
+     * head[0, headLength) followed by tail[tailStart, ...), occur anywhere
+     * else that match_main() could pick instead?  A match further away than
+     * Match_Threshold * Match_Distance is never accepted, so only that part
+     * of the text is searched.  Otherwise every patch of a large text would
+     * scan all of it.
+     */
+    private boolean occursTwice(String head, int headLength, String tail,
+                                int tailStart, String pattern,
+                                int patternStart) {
+        int text_length = headLength + tail.length() - tailStart;
+        long radius = (long) Math.ceil(Match_Threshold * (double) Match_Distance);
+        int begin = (int) Math.max(0, patternStart - radius);
+        int end = (int) Math.min(text_length,
+                patternStart + pattern.length() + radius);
+        String window = substring(head, headLength, tail, tailStart, begin, end);
+        return window.indexOf(pattern) != window.lastIndexOf(pattern);
+    }
+
     /**
      * Given an array of patches, return another array that is identical.
      *
      * @param patches Array of Patch objects.
      * @return Array of Patch objects.
      */
-    public LinkedList<Patch> patch_deepCopy(LinkedList<Patch> patches) {
+    public LinkedList<Patch> patch_deepCopy(List<Patch> patches) {
         LinkedList<Patch> patchesCopy = new LinkedList<Patch>();
         for (Patch aPatch : patches) {
             Patch patchCopy = new Patch();
@@ -1958,18 +3124,18 @@ public class diff_match_patch {
      * Merge a set of patches onto the text.  Return a patched text, as well
      * as an array of true/false values indicating which patches were applied.
      *
-     * @param patches Array of Patch objects
-     * @param text    Old text.
+     * @param originalPatches Array of Patch objects
+     * @param text            Old text.
      * @return Two element Object array, containing the new text and an array of
      * boolean values.
      */
-    public Object[] patch_apply(LinkedList<Patch> patches, String text) {
-        if (patches.isEmpty()) {
+    public Object[] patch_apply(List<Patch> originalPatches, String text) {
+        if (originalPatches.isEmpty()) {
             return new Object[]{text, new boolean[0]};
         }
 
         // Deep copy the patches so that no changes are made to originals.
-        patches = patch_deepCopy(patches);
+        LinkedList<Patch> patches = patch_deepCopy(originalPatches);
 
         String nullPadding = patch_addPadding(patches);
         text = nullPadding + text + nullPadding;
@@ -2242,7 +3408,7 @@ public class diff_match_patch {
     public String patch_toText(List<Patch> patches) {
         StringBuilder text = new StringBuilder();
         for (Patch aPatch : patches) {
-            text.append(aPatch);
+            aPatch.appendTo(text);
         }
         return text.toString();
     }
@@ -2258,91 +3424,445 @@ public class diff_match_patch {
     public List<Patch> patch_fromText(String textline)
             throws IllegalArgumentException {
         List<Patch> patches = new LinkedList<Patch>();
-        if (textline.length() == 0) {
-            return patches;
+        // Trailing blank lines are ignored.
+        int limit = textline.length();
+        while (limit > 0 && textline.charAt(limit - 1) == '\n') {
+            limit--;
         }
-        List<String> textList = Arrays.asList(textline.split("\n"));
-        LinkedList<String> text = new LinkedList<String>(textList);
-        Patch patch;
-        Pattern patchHeader
-                = Pattern.compile("^@@ -(\\d+),?(\\d*) \\+(\\d+),?(\\d*) @@$");
-        Matcher m;
+        Patch patch = null;
         char sign;
         String line;
-        while (!text.isEmpty()) {
-            m = patchHeader.matcher(text.getFirst());
-            if (!m.matches()) {
-                throw new IllegalArgumentException(
-                        "Invalid patch string: " + text.getFirst());
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int lineEnd = textline.indexOf('\n', lineStart);
+            if (lineEnd == -1 || lineEnd > limit) {
+                lineEnd = limit;
             }
-            patch = new Patch();
-            patches.add(patch);
-            patch.start1 = Integer.parseInt(m.group(1));
-            if (m.group(2).length() == 0) {
-                patch.start1--;
-                patch.length1 = 1;
-            } else if (m.group(2).equals("0")) {
-                patch.length1 = 0;
+            int next = lineEnd + 1;
+            if (patch == null) {
+                patch = new Patch();
+                if (!patch_parseHeader(textline, lineStart, lineEnd, patch)) {
+                    throw new IllegalArgumentException("Invalid patch string: "
+                            + textline.substring(lineStart, lineEnd));
+                }
+                patches.add(patch);
+                lineStart = next;
+                continue;
+            }
+            if (lineStart == lineEnd) {
+                // Blank line?  Whatever.
+                lineStart = next;
+                continue;
+            }
+            sign = textline.charAt(lineStart);
+            if (sign == '@') {
+                // Start of next patch.
+                patch = null;
+                continue;
+            }
+            try {
+                line = decodeURI(textline, lineStart + 1, lineEnd);
+            } catch (IllegalArgumentException e) {
+                // Malformed URI sequence.
+                throw new IllegalArgumentException("Illegal escape in patch_fromText: "
+                        + textline.substring(lineStart + 1, lineEnd), e);
+            }
+            if (sign == '-') {
+                // Deletion.
+                patch.diffs.add(new Diff(Operation.DELETE, line));
+            } else if (sign == '+') {
+                // Insertion.
+                patch.diffs.add(new Diff(Operation.INSERT, line));
+            } else if (sign == ' ') {
+                // Minor equality.
+                patch.diffs.add(new Diff(Operation.EQUAL, line));
             } else {
-                patch.start1--;
-                patch.length1 = Integer.parseInt(m.group(2));
+                // WTF?
+                throw new IllegalArgumentException(
+                        "Invalid patch mode '" + sign + "' in: " + line);
             }
+            lineStart = next;
+        }
+        return patches;
+    }
 
-            patch.start2 = Integer.parseInt(m.group(3));
-            if (m.group(4).length() == 0) {
-                patch.start2--;
-                patch.length2 = 1;
-            } else if (m.group(4).equals("0")) {
-                patch.length2 = 0;
-            } else {
-                patch.start2--;
-                patch.length2 = Integer.parseInt(m.group(4));
+    /**
+     * Parse a patch header like "@@ -382,8 +481,9 @@" into the coordinates
+     * of a patch, as matching the pattern
+     * ^@@ -(\d+),?(\d*) \+(\d+),?(\d*) @@$ would.
+     *
+     * @param text  Text containing the header.
+     * @param start Start of the header line.
+     * @param end   End of the header line.
+     * @param patch Patch to set the coordinates of.
+     * @return True if the line is a valid header.
+     * @throws NumberFormatException If a number is too large.
+     */
+    private static boolean patch_parseHeader(String text, int start, int end,
+                                             Patch patch) {
+        int pointer = start;
+        if (!text.startsWith("@@ -", pointer)) {
+            return false;
+        }
+        pointer += 4;
+        int digits1 = digitsAt(text, pointer, end);
+        if (digits1 == 0) {
+            return false;
+        }
+        int start1 = parseDigits(text, pointer, digits1);
+        pointer += digits1;
+        int length1 = -1;
+        if (pointer < end && text.charAt(pointer) == ',') {
+            pointer++;
+            int digits = digitsAt(text, pointer, end);
+            if (digits != 0) {
+                length1 = parseDigits(text, pointer, digits);
+                if (digits == 1 && length1 == 0) {
+                    // "0" rather than e.g. "00".
+                    length1 = -2;
+                }
+            }
+            pointer += digits;
+        }
+        if (!text.startsWith(" +", pointer)) {
+            return false;
+        }
+        pointer += 2;
+        int digits2 = digitsAt(text, pointer, end);
+        if (digits2 == 0) {
+            return false;
+        }
+        int start2 = parseDigits(text, pointer, digits2);
+        pointer += digits2;
+        int length2 = -1;
+        if (pointer < end && text.charAt(pointer) == ',') {
+            pointer++;
+            int digits = digitsAt(text, pointer, end);
+            if (digits != 0) {
+                length2 = parseDigits(text, pointer, digits);
+                if (digits == 1 && length2 == 0) {
+                    length2 = -2;
+                }
             }
-            text.removeFirst();
+            pointer += digits;
+        }
+        if (end - pointer != 3 || !text.startsWith(" @@", pointer)) {
+            return false;
+        }
 
-            while (!text.isEmpty()) {
-                try {
-                    sign = text.getFirst().charAt(0);
-                } catch (IndexOutOfBoundsException e) {
-                    // Blank line?  Whatever.
-                    text.removeFirst();
-                    continue;
+        patch.start1 = start1;
+        if (length1 == -1) {
+            patch.start1--;
+            patch.length1 = 1;
+        } else if (length1 == -2) {
+            patch.length1 = 0;
+        } else {
+            patch.start1--;
+            patch.length1 = length1;
+        }
+        patch.start2 = start2;
+        if (length2 == -1) {
+            patch.start2--;
+            patch.length2 = 1;
+        } else if (length2 == -2) {
+            patch.length2 = 0;
+        } else {
+            patch.start2--;
+            patch.length2 = length2;
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of ASCII digits at the position.
+     */
+    private static int digitsAt(String text, int pointer, int end) {
+        int n = 0;
+        while (pointer + n < end && text.charAt(pointer + n) >= '0'
+                && text.charAt(pointer + n) <= '9') {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Parse a run of ASCII digits like Integer.parseInt() would.
+     *
+     * @throws NumberFormatException If the number is too large.
+     */
+    private static int parseDigits(String text, int pointer, int digits) {
+        long value = 0;
+        for (int i = 0; i < digits; i++) {
+            value = value * 10 + (text.charAt(pointer + i) - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw new NumberFormatException("For input string: \""
+                        + text.substring(pointer, pointer + digits) + "\"");
+            }
+        }
+        return (int) value;
+    }
+
+
+
+    /**
+     * Compact, array-backed list of diffs, used by the diff engine instead of
+     * a LinkedList of Diff objects.
+     * Each entry is just an operation code and a length.  The text of an
+     * entry is not stored since it is implied by its position: the equalities
+     * and deletions concatenate to text1, the equalities and insertions
+     * concatenate to text2.
+     */
+    public static class DiffList implements Iterable<Diff> {
+        private final String text1;
+        private final String text2;
+        /**
+         * Where the first entry starts in text1 and text2.
+         */
+        private final int start1;
+        private final int start2;
+        private byte[] ops;
+        private int[] lengths;
+        private int size;
+        /**
+         * Whether Diff_Budget ran out while computing the diff.
+         */
+        private boolean budgetExhausted;
+
+        private DiffList(String text1, int start1, String text2, int start2) {
+            this(text1, start1, text2, start2, 8);
+        }
+
+        private DiffList(String text1, int start1, String text2, int start2,
+                         int capacity) {
+            this.text1 = text1;
+            this.start1 = start1;
+            this.text2 = text2;
+            this.start2 = start2;
+            this.ops = new byte[Math.max(capacity, 4)];
+            this.lengths = new int[ops.length];
+        }
+
+        /**
+         * Build a DiffList equivalent to a list of Diff objects.
+         *
+         * @param diffs List of Diff objects.
+         * @return DiffList with the same operations.
+         */
+        public static DiffList fromDiffs(List<Diff> diffs) {
+            StringBuilder text1 = new StringBuilder();
+            StringBuilder text2 = new StringBuilder();
+            for (Diff aDiff : diffs) {
+                if (aDiff.operation != Operation.INSERT) {
+                    text1.append(aDiff.text);
                 }
-                line = text.getFirst().substring(1);
-                line = line.replace("+", "%2B");  // decode would change all "+" to " "
-                try {
-                    line = URLDecoder.decode(line, "UTF-8");
-                } catch (UnsupportedEncodingException e) {
-                    // Not likely on modern system.
-                    throw new Error("This system does not support UTF-8.", e);
-                } catch (IllegalArgumentException e) {
-                    // Malformed URI sequence.
-                    throw new IllegalArgumentException(
-                            "Illegal escape in patch_fromText: " + line, e);
+                if (aDiff.operation != Operation.DELETE) {
+                    text2.append(aDiff.text);
                 }
-                if (sign == '-') {
-                    // Deletion.
-                    patch.diffs.add(new Diff(Operation.DELETE, line));
-                } else if (sign == '+') {
-                    // Insertion.
-                    patch.diffs.add(new Diff(Operation.INSERT, line));
-                } else if (sign == ' ') {
-                    // Minor equality.
-                    patch.diffs.add(new Diff(Operation.EQUAL, line));
-                } else if (sign == '@') {
-                    // Start of next patch.
-                    break;
-                } else {
-                    // WTF?
-                    throw new IllegalArgumentException(
-                            "Invalid patch mode '" + sign + "' in: " + line);
+            }
+            DiffList list = new DiffList(text1.toString(), 0, text2.toString(), 0,
+                    diffs.size());
+            for (Diff aDiff : diffs) {
+                list.add((byte) aDiff.operation.ordinal(), aDiff.text.length());
+            }
+            return list;
+        }
+
+        private void add(byte op, int length) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            ops[size] = op;
+            lengths[size] = length;
+            size++;
+        }
+
+        private void addAll(DiffList other) {
+            budgetExhausted |= other.budgetExhausted;
+            if (size + other.size > ops.length) {
+                int capacity = Math.max(size + other.size, size * 2);
+                ops = Arrays.copyOf(ops, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            System.arraycopy(other.ops, 0, ops, size, other.size);
+            System.arraycopy(other.lengths, 0, lengths, size, other.size);
+            size += other.size;
+        }
+
+        /**
+         * Take over the entries of another list of the same texts.
+         */
+        private void setTo(DiffList other) {
+            ops = other.ops;
+            lengths = other.lengths;
+            size = other.size;
+        }
+
+        /**
+         * Drop the entries marked OP_DEAD.
+         */
+        private void compact() {
+            int n = 0;
+            for (int x = 0; x < size; x++) {
+                if (ops[x] != OP_DEAD) {
+                    ops[n] = ops[x];
+                    lengths[n] = lengths[x];
+                    n++;
                 }
-                text.removeFirst();
             }
+            size = n;
+        }
+
+        /**
+         * Replace the contents of a list of Diff objects with the entries of
+         * this list.
+         */
+        private void copyTo(List<Diff> diffs) {
+            diffs.clear();
+            for (Diff aDiff : this) {
+                diffs.add(aDiff);
+            }
+        }
+
+        /**
+         * @return Number of diffs.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return Whether the diff ran out of Diff_Budget, in which case it is
+         * coarser than it could be (but still correct).
+         */
+        public boolean isBudgetExhausted() {
+            return budgetExhausted;
+        }
+
+        /**
+         * @param index Index of a diff.
+         * @return Operation of the diff.
+         */
+        public Operation getOperation(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            return OPERATIONS[ops[index]];
+        }
+
+        /**
+         * @param index Index of a diff.
+         * @return Length of the text of the diff.
+         */
+        public int getLength(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            return lengths[index];
+        }
+
+        /**
+         * @return The old text of the diffs.
+         */
+        public String getText1() {
+            return text1;
+        }
+
+        /**
+         * @return The new text of the diffs.
+         */
+        public String getText2() {
+            return text2;
+        }
+
+        /**
+         * @return The diffs as a LinkedList of Diff objects.
+         */
+        public LinkedList<Diff> toLinkedList() {
+            LinkedList<Diff> diffs = new LinkedList<Diff>();
+            for (Diff aDiff : this) {
+                diffs.add(aDiff);
+            }
+            return diffs;
+        }
+
+        /**
+         * Iterate the diffs, creating a Diff object for each.
+         *
+         * @return Iterator of Diff objects.
+         */
+        public Iterator<Diff> iterator() {
+            return new Iterator<Diff>() {
+                private int index = 0;
+                private int pointer1 = start1;
+                private int pointer2 = start2;
+
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                public Diff next() {
+                    if (index >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    byte op = ops[index];
+                    int length = lengths[index++];
+                    String text;
+                    if (op == OP_INSERT) {
+                        text = text2.substring(pointer2, pointer2 + length);
+                        pointer2 += length;
+                    } else {
+                        text = text1.substring(pointer1, pointer1 + length);
+                        pointer1 += length;
+                        if (op == OP_EQUAL) {
+                            pointer2 += length;
+                        }
+                    }
+                    return new Diff(OPERATIONS[op], text);
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return toLinkedList().toString();
         }
-        return patches;
     }
 
+    /**
+     * Growable stack of ints, to avoid boxing.
+     */
+    private static class IntStack {
+        private int[] items = new int[16];
+        private int size;
+
+        void push(int item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = item;
+        }
+
+        int pop() {
+            return items[--size];
+        }
+
+        int top() {
+            return items[size - 1];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
 
     /**
      * Class representing one diff operation.
@@ -2451,24 +3971,22 @@ public class diff_match_patch {
          * @return The GNU diff string.
          */
         public String toString() {
-            String coords1, coords2;
-            if (this.length1 == 0) {
-                coords1 = this.start1 + ",0";
-            } else if (this.length1 == 1) {
-                coords1 = Integer.toString(this.start1 + 1);
-            } else {
-                coords1 = (this.start1 + 1) + "," + this.length1;
-            }
-            if (this.length2 == 0) {
-                coords2 = this.start2 + ",0";
-            } else if (this.length2 == 1) {
-                coords2 = Integer.toString(this.start2 + 1);
-            } else {
-                coords2 = (this.start2 + 1) + "," + this.length2;
-            }
             StringBuilder text = new StringBuilder();
-            text.append("@@ -").append(coords1).append(" +").append(coords2)
-                    .append(" @@\n");
+            appendTo(text);
+            return text.toString();
+        }
+
+        /**
+         * Append the GNU diff string of the patch to a buffer.
+         *
+         * @param text Where to append the string.
+         */
+        private void appendTo(StringBuilder text) {
+            text.append("@@ -");
+            appendCoords(this.start1, this.length1, text);
+            text.append(" +");
+            appendCoords(this.start2, this.length2, text);
+            text.append(" @@\n");
             // Escape the body of the patch with %xx notation.
             for (Diff aDiff : this.diffs) {
                 switch (aDiff.operation) {
@@ -2482,37 +4000,157 @@ public class diff_match_patch {
                         text.append(' ');
                         break;
                 }
-                try {
-                    text.append(URLEncoder.encode(aDiff.text, "UTF-8").replace('+', ' '))
-                            .append("\n");
-                } catch (UnsupportedEncodingException e) {
-                    // Not likely on modern system.
-                    throw new Error("This system does not support UTF-8.", e);
+                encodeURI(aDiff.text, 0, aDiff.text.length(), text);
+                text.append("\n");
+            }
+        }
+
+        private static void appendCoords(int start, int length,
+                                         StringBuilder text) {
+            if (length == 0) {
+                text.append(start).append(",0");
+            } else if (length == 1) {
+                text.append(start + 1);
+            } else {
+                text.append(start + 1).append(',').append(length);
+            }
+        }
+    }
+
+    /**
+     * Characters that encodeURI() leaves as they are, and space, which
+     * encodeURI() would escape but which is kept for readability.
+     */
+    private static final boolean[] URI_UNESCAPED = new boolean[128];
+
+    static {
+        String unescaped = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+                + "0123456789-_.*!~'();/?:@&=+$,# ";
+        for (int i = 0; i < unescaped.length(); i++) {
+            URI_UNESCAPED[unescaped.charAt(i)] = true;
+        }
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Escape a range of text with %xx notation the way JavaScript's
+     * encodeURI does, except that spaces are kept.
+     * Same as URLEncoder.encode() with the characters encodeURI leaves alone
+     * unescaped again, and "+" turned back into space, but in one pass.
+     * An unpaired surrogate is written as "?".
+     *
+     * @param text  Text to escape.
+     * @param start Start of the range.
+     * @param end   End of the range.
+     * @param out   Where to append the escaped text.
+     */
+    private static void encodeURI(String text, int start, int end,
+                                  StringBuilder out) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 128 && URI_UNESCAPED[c]) {
+                int run = i + 1;
+                while (run < end && text.charAt(run) < 128
+                        && URI_UNESCAPED[text.charAt(run)]) {
+                    run++;
                 }
+                out.append(text, i, run);
+                i = run - 1;
+            } else if (c < 128) {
+                appendEscaped(c, out);
+            } else if (c < 0x800) {
+                appendEscaped(0xC0 | (c >> 6), out);
+                appendEscaped(0x80 | (c & 0x3F), out);
+            } else if (!Character.isSurrogate(c)) {
+                appendEscaped(0xE0 | (c >> 12), out);
+                appendEscaped(0x80 | ((c >> 6) & 0x3F), out);
+                appendEscaped(0x80 | (c & 0x3F), out);
+            } else if (Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                appendEscaped(0xF0 | (cp >> 18), out);
+                appendEscaped(0x80 | ((cp >> 12) & 0x3F), out);
+                appendEscaped(0x80 | ((cp >> 6) & 0x3F), out);
+                appendEscaped(0x80 | (cp & 0x3F), out);
+            } else {
+                // What the UTF-8 encoder makes of a malformed surrogate.
+                out.append('?');
             }
-            return unescapeForEncodeUriCompatability(text.toString());
         }
     }
 
+    private static void appendEscaped(int b, StringBuilder out) {
+        out.append('%').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
+    }
+
     /**
-     * Unescape selected chars for compatability with JavaScript's encodeURI.
-     * In speed critical applications this could be dropped since the
-     * receiving application will certainly decode these fine.
-     * Note that this function is case-sensitive.  Thus "%3f" would not be
-     * unescaped.  But this is ok because it is only called with the output of
-     * URLEncoder.encode which returns uppercase hex.
-     * <p>
-     * Example: "%3F" -> "?", "%24" -> "$", etc.
+     * Unescape a range of text escaped with %xx notation.
+     * Same as URLDecoder.decode() with "+" kept as it is, but in one pass:
+     * a run of escapes is decoded as UTF-8, with malformed bytes replaced.
      *
-     * @param str The string to escape.
-     * @return The escaped string.
+     * @param text  Text to unescape.
+     * @param start Start of the range.
+     * @param end   End of the range.
+     * @return The unescaped text.
+     * @throws IllegalArgumentException If there is an invalid escape.
      */
-    private static String unescapeForEncodeUriCompatability(String str) {
-        return str.replace("%21", "!").replace("%7E", "~")
-                .replace("%27", "'").replace("%28", "(").replace("%29", ")")
-                .replace("%3B", ";").replace("%2F", "/").replace("%3F", "?")
-                .replace("%3A", ":").replace("%40", "@").replace("%26", "&")
-                .replace("%3D", "=").replace("%2B", "+").replace("%24", "$")
-                .replace("%2C", ",").replace("%23", "#");
+    private static String decodeURI(String text, int start, int end)
+            throws IllegalArgumentException {
+        int escape = text.indexOf('%', start);
+        if (escape == -1 || escape >= end) {
+            return text.substring(start, end);
+        }
+        StringBuilder out = new StringBuilder(end - start);
+        byte[] bytes = null;
+        int i = start;
+        while (i < end) {
+            if (escape == -1 || escape >= end) {
+                out.append(text, i, end);
+                break;
+            }
+            out.append(text, i, escape);
+            i = escape;
+            char c = '%';
+            int n = 0;
+            boolean ascii = true;
+            while (i + 2 < end && c == '%') {
+                int hi = Character.digit(text.charAt(i + 1), 16);
+                int lo = Character.digit(text.charAt(i + 2), 16);
+                if (hi == -1 && lo == 0 && text.charAt(i + 1) == '-') {
+                    // URLDecoder takes "%-0" for minus zero.
+                    hi = 0;
+                }
+                if (hi == -1 || lo == -1) {
+                    throw new IllegalArgumentException(
+                            "Illegal hex characters in escape (%) pattern");
+                }
+                int b = (hi << 4) | lo;
+                if (bytes == null) {
+                    bytes = new byte[(end - i) / 3];
+                }
+                bytes[n++] = (byte) b;
+                ascii &= b < 0x80;
+                i += 3;
+                if (i < end) {
+                    c = text.charAt(i);
+                }
+            }
+            if (i < end && c == '%') {
+                throw new IllegalArgumentException(
+                        "Incomplete trailing escape (%) pattern");
+            }
+            if (ascii) {
+                for (int x = 0; x < n; x++) {
+                    out.append((char) bytes[x]);
+                }
+            } else {
+                out.append(new String(bytes, 0, n, UTF_8));
+            }
+            escape = text.indexOf('%', i);
+        }
+        return out.toString();
     }
 }
@@ -2,12 +2,22 @@ package org.vaadin.aceeditor;
 
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EventObject;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import name.fraser.neil.plaintext.diff_match_patch;
+
 import com.vaadin.shared.Registration;
 import org.vaadin.aceeditor.client.AceAnnotation;
 import org.vaadin.aceeditor.client.AceAnnotation.MarkerAnnotation;
@@ -26,6 +36,7 @@ import org.vaadin.aceeditor.client.Util;
 
 import com.vaadin.annotations.JavaScript;
 import com.vaadin.annotations.StyleSheet;
+import com.vaadin.data.HasValue.ValueChangeEvent;
 import com.vaadin.event.FieldEvents.BlurEvent;
 import com.vaadin.event.FieldEvents.BlurListener;
 import com.vaadin.event.FieldEvents.BlurNotifier;
@@ -47,8 +58,6 @@ import com.vaadin.util.ReflectTools;
 public class AceEditor extends AbstractField<String> implements BlurNotifier,
 		FocusNotifier {
 
-    private String value;
-
     public static class DiffEvent extends Event {
 		public static String EVENT_ID = "aceeditor-diff";
 		private final ServerSideDocDiff diff;
@@ -94,12 +103,13 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 
 	public static class TextChangeEventImpl extends EventObject {
 		private final TextRange selection;
-		private final String text;
+		// The text is made a String only if asked for.
+		private final AceDoc doc;
 
-		private TextChangeEventImpl(final AceEditor ace, String text,
+		private TextChangeEventImpl(final AceEditor ace, AceDoc doc,
 				AceRange selection) {
 			super(ace);
-			this.text = text;
+			this.doc = doc;
 			this.selection = ace.getSelection();
 		}
 
@@ -115,7 +125,7 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 
 //		@Override
 		public String getText() {
-			return text;
+			return doc.getText();
 		}
 	}
 
@@ -147,12 +157,46 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 				TransportRange selection, boolean focused) {
 			clientChanged(diff, selection, focused);
 		}
+
+		@Override
+		public void selectionChanged(TransportRange selection) {
+			selectionFromClient(selection);
+		}
+
+		@Override
+		public void focusChanged(boolean focused) {
+			focusFromClient(focused);
+		}
 	};
 
 	private TextRange selection = new TextRange("", 0, 0, 0, 0);
 	// {startPos,endPos} or {startRow,startCol,endRow,endCol}
 	private Integer[] selectionToClient = null;
 	private AceDoc shadow = new AceDoc();
+	// Version of the shadow, see TransportDiff.version and
+	// TransportDiff.serverVersion.
+	private int clientVersion = 0;
+	private int serverVersion = 0;
+	// The serverVersion of the latest resync sent to the client. Diffs made
+	// by the client before it are dropped, the client sends them again.
+	private int resyncVersion = 0;
+	// Time spent on applying the diffs of the client since the previous
+	// reply, reported to the client for its ADAPTIVE text change mode.
+	private long syncNanos = 0L;
+	// What the server has changed in doc since the shadow.
+	private DocJournal journal = new DocJournal();
+
+	// Reused for the diffs of this editor so that its scratch buffers are too.
+	// Only used while holding the session lock, and dropped on detach.
+	private transient diff_match_patch dmp;
+	private int lineDiffThreshold = ServerSideDocDiff.DEFAULT_LINE_DIFF_THRESHOLD;
+	private long diffBudget = 0L;
+	private TextDiffEngine diffEngine = new MyersDiffEngine();
+	// Whether the client said it can read deltas, and whether it should get
+	// the whole document next, because the shadows didn't match.
+	private boolean clientAcceptsDelta = false;
+	private boolean resyncClient = false;
+	private boolean clientDiffRejected = false;
 
 	{
 		logger.setLevel(Level.WARNING);
@@ -172,9 +216,15 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 
     @Override
     protected void doSetValue(String s) {
-	    this.value = s;
+		journal.textReplaced();
+		doc = doc.withText(s);
     }
 
+	@Override
+	public String getEmptyValue() {
+		return "";
+	}
+
     public void addDiffListener(DiffListener listener) {
 		addListener(DiffEvent.EVENT_ID, DiffEvent.class, listener,
 				DiffListener.diffMethod);
@@ -205,6 +255,7 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 	 */
 	public String addMarker(AceMarker marker) {
 		doc = doc.withAdditionalMarker(marker);
+		journal.markerChanged(marker.getMarkerId());
 		markAsDirty();
 		return marker.getMarkerId();
 	}
@@ -233,11 +284,13 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 	public void addMarkerAnnotation(AceAnnotation ann, String markerId) {
 		doc = doc.withAdditionalMarkerAnnotation(new MarkerAnnotation(markerId,
 				ann));
+		journal.markerAnnotationsChanged();
 		markAsDirty();
 	}
 
 	public void addRowAnnotation(AceAnnotation ann, int row) {
 		doc = doc.withAdditionalRowAnnotation(new RowAnnotation(row, ann));
+		journal.rowAnnotationsChanged();
 		markAsDirty();
 	}
 
@@ -250,17 +303,52 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 	@Override
 	public void beforeClientResponse(boolean initial) {
 		super.beforeClientResponse(initial);
+		long start = System.nanoTime();
 		if (initial) {
 			getState().initialValue = doc.asTransport();
 			shadow = doc;
+			clientVersion = TransportDiff.FIRST_VERSION;
+			serverVersion = TransportDiff.FIRST_VERSION;
+			resyncVersion = 0;
+			journal.clear();
+		} else if (onRoundtrip && resyncClient) {
+			TransportDiff td = new TransportDiff();
+			td.resyncDoc = doc.asTransport();
+			td.rejected = clientDiffRejected;
+			shadow = doc;
+			td.version = clientVersion;
+			td.serverVersion = ++serverVersion;
+			resyncVersion = serverVersion;
+			journal.clear();
+			td.serverMicros = takeSyncMicros(start);
+			getRpcProxy(AceEditorClientRpc.class).diff(td);
+			resyncClient = false;
+			clientDiffRejected = false;
+			onRoundtrip = false;
+		} else if (onRoundtrip && journal.isEmpty()) {
+			TransportDiff td = new TransportDiff();
+			td.acknowledgeOnly = true;
+			td.version = clientVersion;
+			td.serverVersion = serverVersion;
+			td.baseChecksum = shadow.getTextChecksum();
+			td.serverMicros = takeSyncMicros(start);
+			getRpcProxy(AceEditorClientRpc.class).diff(td);
+
+			onRoundtrip = false;
 		} else if (onRoundtrip) {
-			ServerSideDocDiff diff = ServerSideDocDiff.diff(shadow, doc);
+			ServerSideDocDiff diff = ServerSideDocDiff.diff(shadow, doc, journal,
+					getDmp(), diffEngine);
 			shadow = doc;
-			TransportDiff td = diff.asTransport();
+			journal.clear();
+			TransportDiff td = getState(false).compactTransport && clientAcceptsDelta
+					? diff.asDeltaTransport() : diff.asTransport();
+			td.version = clientVersion;
+			td.serverVersion = serverVersion++;
+			td.serverMicros = takeSyncMicros(start);
 			getRpcProxy(AceEditorClientRpc.class).diff(td);
 
 			onRoundtrip = false;
-		} else if (true /* TODO !shadow.equals(doc) */) {
+		} else if (hasChangesForClient()) {
 			getRpcProxy(AceEditorClientRpc.class).changedOnServer();
 		}
 
@@ -268,7 +356,7 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 			// {startPos,endPos}
 			if (selectionToClient.length == 2) {
 				AceRange r = AceRange.fromPositions(selectionToClient[0],
-						selectionToClient[1], doc.getText());
+						selectionToClient[1], doc.getLineIndex());
 				getState().selection = r.asTransport();
 			}
 			// {startRow,startCol,endRow,endCol}
@@ -282,20 +370,35 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 		}
 	}
 
+	/**
+	 * Whether the client needs a roundtrip to get the changes made on the
+	 * server: to the document since the shadow, or a selection or a scroll
+	 * that it applies after the next diff.
+	 */
+	private boolean hasChangesForClient() {
+		return !journal.isEmpty() || selectionToClient != null
+				|| getState(false).selection != null
+				|| getState(false).scrollToRow != -1;
+	}
+
 	public void clearMarkerAnnotations() {
 		Set<MarkerAnnotation> manns = Collections.emptySet();
 		doc = doc.withMarkerAnnotations(manns);
+		journal.markerAnnotationsChanged();
 		markAsDirty();
 	}
 
 	public void clearMarkers() {
+		AceDoc doc1 = doc;
 		doc = doc.withoutMarkers();
+		journal.markersChanged(doc1.getMarkers(), doc.getMarkers());
 		markAsDirty();
 	}
 
 	public void clearRowAnnotations() {
 		Set<RowAnnotation> ranns = Collections.emptySet();
 		doc = doc.withRowAnnotations(ranns);
+		journal.rowAnnotationsChanged();
 		markAsDirty();
 	}
 
@@ -338,9 +441,96 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 
 	public void removeMarker(String markerId) {
 		doc = doc.withoutMarker(markerId);
+		journal.markerChanged(markerId);
 		markAsDirty();
 	}
 
+	/**
+	 * Replaces all the markers and marker annotations with the given ones at
+	 * once, for example with the findings of a checker that is run again on
+	 * every change.
+	 * 
+	 * A given marker that is the same as an existing one except for its id
+	 * keeps the id of the existing one, and its annotations are moved to
+	 * that id, so that only what really changed is sent to the client.
+	 * 
+	 * @param markers
+	 * @param markerAnnotations
+	 *            annotations of the given markers
+	 * @return the ids of the markers in the editor by their given ids
+	 */
+	public Map<String, String> replaceMarkersAndAnnotations(
+			Collection<AceMarker> markers,
+			Collection<MarkerAnnotation> markerAnnotations) {
+		Map<List<Object>, LinkedList<String>> existing = new HashMap<List<Object>, LinkedList<String>>();
+		for (AceMarker m : doc.getMarkers().values()) {
+			List<Object> key = markerContent(m);
+			LinkedList<String> same = existing.get(key);
+			if (same == null) {
+				same = new LinkedList<String>();
+				existing.put(key, same);
+			}
+			same.add(m.getMarkerId());
+		}
+
+		Map<String, String> ids = new HashMap<String, String>();
+		Map<String, AceMarker> newMarkers = new HashMap<String, AceMarker>();
+		List<AceMarker> unmatched = new ArrayList<AceMarker>();
+		for (AceMarker m : markers) {
+			LinkedList<String> same = existing.get(markerContent(m));
+			if (same == null || same.isEmpty()) {
+				unmatched.add(m);
+				continue;
+			}
+			String id = same.contains(m.getMarkerId()) ? m.getMarkerId()
+					: same.getFirst();
+			same.remove(id);
+			ids.put(m.getMarkerId(), id);
+			newMarkers.put(id, doc.getMarkers().get(id));
+		}
+		for (AceMarker m : unmatched) {
+			// The id may have been kept for another marker.
+			String id = newMarkers.containsKey(m.getMarkerId()) ? newMarkerId()
+					: m.getMarkerId();
+			ids.put(m.getMarkerId(), id);
+			newMarkers.put(id, id.equals(m.getMarkerId()) ? m : new AceMarker(
+					id, m.getRange(), m.getCssClass(), m.getType(),
+					m.isInFront(), m.getOnChange()));
+		}
+
+		Set<MarkerAnnotation> newAnns = new HashSet<MarkerAnnotation>();
+		for (MarkerAnnotation ma : markerAnnotations) {
+			String id = ids.get(ma.getMarkerId());
+			newAnns.add(id == null || id.equals(ma.getMarkerId()) ? ma
+					: new MarkerAnnotation(id, ma.getAnnotation()));
+		}
+
+		AceDoc doc1 = doc;
+		boolean markersChanged = !Util.sameMaps(doc1.getMarkers(), newMarkers);
+		boolean annsChanged = !Util.sameSets(doc1.getMarkerAnnotations(),
+				newAnns);
+		if (markersChanged) {
+			doc = doc.withMarkers(newMarkers);
+			journal.markersChanged(doc1.getMarkers(), doc.getMarkers());
+		}
+		if (annsChanged) {
+			doc = doc.withMarkerAnnotations(newAnns);
+			journal.markerAnnotationsChanged();
+		}
+		if (markersChanged || annsChanged) {
+			markAsDirty();
+		}
+		return ids;
+	}
+
+	/**
+	 * What a marker is apart from its id.
+	 */
+	private static List<Object> markerContent(AceMarker m) {
+		return Arrays.<Object> asList(m.getRange(), m.getCssClass(),
+				m.getType(), m.isInFront(), m.getOnChange());
+	}
+
 	public void removeSelectionChangeListener(SelectionChangeListener listener) {
 		removeListener(SelectionChangeEvent.EVENT_ID,
 				SelectionChangeEvent.class, listener);
@@ -383,11 +573,12 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 		if (this.doc.equals(doc)) {
 			return;
 		}
+		AceDoc oldDoc = this.doc;
+		journal.docChanged(oldDoc, doc);
 		this.doc = doc;
-		boolean wasReadOnly = isReadOnly();
-		setReadOnly(false);
-		setValue(doc.getText());
-		setReadOnly(wasReadOnly);
+		if (!oldDoc.hasSameText(doc)) {
+			fireValueChange(oldDoc, false);
+		}
 		markAsDirty();
 	}
 
@@ -414,7 +605,7 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 	// TODO
 	public void setSelection(int start, int end) {
 		setSelectionToClient(new Integer[] { start, end });
-		setInternalSelection(new TextRange(getValue(), start, end));
+		setInternalSelection(new TextRange(doc, start, end));
 	}
 
 	/**
@@ -435,7 +626,7 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 	public void setSelectionRowCol(int startRow, int startCol, int endRow,
 			int endCol) {
 		setSelectionToClient(new Integer[] { startRow, startCol, endRow, endCol });
-		setInternalSelection(new TextRange(doc.getText(), startRow, startCol,
+		setInternalSelection(new TextRange(doc, startRow, startCol,
 				endRow, endCol));
 	}
 
@@ -479,7 +670,7 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 	 * 
 	 */
 	public void scrollToPosition(int pos) {
-		int[] rowcol = Util.lineColFromCursorPos(getValue(), pos, 0);
+		int[] rowcol = doc.getLineIndex().getRowCol(pos);
 		scrollToRow(rowcol[0]);
 	}
 
@@ -577,10 +768,149 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 		getState().softTabs = softTabs;
 	}
 
+	/**
+	 * Sets the length of the changed part of the text above which the server
+	 * diffs it by lines first and refines only the changed hunks character by
+	 * character. This keeps the diffs of large documents fast and their
+	 * patches small. 0 means always diffing the whole changed part by
+	 * characters.
+	 * 
+	 * Default is {@link ServerSideDocDiff#DEFAULT_LINE_DIFF_THRESHOLD}.
+	 * 
+	 * @param chars
+	 */
+	public void setLineDiffThreshold(int chars) {
+		lineDiffThreshold = chars;
+	}
+
+	public int getLineDiffThreshold() {
+		return lineDiffThreshold;
+	}
+
+	/**
+	 * Sets the number of steps the server may spend on diffing the text
+	 * before it settles for a coarser diff. Unlike the default time limit,
+	 * this makes the diffs (and their size) the same however loaded the
+	 * server is. See {@link ServerSideDocDiff#isBudgetExhausted()}.
+	 * 
+	 * 0 (the default) means no budget, only the time limit.
+	 * 
+	 * @param steps
+	 */
+	public void setDiffBudget(long steps) {
+		diffBudget = steps;
+	}
+
+	public long getDiffBudget() {
+		return diffBudget;
+	}
+
+	/**
+	 * Sets the engine the server uses for diffing the text to send the
+	 * changes to the client. The default is {@link MyersDiffEngine}.
+	 * {@link HistogramDiffEngine} is faster on big documents with many
+	 * changed lines, such as generated or reformatted code.
+	 * 
+	 * @param engine
+	 */
+	public void setTextDiffEngine(TextDiffEngine engine) {
+		diffEngine = engine;
+	}
+
+	public TextDiffEngine getTextDiffEngine() {
+		return diffEngine;
+	}
+
+	/**
+	 * Sets whether the text changes are sent between the client and the
+	 * server as compact deltas of the shadow instead of patches with
+	 * context. A delta has no context and no escaping of the unchanged
+	 * text, which makes large pastes and reformats much smaller on the wire.
+	 * A checksum of the shadow is sent with each delta, and if the client
+	 * and the server disagree on the shadow the whole document is sent once.
+	 * 
+	 * The server only sends deltas to a client that said it can read them.
+	 * Default is false.
+	 * 
+	 * @param compact
+	 */
+	public void setCompactTransport(boolean compact) {
+		getState().compactTransport = compact;
+	}
+
+	public boolean isCompactTransport() {
+		return getState(false).compactTransport;
+	}
+
+	/**
+	 * Sets whether the client sends its text changes as the edits made in
+	 * the editor instead of a diff of the whole text. The edits are applied
+	 * to the shadow as they are, so neither the client nor the server has to
+	 * diff the document when the user types. Whenever the client doesn't know
+	 * the exact edits since the shadow, for example after the text was
+	 * changed from the server during a roundtrip, it sends a diff once.
+	 * 
+	 * Default is false.
+	 * 
+	 * @param edits
+	 */
+	public void setEditTransport(boolean edits) {
+		getState().editTransport = edits;
+	}
+
+	public boolean isEditTransport() {
+		return getState(false).editTransport;
+	}
+
+	/**
+	 * Makes the client send its text changes after a pause that it adapts
+	 * to the measured roundtrip time and to how long syncing takes the
+	 * client and the server, within the given bounds. Small documents on
+	 * fast connections are synced almost right away, while the changes to
+	 * large documents on slow connections are gathered into fewer requests.
+	 * 
+	 * @param minMs
+	 *            shortest pause in milliseconds
+	 * @param maxMs
+	 *            longest pause in milliseconds
+	 */
+	public void setAdaptiveTextChangeTimeout(int minMs, int maxMs) {
+		getState().changeMode = "ADAPTIVE";
+		getState().changeTimeoutMin = minMs;
+		getState().changeTimeoutMax = maxMs;
+	}
+
+	/**
+	 * Sets how many diffs the client may send before the server has
+	 * acknowledged the first of them. With more than one, a fast typist's
+	 * changes are sent as they are made instead of waiting for the previous
+	 * roundtrip. The server applies them in order, and if it has changed
+	 * the document meanwhile, applies them as patches with context.
+	 * 
+	 * Default is 1, waiting for each roundtrip.
+	 * 
+	 * @param diffs
+	 */
+	public void setMaxDiffsInFlight(int diffs) {
+		getState().maxDiffsInFlight = diffs;
+	}
+
+	public int getMaxDiffsInFlight() {
+		return getState(false).maxDiffsInFlight;
+	}
+
 	protected void clientChanged(TransportDiff diff, TransportRange selection,
 			boolean focused) {
+		long start = System.nanoTime();
 		diffFromClient(diff);
+		syncNanos += System.nanoTime() - start;
 		selectionFromClient(selection);
+		focusFromClient(focused);
+
+		clearStateFromServerToClient();
+	}
+
+	private void focusFromClient(boolean focused) {
 		if (latestFocus != focused) {
 			latestFocus = focused;
 			if (focused) {
@@ -589,8 +919,16 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 				fireBlur();
 			}
 		}
+	}
 
-		clearStateFromServerToClient();
+	/**
+	 * Returns the time spent on syncing with the client since the previous
+	 * reply, including the reply started at the given time, and starts over.
+	 */
+	private int takeSyncMicros(long replyStart) {
+		long nanos = syncNanos + System.nanoTime() - replyStart;
+		syncNanos = 0;
+		return (int) Math.min(Integer.MAX_VALUE, nanos / 1000);
 	}
 
 	// Here we clear the selection etc. we sent earlier.
@@ -603,6 +941,21 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 		getState().scrollToRow = -1;
 	}
 
+	@Override
+	public void detach() {
+		super.detach();
+		dmp = null;
+	}
+
+	private diff_match_patch getDmp() {
+		if (dmp == null) {
+			dmp = new diff_match_patch();
+		}
+		dmp.Diff_LineModeThreshold = lineDiffThreshold;
+		dmp.Diff_Budget = diffBudget;
+		return dmp;
+	}
+
 	@Override
 	protected AceEditorState getState() {
 		return (AceEditorState) super.getState();
@@ -613,33 +966,136 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 		return (AceEditorState) super.getState(markAsDirty);
 	}
 
-	@Override
-    public void setValue(String newValue) {
-		super.setValue(newValue);
-		doc = doc.withText(newValue);
+	/**
+	 * Replaces the characters [start,end) of the text with the given text.
+	 * 
+	 * Unlike with {@link #setValue(String)}, the server knows which part of
+	 * the text changed, so only that part is diffed to send the change to
+	 * the client. The text isn't copied either, see
+	 * {@link AceDoc#withTextReplaced(int, int, String)}.
+	 * 
+	 * @param start
+	 * @param end
+	 * @param text
+	 */
+	public void replaceText(int start, int end, String text) {
+		AceDoc oldDoc = doc;
+		int length = oldDoc.getTextLength();
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("Invalid range [" + start
+					+ "," + end + ") of a text of length " + length);
+		}
+		if (start == end && (text == null || text.isEmpty())) {
+			return;
+		}
+		journal.textEdited(start, end, length);
+		doc = oldDoc.withTextReplaced(start, end, text);
+		fireValueChange(oldDoc, false);
+		markAsDirty();
+	}
+
+	/**
+	 * Inserts the given text at pos characters from the beginning of the
+	 * text. See {@link #replaceText(int, int, String)}.
+	 * 
+	 * @param pos
+	 * @param text
+	 */
+	public void insertText(int pos, String text) {
+		replaceText(pos, pos, text);
 	}
 
     @Override
     public String getValue() {
-        return value;
+        return doc.getText();
     }
 
+	/**
+	 * Fires a value change from the text of the given document to the
+	 * current one. The old text is made a String only if someone listens.
+	 */
+	private void fireValueChange(AceDoc oldDoc, boolean userOriginated) {
+		if (!getListeners(ValueChangeEvent.class).isEmpty()) {
+			fireEvent(new ValueChangeEvent<String>(this, oldDoc.getText(),
+					userOriginated));
+		}
+	}
+
     private void diffFromClient(TransportDiff d) {
-		String previousText = doc.getText();
-		ServerSideDocDiff diff = ServerSideDocDiff.fromTransportDiff(d);
-		shadow = diff.applyTo(shadow);
-		doc = diff.applyTo(doc);
-		if (!TextUtils.equals(doc.getText(), previousText)) {
-			setValue(doc.getText(), true);
+		clientAcceptsDelta = d.acceptsDelta;
+		if (d.resync) {
+			resyncClient = true;
+		}
+		if (d.version != 0 && d.serverVersion < resyncVersion) {
+			// Made before the client got the whole document, and applied to
+			// it there.
+			return;
+		}
+		// A client asking for a resync knows its shadow is off, and sends
+		// patches that can be applied anyway.
+		boolean versioned = d.version != 0 && !d.resync;
+		if (versioned && (d.version != clientVersion
+				|| d.serverVersion > serverVersion)) {
+			rejectClientDiff("Client diff is for version " + d.version + "/"
+					+ d.serverVersion + " of the shadow, not " + clientVersion
+					+ "/" + serverVersion);
+			return;
+		}
+		// Whether the client made the diff before getting our latest diffs,
+		// so that it only applies to the shadow as patches with context.
+		boolean crossing = versioned && d.serverVersion < serverVersion;
+		boolean exact = d.delta != null || d.edits != null;
+		if (crossing && exact) {
+			rejectClientDiff("Client diff is for an older shadow");
+			return;
+		}
+		if ((versioned && !crossing || !versioned && exact)
+				&& d.baseChecksum != shadow.getTextChecksum()) {
+			rejectClientDiff("Client diff doesn't match the shadow");
+			return;
+		}
+		AceDoc previousDoc = doc;
+		ServerSideDocDiff diff;
+		try {
+			diff = ServerSideDocDiff.fromTransportDiff(d, shadow);
+		} catch (IllegalArgumentException e) {
+			rejectClientDiff("Client diff doesn't fit the shadow: "
+					+ e.getMessage());
+			return;
+		}
+		shadow = diff.applyTo(shadow, getDmp(), diffEngine);
+		if (d.version != 0) {
+			clientVersion = d.version + 1;
+		}
+		doc = diff.applyTo(doc, getDmp(), diffEngine);
+		boolean identity = diff.isIdentity();
+		if (!identity && journal.hasTextChanges()) {
+			// The diff may have landed differently on the shadow and on the
+			// text edited by the server.
+			journal.invalidate();
+		}
+		if (!doc.hasSameText(previousDoc)) {
+			fireValueChange(previousDoc, true);
 			fireTextChangeEvent();
 		}
-		if (!diff.isIdentity()) {
+		if (!identity) {
 			fireDiff(diff);
 		}
 		onRoundtrip = true;
 		markAsDirty();
 	}
 
+	/**
+	 * Drops a diff from the client and sends it the whole document instead.
+	 */
+	private void rejectClientDiff(String reason) {
+		logger.warning(reason + ", resyncing");
+		resyncClient = true;
+		clientDiffRejected = true;
+		onRoundtrip = true;
+		markAsDirty();
+	}
+
 	private void fireBlur() {
 		fireEvent(new BlurEvent(this));
 	}
@@ -660,7 +1116,7 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 		if (!isFiringTextChangeEvent) {
 			isFiringTextChangeEvent = true;
 			try {
-				fireEvent(new TextChangeEventImpl(this, getValue(), selection));
+				fireEvent(new TextChangeEventImpl(this, doc, selection));
 			} finally {
 				isFiringTextChangeEvent = false;
 			}
@@ -672,12 +1128,12 @@ public class AceEditor extends AbstractField<String> implements BlurNotifier,
 	}
 
 	private void selectionFromClient(TransportRange sel) {
-		TextRange newSel = new TextRange(doc.getText(),
-				AceRange.fromTransport(sel));
+		TextRange newSel = new TextRange(doc, AceRange.fromTransport(sel));
 		if (newSel.equals(selection)) {
 			return;
 		}
-		setInternalSelection(newSel);
+		// Not to the state, the client has it already.
+		this.selection = newSel;
 		fireSelectionChanged();
 	}
 
@@ -0,0 +1,184 @@
+package org.vaadin.aceeditor;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.vaadin.aceeditor.client.AceDoc;
+import org.vaadin.aceeditor.client.AceMarker;
+import org.vaadin.aceeditor.client.Util;
+
+/**
+ * What the server has changed in the document of an {@link AceEditor} since
+ * the shadow, so that the diff to the client can be made from the changed
+ * parts only (see
+ * {@link ServerSideDocDiff#diff(AceDoc, AceDoc, DocJournal, name.fraser.neil.plaintext.diff_match_patch, TextDiffEngine)}).
+ *
+ * The text operations are folded into the start and the end of the text
+ * that none of them touched, and the marker changes into the ids of the
+ * changed markers.
+ */
+@SuppressWarnings("serial")
+class DocJournal implements Serializable {
+
+	// Lengths of the start and the end of the text that are the same in the
+	// shadow and the document, if textEdited. Unknown if textReplaced.
+	private boolean textEdited;
+	private boolean textReplaced;
+	private int prefix;
+	private int suffix;
+
+	// Ids of the added, removed and changed markers, or null if any may
+	// have changed.
+	private Set<String> markerIds = new HashSet<String>();
+	private boolean rowAnnotations;
+	private boolean markerAnnotations;
+
+	/**
+	 * Starts over from a shadow that is the same as the document.
+	 */
+	void clear() {
+		textEdited = false;
+		textReplaced = false;
+		markerIds = new HashSet<String>();
+		rowAnnotations = false;
+		markerAnnotations = false;
+	}
+
+	/**
+	 * Forgets what has changed, so that the whole documents are diffed.
+	 */
+	void invalidate() {
+		textReplaced = true;
+		markerIds = null;
+		rowAnnotations = true;
+		markerAnnotations = true;
+	}
+
+	/**
+	 * Records replacing the characters [start,end) of a text of the given
+	 * length.
+	 */
+	void textEdited(int start, int end, int length) {
+		if (textReplaced) {
+			return;
+		}
+		if (textEdited) {
+			prefix = Math.min(prefix, start);
+			suffix = Math.min(suffix, length - end);
+		} else {
+			textEdited = true;
+			prefix = start;
+			suffix = length - end;
+		}
+	}
+
+	/**
+	 * Records replacing the text with an unrelated one.
+	 */
+	void textReplaced() {
+		textReplaced = true;
+	}
+
+	void markerChanged(String markerId) {
+		if (markerIds != null) {
+			markerIds.add(markerId);
+		}
+	}
+
+	void markersChanged(Map<String, AceMarker> markers1,
+			Map<String, AceMarker> markers2) {
+		if (markerIds == null) {
+			return;
+		}
+		for (Entry<String, AceMarker> e : markers1.entrySet()) {
+			if (!e.getValue().equals(markers2.get(e.getKey()))) {
+				markerIds.add(e.getKey());
+			}
+		}
+		for (String id : markers2.keySet()) {
+			if (!markers1.containsKey(id)) {
+				markerIds.add(id);
+			}
+		}
+	}
+
+	void rowAnnotationsChanged() {
+		rowAnnotations = true;
+	}
+
+	void markerAnnotationsChanged() {
+		markerAnnotations = true;
+	}
+
+	/**
+	 * Records the changes between two documents given in whole, comparing
+	 * their texts only for equality.
+	 */
+	void docChanged(AceDoc doc1, AceDoc doc2) {
+		if (!doc1.hasSameText(doc2)) {
+			textReplaced();
+		}
+		markersChanged(doc1.getMarkers(), doc2.getMarkers());
+		if (!Util.sameSets(doc1.getRowAnnotations(), doc2.getRowAnnotations())) {
+			rowAnnotationsChanged();
+		}
+		if (!Util.sameSets(doc1.getMarkerAnnotations(), doc2.getMarkerAnnotations())) {
+			markerAnnotationsChanged();
+		}
+	}
+
+	/**
+	 * Whether nothing has changed since the shadow.
+	 */
+	boolean isEmpty() {
+		return !hasTextChanges() && markerIds != null && markerIds.isEmpty()
+				&& !rowAnnotations && !markerAnnotations;
+	}
+
+	boolean hasTextChanges() {
+		return textEdited || textReplaced;
+	}
+
+	/**
+	 * Whether the text is known only to have changed between
+	 * {@link #getPrefix(int)} and {@link #getSuffix()}. If not, it has to
+	 * be diffed in whole.
+	 */
+	boolean isTextBounded() {
+		return !textReplaced;
+	}
+
+	/**
+	 * Length of the start of the text that hasn't changed, if
+	 * {@link #isTextBounded()}. The whole text if nothing has.
+	 */
+	int getPrefix(int length) {
+		return textEdited ? prefix : length;
+	}
+
+	/**
+	 * Length of the end of the text that hasn't changed, if
+	 * {@link #isTextBounded()}.
+	 */
+	int getSuffix() {
+		return textEdited ? suffix : 0;
+	}
+
+	/**
+	 * Ids of the markers that may have changed, or null if any may have.
+	 */
+	Set<String> getMarkerIds() {
+		return markerIds;
+	}
+
+	boolean hasRowAnnotationChanges() {
+		return rowAnnotations;
+	}
+
+	boolean hasMarkerAnnotationChanges() {
+		return markerAnnotations;
+	}
+}
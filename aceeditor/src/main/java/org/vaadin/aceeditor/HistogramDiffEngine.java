@@ -0,0 +1,216 @@
+package org.vaadin.aceeditor;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.DiffList;
+
+/**
+ * A {@link TextDiffEngine} that matches whole lines first, the way
+ * <code>git diff --histogram</code> does. It picks the matching lines
+ * that occur the fewest times in the old text as anchors, which makes the
+ * matched blocks follow the structure of the code. Only the text between
+ * the matched blocks is diffed character by character, by
+ * {@link diff_match_patch#diff_anchored(String, String, int[], boolean)}.
+ *
+ * On big documents with many changed lines this is much faster than a plain
+ * Myers diff and gives smaller, more stable patches.
+ */
+@SuppressWarnings("serial")
+public class HistogramDiffEngine implements TextDiffEngine {
+
+	// Lines occurring more often than this in a region are not used as
+	// anchors. A region without anchors is left to diff_match_patch.
+	private static final int MAX_CHAIN_LENGTH = 64;
+
+	// Kinds of pending work in diff().
+	private static final int REGION = 0;
+	private static final int EQUAL = 1;
+
+	@Override
+	public DiffList diff(diff_match_patch dmp, String text1, String text2) {
+		int length1 = text1.length();
+		int length2 = text2.length();
+		// Only look at the lines of the changed part.
+		int[] common = LineIds.commonLines(text1, text2,
+				dmp.diff_commonPrefix(text1, text2),
+				dmp.diff_commonSuffix(text1, text2));
+		int prefix = common[0];
+		int suffix = common[1];
+
+		Anchors anchors = new Anchors();
+		anchors.add(0, 0, prefix);
+		LineIds lines = new LineIds(text1, prefix, length1 - suffix, text2,
+				prefix, length2 - suffix);
+		Histogram histogram = new Histogram(lines);
+		// The pending work, earliest first. Popping a piece always gives
+		// the one that follows the anchors found so far.
+		ArrayDeque<int[]> work = new ArrayDeque<int[]>();
+		work.push(new int[] { REGION, 0, lines.count1, 0, lines.count2 });
+		while (!work.isEmpty()) {
+			int[] w = work.pop();
+			if (w[0] == EQUAL) {
+				anchors.add(lines.start1[w[1]], lines.start2[w[3]],
+						lines.start1[w[2]] - lines.start1[w[1]]);
+			} else {
+				split(histogram, w[1], w[2], w[3], w[4], work);
+			}
+		}
+		anchors.add(length1 - suffix, length2 - suffix, suffix);
+		return dmp.diff_anchored(text1, text2, anchors.toArray(), true);
+	}
+
+	/**
+	 * Splits the region of lines [a0, a1) of text1 and [b0, b1) of text2 at
+	 * its common prefix and suffix or at its best anchor. A region that
+	 * can't be split is left for diff_match_patch.
+	 */
+	private static void split(Histogram h, int a0, int a1, int b0, int b1,
+			ArrayDeque<int[]> work) {
+		int[] ids1 = h.lines.ids1;
+		int[] ids2 = h.lines.ids2;
+		int prefix = 0;
+		while (a0 + prefix < a1 && b0 + prefix < b1
+				&& ids1[a0 + prefix] == ids2[b0 + prefix]) {
+			++prefix;
+		}
+		int suffix = 0;
+		while (a1 - suffix > a0 + prefix && b1 - suffix > b0 + prefix
+				&& ids1[a1 - suffix - 1] == ids2[b1 - suffix - 1]) {
+			++suffix;
+		}
+		if (prefix > 0 || suffix > 0) {
+			if (suffix > 0) {
+				work.push(new int[] { EQUAL, a1 - suffix, a1, b1 - suffix });
+			}
+			work.push(new int[] { REGION, a0 + prefix, a1 - suffix,
+					b0 + prefix, b1 - suffix });
+			if (prefix > 0) {
+				work.push(new int[] { EQUAL, a0, a0 + prefix, b0 });
+			}
+			return;
+		}
+		if (a0 == a1 || b0 == b1) {
+			return;
+		}
+		int[] anchor = findAnchor(h, a0, a1, b0, b1);
+		if (anchor == null) {
+			return;
+		}
+		int as = anchor[0];
+		int bs = anchor[1];
+		int len = anchor[2];
+		work.push(new int[] { REGION, as + len, a1, bs + len, b1 });
+		work.push(new int[] { EQUAL, as, as + len, bs });
+		work.push(new int[] { REGION, a0, as, b0, bs });
+	}
+
+	/**
+	 * Growing list of {start1, start2, length} triples.
+	 */
+	private static class Anchors {
+		private int[] items = new int[48];
+		private int size;
+
+		private void add(int start1, int start2, int length) {
+			if (length == 0) {
+				return;
+			}
+			if (size + 3 > items.length) {
+				items = Arrays.copyOf(items, items.length * 2);
+			}
+			items[size++] = start1;
+			items[size++] = start2;
+			items[size++] = length;
+		}
+
+		private int[] toArray() {
+			return Arrays.copyOf(items, size);
+		}
+	}
+
+	/**
+	 * Finds the longest run of matching lines whose rarest line occurs the
+	 * fewest times in the region of text1.
+	 *
+	 * @return {start in text1, start in text2, number of lines}, or null if
+	 *         there's no usable anchor
+	 */
+	private static int[] findAnchor(Histogram h, int a0, int a1, int b0,
+			int b1) {
+		int[] ids1 = h.lines.ids1;
+		int[] ids2 = h.lines.ids2;
+		int[] count = h.count;
+		int[] head = h.head;
+		int[] next = h.next;
+		for (int a = a1 - 1; a >= a0; --a) {
+			int id = ids1[a];
+			next[a] = count[id] == 0 ? -1 : head[id];
+			head[id] = a;
+			++count[id];
+		}
+		int bestA = -1;
+		int bestB = -1;
+		int bestLength = 0;
+		int bestCount = MAX_CHAIN_LENGTH + 1;
+		int b = b0;
+		while (b < b1) {
+			int nextB = b + 1;
+			int c = count[ids2[b]];
+			if (c != 0 && c <= bestCount) {
+				for (int a = head[ids2[b]]; a != -1; a = next[a]) {
+					int rarest = c;
+					int as = a;
+					int bs = b;
+					while (as > a0 && bs > b0 && ids1[as - 1] == ids2[bs - 1]) {
+						--as;
+						--bs;
+						rarest = Math.min(rarest, count[ids1[as]]);
+					}
+					int ae = a + 1;
+					int be = b + 1;
+					while (ae < a1 && be < b1 && ids1[ae] == ids2[be]) {
+						rarest = Math.min(rarest, count[ids1[ae]]);
+						++ae;
+						++be;
+					}
+					if (rarest < bestCount
+							|| (rarest == bestCount && ae - as > bestLength)) {
+						bestA = as;
+						bestB = bs;
+						bestLength = ae - as;
+						bestCount = rarest;
+					}
+					nextB = Math.max(nextB, be);
+				}
+			}
+			b = nextB;
+		}
+		for (int a = a0; a < a1; ++a) {
+			count[ids1[a]] = 0;
+		}
+		return bestA == -1 ? null : new int[] { bestA, bestB, bestLength };
+	}
+
+	/**
+	 * The lines of the changed part and the occurrences of the lines in the
+	 * region being split.
+	 */
+	private static class Histogram {
+		private final LineIds lines;
+		// Occurrences of each id in the region of text1 being split.
+		private final int[] count;
+		// First line of each id in the region, and the next line with the
+		// same id for each line.
+		private final int[] head;
+		private final int[] next;
+
+		private Histogram(LineIds lines) {
+			this.lines = lines;
+			count = new int[lines.distinct];
+			head = new int[lines.distinct];
+			next = new int[lines.count1];
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package org.vaadin.aceeditor;
+
+/**
+ * The lines of a range of two texts, with equal lines having equal ids.
+ * Used by the line-based {@link TextDiffEngine}s.
+ */
+class LineIds {
+	final String text1;
+	final String text2;
+	final int count1;
+	final int count2;
+	// Start of each line, and the end of the range as the last element.
+	final int[] start1;
+	final int[] start2;
+	final int[] ids1;
+	final int[] ids2;
+	// Number of distinct lines.
+	final int distinct;
+
+	LineIds(String text1, int from1, int to1, String text2, int from2,
+			int to2) {
+		this.text1 = text1;
+		this.text2 = text2;
+		start1 = lineStarts(text1, from1, to1);
+		start2 = lineStarts(text2, from2, to2);
+		count1 = start1.length - 1;
+		count2 = start2.length - 1;
+		ids1 = new int[count1];
+		ids2 = new int[count2];
+		distinct = assignIds();
+	}
+
+	/**
+	 * @return The common prefix and suffix of the texts, shrunk to whole
+	 *         lines, as {prefix, suffix}.
+	 */
+	static int[] commonLines(String text1, String text2, int prefix,
+			int suffix) {
+		int length1 = text1.length();
+		suffix = Math.min(suffix,
+				Math.min(length1, text2.length()) - prefix);
+		prefix = text1.lastIndexOf('\n', prefix - 1) + 1;
+		int suffixLine = text1.indexOf('\n', length1 - suffix);
+		suffix = suffixLine == -1 ? 0 : length1 - suffixLine - 1;
+		return new int[] { prefix, suffix };
+	}
+
+	private static int[] lineStarts(String text, int from, int to) {
+		int newlines = 0;
+		for (int i = from; i < to; ++i) {
+			if (text.charAt(i) == '\n') {
+				++newlines;
+			}
+		}
+		int lines = newlines
+				+ (to > from && text.charAt(to - 1) != '\n' ? 1 : 0);
+		int[] starts = new int[lines + 1];
+		int pos = from;
+		for (int i = 0; i < lines; ++i) {
+			starts[i] = pos;
+			int nl = text.indexOf('\n', pos);
+			pos = nl == -1 || nl >= to ? to : nl + 1;
+		}
+		starts[lines] = to;
+		return starts;
+	}
+
+	/**
+	 * Gives equal lines equal ids with an open addressing hash table of line
+	 * references, without creating a string per line.
+	 *
+	 * @return number of distinct lines
+	 */
+	private int assignIds() {
+		int total = count1 + count2;
+		int capacity = Integer.highestOneBit(Math.max(2, total) * 2 - 1) << 1;
+		int mask = capacity - 1;
+		// Line reference + 1 (references to text2 lines follow the text1
+		// ones) or 0 for an empty slot.
+		int[] slots = new int[capacity];
+		int[] slotIds = new int[capacity];
+		int ids = 0;
+		for (int ref = 0; ref < total; ++ref) {
+			String text = ref < count1 ? text1 : text2;
+			int[] starts = ref < count1 ? start1 : start2;
+			int line = ref < count1 ? ref : ref - count1;
+			int start = starts[line];
+			int end = starts[line + 1];
+			int slot = hash(text, start, end) & mask;
+			int id = -1;
+			while (slots[slot] != 0) {
+				int other = slots[slot] - 1;
+				String otherText = other < count1 ? text1 : text2;
+				int[] otherStarts = other < count1 ? start1 : start2;
+				int otherLine = other < count1 ? other : other - count1;
+				int otherStart = otherStarts[otherLine];
+				if (otherStarts[otherLine + 1] - otherStart == end - start
+						&& text.regionMatches(start, otherText, otherStart,
+								end - start)) {
+					id = slotIds[slot];
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (id == -1) {
+				id = ids++;
+				slots[slot] = ref + 1;
+				slotIds[slot] = id;
+			}
+			if (ref < count1) {
+				ids1[line] = id;
+			} else {
+				ids2[line] = id;
+			}
+		}
+		return ids;
+	}
+
+	private static int hash(String text, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; ++i) {
+			h = 31 * h + text.charAt(i);
+		}
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,17 @@
+package org.vaadin.aceeditor;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.DiffList;
+
+/**
+ * The default {@link TextDiffEngine}: the Myers diff of diff_match_patch,
+ * the same algorithm the client uses.
+ */
+@SuppressWarnings("serial")
+public class MyersDiffEngine implements TextDiffEngine {
+
+	@Override
+	public DiffList diff(diff_match_patch dmp, String text1, String text2) {
+		return dmp.diff_list(text1, text2, true);
+	}
+}
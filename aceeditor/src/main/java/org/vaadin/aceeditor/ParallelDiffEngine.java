@@ -0,0 +1,243 @@
+package org.vaadin.aceeditor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.DiffList;
+
+/**
+ * A {@link TextDiffEngine} for very large documents that diffs parts of the
+ * texts in parallel on a {@link ForkJoinPool}.
+ *
+ * The texts are cut at lines that occur exactly once in both of them (and in
+ * the same order), so the parts can be diffed independently. The diffs of the
+ * parts are joined into one diff, from which the patches are made as usual.
+ *
+ * Texts shorter than the minimum length, or that can't be cut, are diffed on
+ * the calling thread like {@link MyersDiffEngine} does.
+ */
+@SuppressWarnings("serial")
+public class ParallelDiffEngine implements TextDiffEngine {
+
+	/**
+	 * Default for the minimum length of text for diffing in parallel.
+	 */
+	public static final int DEFAULT_MIN_LENGTH = 256 * 1024;
+
+	// The texts are cut into as many parts as the unique lines allow, but not
+	// into parts shorter than this (or than the minimum length, if that is
+	// less). Diffing many small parts is cheaper than a few big ones, even
+	// if there are more parts than threads.
+	private static final int MIN_PART_LENGTH = 4 * 1024;
+
+	private final int minLength;
+
+	private transient ForkJoinPool pool;
+
+	/**
+	 * A parallel engine using the common pool, for texts of at least
+	 * {@link #DEFAULT_MIN_LENGTH} characters.
+	 */
+	public ParallelDiffEngine() {
+		this(null, DEFAULT_MIN_LENGTH);
+	}
+
+	/**
+	 * @param pool
+	 *            the pool to diff on, or null for the common pool
+	 * @param minLength
+	 *            minimum length of the changed part of the text for diffing in
+	 *            parallel
+	 */
+	public ParallelDiffEngine(ForkJoinPool pool, int minLength) {
+		this.pool = pool;
+		this.minLength = Math.max(1, minLength);
+	}
+
+	@Override
+	public DiffList diff(diff_match_patch dmp, String text1, String text2) {
+		int[] common = LineIds.commonLines(text1, text2,
+				dmp.diff_commonPrefix(text1, text2),
+				dmp.diff_commonSuffix(text1, text2));
+		int prefix = common[0];
+		int suffix = common[1];
+		int end1 = text1.length() - suffix;
+		int end2 = text2.length() - suffix;
+		if (Math.max(end1, end2) - prefix < minLength) {
+			return dmp.diff_list(text1, text2, true);
+		}
+
+		ForkJoinPool p = pool != null ? pool : ForkJoinPool.commonPool();
+		int minPart = Math.min(minLength, MIN_PART_LENGTH);
+		int[] cuts = cuts(new LineIds(text1, prefix, end1, text2, prefix,
+				end2), minPart);
+		if (cuts.length == 0) {
+			return dmp.diff_list(text1, text2, true);
+		}
+
+		long deadline = dmp.Diff_Timeout > 0 && dmp.Diff_Budget <= 0 ? System
+				.currentTimeMillis() + (long) (dmp.Diff_Timeout * 1000) : 0;
+		List<Part> parts = new ArrayList<Part>(cuts.length / 2 + 1);
+		int start1 = 0;
+		int start2 = 0;
+		for (int i = 0; i <= cuts.length; i += 2) {
+			int next1 = i < cuts.length ? cuts[i] : text1.length();
+			int next2 = i < cuts.length ? cuts[i + 1] : text2.length();
+			Part part = new Part(dmp, text1, start1, next1, text2, start2,
+					next2, deadline);
+			parts.add(part);
+			p.execute(part);
+			start1 = next1;
+			start2 = next2;
+		}
+		List<DiffList> diffs = new ArrayList<DiffList>(parts.size());
+		for (Part part : parts) {
+			diffs.add(part.join());
+		}
+		return dmp.diff_concat(diffs);
+	}
+
+	/**
+	 * Picks the places where to cut the texts: starts of lines that occur
+	 * once in both texts, in the same order, at least minPart characters
+	 * apart.
+	 *
+	 * @return {position in text1, position in text2} pairs
+	 */
+	private static int[] cuts(LineIds lines, int minPart) {
+		int[] count1 = new int[lines.distinct];
+		int[] count2 = new int[lines.distinct];
+		int[] line2 = new int[lines.distinct];
+		for (int a = 0; a < lines.count1; ++a) {
+			++count1[lines.ids1[a]];
+		}
+		for (int b = 0; b < lines.count2; ++b) {
+			++count2[lines.ids2[b]];
+			line2[lines.ids2[b]] = b;
+		}
+		// The unique lines of text1 and their lines in text2.
+		int[] uniqueA = new int[lines.count1];
+		int[] uniqueB = new int[lines.count1];
+		int unique = 0;
+		for (int a = 0; a < lines.count1; ++a) {
+			int id = lines.ids1[a];
+			if (count1[id] == 1 && count2[id] == 1) {
+				uniqueA[unique] = a;
+				uniqueB[unique] = line2[id];
+				++unique;
+			}
+		}
+		int[] matched = longestIncreasing(uniqueB, unique);
+
+		int[] cuts = new int[16];
+		int n = 0;
+		int last1 = lines.start1[0];
+		int end1 = lines.start1[lines.count1];
+		int end2 = lines.start2[lines.count2];
+		for (int i : matched) {
+			int pos1 = lines.start1[uniqueA[i]];
+			int pos2 = lines.start2[uniqueB[i]];
+			if (pos1 - last1 >= minPart && end1 - pos1 >= minPart
+					&& end2 - pos2 >= minPart / 2) {
+				if (n == cuts.length) {
+					cuts = Arrays.copyOf(cuts, n * 2);
+				}
+				cuts[n++] = pos1;
+				cuts[n++] = pos2;
+				last1 = pos1;
+			}
+		}
+		return Arrays.copyOf(cuts, n);
+	}
+
+	/**
+	 * Patience sorting.
+	 *
+	 * @return indexes of a longest strictly increasing subsequence of the
+	 *         first n values, in order
+	 */
+	private static int[] longestIncreasing(int[] values, int n) {
+		// Index of the smallest last value of an increasing subsequence of
+		// each length, and the previous element of each element.
+		int[] tails = new int[n];
+		int[] previous = new int[n];
+		int length = 0;
+		for (int i = 0; i < n; ++i) {
+			int lo = 0;
+			int hi = length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (values[tails[mid]] < values[i]) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			previous[i] = lo > 0 ? tails[lo - 1] : -1;
+			tails[lo] = i;
+			if (lo == length) {
+				++length;
+			}
+		}
+		int[] result = new int[length];
+		int k = length > 0 ? tails[length - 1] : -1;
+		for (int i = length - 1; i >= 0; --i) {
+			result[i] = k;
+			k = previous[k];
+		}
+		return result;
+	}
+
+	/**
+	 * Diff of one part, with its own diff_match_patch set up like the one
+	 * given to the engine. A step budget is shared between the parts by
+	 * their length.
+	 */
+	private static class Part extends RecursiveTask<DiffList> {
+		private final String text1;
+		private final int start1;
+		private final int end1;
+		private final String text2;
+		private final int start2;
+		private final int end2;
+		private final long deadline;
+		private final diff_match_patch dmp = new diff_match_patch();
+
+		private Part(diff_match_patch settings, String text1, int start1,
+				int end1, String text2, int start2, int end2, long deadline) {
+			this.text1 = text1;
+			this.start1 = start1;
+			this.end1 = end1;
+			this.text2 = text2;
+			this.start2 = start2;
+			this.end2 = end2;
+			this.deadline = deadline;
+			dmp.Diff_EditCost = settings.Diff_EditCost;
+			dmp.Diff_LineModeThreshold = settings.Diff_LineModeThreshold;
+			dmp.Diff_HunkMaxLength = settings.Diff_HunkMaxLength;
+			dmp.Scratch_MaxSize = settings.Scratch_MaxSize;
+			dmp.Diff_Timeout = settings.Diff_Timeout;
+			if (settings.Diff_Budget > 0) {
+				long total = text1.length() + text2.length();
+				long part = (end1 - start1) + (end2 - start2);
+				dmp.Diff_Budget = Math.max(1, (long) Math.ceil(
+						(double) settings.Diff_Budget * part / total));
+			}
+		}
+
+		@Override
+		protected DiffList compute() {
+			if (deadline != 0) {
+				// Parts waiting for a thread get what's left of the time.
+				dmp.Diff_Timeout = Math.max(0.001f,
+						(deadline - System.currentTimeMillis()) / 1000f);
+			}
+			return dmp.diff_list(text1, start1, end1, text2, start2, end2,
+					true);
+		}
+	}
+}
@@ -7,14 +7,22 @@ import java.util.Map;
 import java.util.Set;
 
 import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.Diff;
+import name.fraser.neil.plaintext.diff_match_patch.DiffList;
+import name.fraser.neil.plaintext.diff_match_patch.Operation;
 import name.fraser.neil.plaintext.diff_match_patch.Patch;
 
 import org.vaadin.aceeditor.client.AceAnnotation.MarkerAnnotation;
 import org.vaadin.aceeditor.client.AceAnnotation.RowAnnotation;
 import org.vaadin.aceeditor.client.AceDoc;
 import org.vaadin.aceeditor.client.AceMarker;
+import org.vaadin.aceeditor.client.AceMarker.OnTextChange;
 import org.vaadin.aceeditor.client.MarkerSetDiff;
+import org.vaadin.aceeditor.client.MarkerTransform;
+import org.vaadin.aceeditor.client.PersistentMap;
+import org.vaadin.aceeditor.client.Rope;
 import org.vaadin.aceeditor.client.SetDiff;
+import org.vaadin.aceeditor.client.TextMatcher;
 import org.vaadin.aceeditor.client.TransportDiff;
 import org.vaadin.aceeditor.client.TransportDiff.TransportSetDiffForMarkerAnnotations;
 import org.vaadin.aceeditor.client.TransportDiff.TransportSetDiffForRowAnnotations;
@@ -29,6 +37,8 @@ public class ServerSideDocDiff {
 	// We could use ThreadLocal but that causes a (valid) complaint
 	// of memory leak by Tomcat. Creating a new diff_match_patch every
 	// time (in getDmp()) fixes that. The creation is not a heavy operation so this it's ok.
+	// To reuse the scratch buffers of a diff_match_patch between diffs, the
+	// caller can pass its own instance (AceEditor keeps one per editor).
 	/*
 	private static final ThreadLocal <diff_match_patch> dmp = 
 	         new ThreadLocal <diff_match_patch> () {
@@ -38,28 +48,109 @@ public class ServerSideDocDiff {
 	     };
 	*/
 	
+	/**
+	 * Length of the changed part of a text above which it's diffed by lines
+	 * first, refining only the changed hunks character by character.
+	 */
+	public static final int DEFAULT_LINE_DIFF_THRESHOLD = 64 * 1024;
+
 	private static diff_match_patch getDmp() {
-		return new diff_match_patch();
+		diff_match_patch dmp = new diff_match_patch();
+		dmp.Diff_LineModeThreshold = DEFAULT_LINE_DIFF_THRESHOLD;
+		return dmp;
 	}
 	
-	private final LinkedList<Patch> patches;
+	// Made from the texts on first use if the diff came as edits.
+	private List<Patch> patches;
 	private final MarkerSetDiff markerSetDiff;
 	private final SetDiff<RowAnnotation,TransportRowAnnotation> rowAnnDiff;
 	private final SetDiff<MarkerAnnotation,TransportMarkerAnnotation> markerAnnDiff;
+	private boolean budgetExhausted;
+	// The cleaned-up diffs the patches were made from, and the checksum of
+	// their text1, if known. Used for the compact transport.
+	private DiffList textDiffs;
+	private int baseChecksum;
+	// The shadow text and the shadow after the edits, if the diff came as
+	// edits made in the editor.
+	private Rope baseText;
+	private AceDoc edited;
+	// How the markers move with the text, if the diff came from the client,
+	// whose marker diff then only has what the text changes don't explain.
+	private MarkerTransform markerTransform;
+	// The text the marker transform was made against, if known. Other texts
+	// have their markers moved with the changes as they landed on them.
+	private Rope transformBase;
 	
 	public static ServerSideDocDiff diff(AceDoc doc1, AceDoc doc2) {
-		LinkedList<Patch> patches = getDmp().patch_make(doc1.getText(), doc2.getText());
+		return diff(doc1, doc2, getDmp());
+	}
+
+	/**
+	 * Like {@link #diff(AceDoc, AceDoc)} but with the given diff_match_patch,
+	 * which must not be used by another thread at the same time.
+	 */
+	public static ServerSideDocDiff diff(AceDoc doc1, AceDoc doc2, diff_match_patch dmp) {
+		return diff(doc1, doc2, dmp, new MyersDiffEngine());
+	}
+
+	/**
+	 * Like {@link #diff(AceDoc, AceDoc, diff_match_patch)} but finding the
+	 * text diff with the given engine.
+	 */
+	public static ServerSideDocDiff diff(AceDoc doc1, AceDoc doc2,
+			diff_match_patch dmp, TextDiffEngine engine) {
+		DiffList diffs = engine.diff(dmp, doc1.getText(), doc2.getText());
 		MarkerSetDiff msd = MarkerSetDiff.diff(doc1.getMarkers(), doc2.getMarkers(), doc2.getText());
 		SetDiff<RowAnnotation,TransportRowAnnotation> rowAnnDiff =
 				diffRA(doc1.getRowAnnotations(), doc2.getRowAnnotations());		
 		SetDiff<MarkerAnnotation,TransportMarkerAnnotation> markerAnnDiff =
 				diffMA(doc1.getMarkerAnnotations(), doc2.getMarkerAnnotations());
-		return new ServerSideDocDiff(patches, msd, rowAnnDiff, markerAnnDiff);
+		return fromTextDiffs(doc1, diffs, dmp, msd, rowAnnDiff, markerAnnDiff);
+	}
+
+	/**
+	 * Like {@link #diff(AceDoc, AceDoc, diff_match_patch, TextDiffEngine)}
+	 * but only diffing what the journal says may have changed. The engine
+	 * is only used if the text has to be diffed in whole.
+	 */
+	static ServerSideDocDiff diff(AceDoc doc1, AceDoc doc2, DocJournal journal,
+			diff_match_patch dmp, TextDiffEngine engine) {
+		String text1 = doc1.getText();
+		String text2 = doc2.getText();
+		DiffList diffs = journal.isTextBounded()
+				? dmp.diff_bounded(text1, text2, journal.getPrefix(text1.length()),
+						journal.getSuffix(), true)
+				: engine.diff(dmp, text1, text2);
+		MarkerSetDiff msd = journal.getMarkerIds() == null
+				? MarkerSetDiff.diff(doc1.getMarkers(), doc2.getMarkers(), text2)
+				: MarkerSetDiff.diff(doc1.getMarkers(), doc2.getMarkers(), journal.getMarkerIds(), text2);
+		SetDiff<RowAnnotation,TransportRowAnnotation> rowAnnDiff = journal.hasRowAnnotationChanges()
+				? diffRA(doc1.getRowAnnotations(), doc2.getRowAnnotations())
+				: new SetDiff<RowAnnotation,TransportRowAnnotation>();
+		SetDiff<MarkerAnnotation,TransportMarkerAnnotation> markerAnnDiff = journal.hasMarkerAnnotationChanges()
+				? diffMA(doc1.getMarkerAnnotations(), doc2.getMarkerAnnotations())
+				: new SetDiff<MarkerAnnotation,TransportMarkerAnnotation>();
+		return fromTextDiffs(doc1, diffs, dmp, msd, rowAnnDiff, markerAnnDiff);
+	}
+
+	private static ServerSideDocDiff fromTextDiffs(AceDoc doc1, DiffList diffs,
+			diff_match_patch dmp, MarkerSetDiff msd,
+			SetDiff<RowAnnotation,TransportRowAnnotation> rowAnnDiff,
+			SetDiff<MarkerAnnotation,TransportMarkerAnnotation> markerAnnDiff) {
+		List<Patch> patches = dmp.patch_list(diffs);
+		ServerSideDocDiff ssdd = new ServerSideDocDiff(patches, msd, rowAnnDiff, markerAnnDiff);
+		ssdd.budgetExhausted = diffs.isBudgetExhausted();
+		ssdd.textDiffs = diffs;
+		ssdd.baseChecksum = doc1.getTextChecksum();
+		return ssdd;
 	}
 	
 	public static ServerSideDocDiff diff(String text1, String text2) {
-		LinkedList<Patch> patches = getDmp().patch_make(text1, text2);
-		return new ServerSideDocDiff(patches);
+		diff_match_patch dmp = getDmp();
+		DiffList diffs = dmp.diff_list(text1, text2, true);
+		ServerSideDocDiff ssdd = new ServerSideDocDiff(dmp.patch_list(diffs));
+		ssdd.budgetExhausted = diffs.isBudgetExhausted();
+		return ssdd;
 	}
 	
 
@@ -97,11 +188,107 @@ public class ServerSideDocDiff {
 
 	
 	public static ServerSideDocDiff fromTransportDiff(TransportDiff diff) {
-		return new ServerSideDocDiff(
-				(LinkedList<Patch>) getDmp().patch_fromText(diff.patchesAsString),
+		return fromTransportDiff(diff, (AceDoc) null);
+	}
+
+	/**
+	 * Like {@link #fromTransportDiff(TransportDiff)} but also accepting
+	 * a diff whose text changes are a delta of the given shadow text (see
+	 * {@link TransportDiff#delta}) or edits made on it (see
+	 * {@link TransportDiff#edits}). The caller should check
+	 * {@link TransportDiff#baseChecksum} first.
+	 * 
+	 * Edits are applied to the shadow text right away, without a diff.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the delta or the edits don't fit the shadow text
+	 */
+	public static ServerSideDocDiff fromTransportDiff(TransportDiff diff,
+			String shadowText) {
+		return fromTransportDiff(diff,
+				shadowText == null ? null : new AceDoc(shadowText));
+	}
+
+	/**
+	 * Like {@link #fromTransportDiff(TransportDiff, String)} but with the
+	 * shadow document, whose text the edits are applied to without making
+	 * it a String.
+	 */
+	public static ServerSideDocDiff fromTransportDiff(TransportDiff diff,
+			AceDoc shadow) {
+		diff_match_patch dmp = getDmp();
+		if ((diff.delta != null || diff.edits != null) && shadow == null) {
+			throw new IllegalArgumentException(
+					"A delta or edits need the shadow text");
+		}
+		List<Patch> patches = null;
+		AceDoc edited = null;
+		MarkerTransform mt = new MarkerTransform();
+		if (diff.edits != null) {
+			edited = TextEdits.apply(shadow, diff.edits, mt);
+		} else if (diff.delta != null) {
+			// Context for applying the patches to a document that differs
+			// from the shadow comes from the shadow itself.
+			String shadowText = shadow.getText();
+			LinkedList<Diff> diffs = dmp.diff_fromDelta(shadowText, diff.delta);
+			addDiffs(mt, diffs);
+			patches = dmp.patch_make(shadowText, diffs);
+		} else {
+			patches = dmp.patch_fromText(diff.patchesAsString);
+			for (Patch p : patches) {
+				// A patch starts where the ones before it have left the text.
+				// The context around its changes may overlap the patches
+				// next to it, so the context at the end is left out.
+				mt.retainTo(p.start1);
+				List<Diff> diffs = p.diffs;
+				if (!diffs.isEmpty() && p.diffs.getLast().operation == Operation.EQUAL) {
+					diffs = diffs.subList(0, diffs.size() - 1);
+				}
+				addDiffs(mt, diffs);
+			}
+		}
+		ServerSideDocDiff ssdd = new ServerSideDocDiff(
+				patches,
 				MarkerSetDiff.fromTransportDiff(diff.markerSetDiff),
 				rowAnnsFromTransport(diff.rowAnnDiff),
 				markerAnnsFromTransport(diff.markerAnnDiff));
+		if (edited != null) {
+			ssdd.baseText = shadow.getTextRope();
+			ssdd.edited = edited;
+		}
+		ssdd.markerTransform = mt;
+		// Patches are made against the shadow of the client, which is ours
+		// only if the checksums agree.
+		if (shadow != null && (patches == null || diff.delta != null
+				|| diff.baseChecksum == shadow.getTextChecksum())) {
+			ssdd.transformBase = shadow.getTextRope();
+		}
+		return ssdd;
+	}
+
+	private static TextMatcher matcher(final diff_match_patch dmp) {
+		return new TextMatcher() {
+			@Override
+			public int match(String text, String pattern, int loc) {
+				return dmp.match_main(text, pattern, loc);
+			}
+			@Override
+			public int xIndex(String text1, String text2, int loc) {
+				return dmp.diff_xIndex(dmp.diff_main(text1, text2), loc);
+			}
+		};
+	}
+
+	private static void addDiffs(MarkerTransform mt, Iterable<Diff> diffs) {
+		for (Diff d : diffs) {
+			if (d.operation == Operation.EQUAL) {
+				mt.retain(d.text.length());
+			} else if (d.operation == Operation.DELETE) {
+				mt.delete(d.text.length());
+			} else {
+				mt.insert(d.text.length());
+			}
+		}
 	}
 	
 	// XXX Unnecessary copy-pasting
@@ -116,7 +303,7 @@ public class ServerSideDocDiff {
 		return markerAnnDiff==null ? null :  SetDiff.fromTransport(markerAnnDiff);
 	}
 
-	public ServerSideDocDiff(LinkedList<Patch> patches, MarkerSetDiff markerSetDiff,
+	public ServerSideDocDiff(List<Patch> patches, MarkerSetDiff markerSetDiff,
 			SetDiff<RowAnnotation,TransportRowAnnotation> rowAnnDiff,
 			SetDiff<MarkerAnnotation,TransportMarkerAnnotation> markerAnnDiff) {
 		this.patches = patches;
@@ -125,42 +312,138 @@ public class ServerSideDocDiff {
 		this.markerAnnDiff = markerAnnDiff;
 	}
 
-	public ServerSideDocDiff(LinkedList<Patch> patches) {
+	public ServerSideDocDiff(List<Patch> patches) {
 		this(patches, null, null, null);
 	}
 
 	public String getPatchesString() {
-		return getDmp().patch_toText(patches);
+		return getDmp().patch_toText(patches(getDmp()));
 	}
 	
 	public List<Patch> getPatches() {
-		return Collections.unmodifiableList(patches);
+		return Collections.unmodifiableList(patches(getDmp()));
+	}
+
+	private List<Patch> patches(diff_match_patch dmp) {
+		if (patches == null) {
+			patches = dmp.patch_make(baseText.toString(), edited.getText());
+		}
+		return patches;
+	}
+
+	private AceDoc applyTextTo(AceDoc doc, diff_match_patch dmp) {
+		if (edited != null && doc.getTextRope().equals(baseText)) {
+			return doc.withTextOf(edited);
+		}
+		return doc.withText((String)dmp.patch_apply(patches(dmp), doc.getText())[0]);
 	}
 
 	
 	public AceDoc applyTo(AceDoc doc) {
-		String text = (String)getDmp().patch_apply(patches, doc.getText())[0];
-		Map<String, AceMarker> markers = markerSetDiff==null ? doc.getMarkers() : markerSetDiff.applyTo(doc.getMarkers(), text);
+		return applyTo(doc, getDmp());
+	}
+
+	/**
+	 * Like {@link #applyTo(AceDoc)} but with the given diff_match_patch,
+	 * which must not be used by another thread at the same time.
+	 */
+	public AceDoc applyTo(AceDoc doc, diff_match_patch dmp) {
+		return applyTo(doc, dmp, new MyersDiffEngine());
+	}
+
+	/**
+	 * Like {@link #applyTo(AceDoc, diff_match_patch)} but diffing with the
+	 * given engine when the markers of the document have to be moved with
+	 * a diff, as when it isn't the text the diff was made against.
+	 */
+	public AceDoc applyTo(AceDoc doc, diff_match_patch dmp, TextDiffEngine engine) {
+		AceDoc doc2 = applyTextTo(doc, dmp);
+		Map<String, AceMarker> markers = moveMarkers(doc, doc2, dmp, engine);
+		// Adding markers needs the text as a String, moving and removing
+		// them doesn't.
+		if (markerSetDiff!=null && !markerSetDiff.isIdentity()) {
+			markers = markerSetDiff.applyTo(markers, doc2.getText(), doc2.getLineIndex(), matcher(dmp));
+		}
 		Set<RowAnnotation> rowAnns = rowAnnDiff==null ? null : rowAnnDiff.applyTo(doc.getRowAnnotations());
 		Set<MarkerAnnotation> markerAnns = markerAnnDiff==null ? null : markerAnnDiff.applyTo(doc.getMarkerAnnotations());
-		return new AceDoc(text, markers, rowAnns, markerAnns);
+		return doc2.withMarkers(markers).withRowAnnotations(rowAnns).withMarkerAnnotations(markerAnns);
 	}
 	
+	private Map<String, AceMarker> moveMarkers(AceDoc doc, AceDoc doc2,
+			diff_match_patch dmp, TextDiffEngine engine) {
+		if (markerTransform == null) {
+			return doc.getMarkers();
+		}
+		if (transformBase != null && doc.getTextRope().equals(transformBase)) {
+			return markerTransform.applyTo(doc, doc2);
+		}
+		if (doc.hasSameText(doc2)) {
+			return doc.getMarkers();
+		}
+		// The text isn't the one the diff was made against, as when the
+		// server has changed it too, so the changes are where the patches
+		// landed on it. Only the adjusted markers need the diff for that.
+		Map<String, AceMarker> markers = doc.getMarkers();
+		PersistentMap<String, AceMarker> kept = null;
+		for (AceMarker m : markers.values()) {
+			if (m.getOnChange() == OnTextChange.ADJUST) {
+				MarkerTransform mt = new MarkerTransform();
+				addDiffs(mt, engine.diff(dmp, doc.getText(), doc2.getText()));
+				return mt.applyTo(doc, doc2);
+			}
+			if (m.getOnChange() == OnTextChange.REMOVE) {
+				kept = (kept == null ? PersistentMap.copyOf(markers) : kept).minus(m.getMarkerId());
+			}
+		}
+		return kept == null ? markers : kept;
+	}
+
 	public String applyTo(String text) {
-		return (String)getDmp().patch_apply(patches, text)[0];
+		return applyTextTo(new AceDoc(text), getDmp()).getText();
 	}
 
 	public TransportDiff asTransport() {
+		return asTransport(false);
+	}
+
+	/**
+	 * Like {@link #asTransport()} but with the text changes as a delta of the
+	 * shadow, without any context (see {@link TransportDiff#delta}), if this
+	 * diff was made by
+	 * {@link #diff(AceDoc, AceDoc, diff_match_patch, TextDiffEngine)}.
+	 */
+	public TransportDiff asDeltaTransport() {
+		return asTransport(textDiffs != null);
+	}
+
+	private TransportDiff asTransport(boolean delta) {
 		TransportDiff d = new TransportDiff();
-		d.patchesAsString = getPatchesString();
+		if (delta) {
+			d.delta = getDmp().diff_toDelta(textDiffs);
+		} else {
+			d.patchesAsString = getPatchesString();
+		}
+		if (textDiffs != null) {
+			d.baseChecksum = baseChecksum;
+		}
 		d.markerSetDiff = markerSetDiff==null ? null : markerSetDiff.asTransportDiff();
 		d.rowAnnDiff = rowAnnDiff==null ? null : rowAnnDiff.asTransportRowAnnotations();
 		d.markerAnnDiff = markerAnnDiff==null ? null : markerAnnDiff.asTransportMarkerAnnotations();
 		return d;
 	}
 
+	/**
+	 * Returns whether computing this diff ran out of the diff budget (see
+	 * {@link AceEditor#setDiffBudget(long)}), in which case the diff is
+	 * coarser than it could be, but still correct.
+	 */
+	public boolean isBudgetExhausted() {
+		return budgetExhausted;
+	}
+
 	public boolean isIdentity() {
-		return patches.isEmpty() && (markerSetDiff==null || markerSetDiff.isIdentity()); // TODO?
+		boolean textIdentity = patches == null ? edited.getTextRope().equals(baseText) : patches.isEmpty();
+		return textIdentity && (markerSetDiff==null || markerSetDiff.isIdentity()); // TODO?
 	}
 	
 	@Override
@@ -171,7 +454,7 @@ public class ServerSideDocDiff {
 
 	public static ServerSideDocDiff newMarkersAndAnnotations(
 			MarkerSetDiff msd, SetDiff<MarkerAnnotation,TransportMarkerAnnotation> mad) {
-		LinkedList<Patch> patches = new LinkedList<Patch>();
+		List<Patch> patches = Collections.emptyList();
 		SetDiff<RowAnnotation,TransportRowAnnotation> rowAnnDiff =
 				new SetDiff<RowAnnotation, TransportRowAnnotation>();
 		return new ServerSideDocDiff(patches, msd, rowAnnDiff, mad);
@@ -0,0 +1,31 @@
+package org.vaadin.aceeditor;
+
+import java.io.Serializable;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import name.fraser.neil.plaintext.diff_match_patch.DiffList;
+
+/**
+ * Computes the diff between two versions of the text on the server.
+ *
+ * The patches sent to the client are always made from the diff by
+ * diff_match_patch, so an engine only changes how the diff is found, not
+ * what the client receives.
+ *
+ * @see AceEditor#setTextDiffEngine(TextDiffEngine)
+ */
+public interface TextDiffEngine extends Serializable {
+
+	/**
+	 * Returns the diff from text1 to text2.
+	 *
+	 * @param dmp
+	 *            diff_match_patch whose settings (timeout, budget etc.) the
+	 *            diff should follow, and which the engine may use for
+	 *            character-level diffing.
+	 * @param text1
+	 * @param text2
+	 * @return diff from text1 to text2
+	 */
+	public DiffList diff(diff_match_patch dmp, String text1, String text2);
+}
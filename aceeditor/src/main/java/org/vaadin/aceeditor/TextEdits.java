@@ -0,0 +1,87 @@
+package org.vaadin.aceeditor;
+
+import java.util.List;
+
+import org.vaadin.aceeditor.client.AceDoc;
+import org.vaadin.aceeditor.client.LineIndex;
+import org.vaadin.aceeditor.client.MarkerTransform;
+import org.vaadin.aceeditor.client.Rope;
+import org.vaadin.aceeditor.client.TransportDiff.TransportEdit;
+
+/**
+ * Applies the edits made in the client-side editor to the text they were
+ * made on, without diffing.
+ */
+class TextEdits {
+
+	private TextEdits() {
+	}
+
+	/**
+	 * Rows are found with the line index of the document, which is updated
+	 * along with the text, unless the rows end at \r only.
+	 * 
+	 * @param transform
+	 *            where the edits are recorded for moving the markers, or null
+	 * @return the document with the text after the edits
+	 * @throws IllegalArgumentException
+	 *             if an edit doesn't fit the text
+	 */
+	static AceDoc apply(AceDoc doc, List<TransportEdit> edits,
+			MarkerTransform transform) {
+		char newline = 0;
+		for (TransportEdit edit : edits) {
+			int rowStart = 0;
+			if (edit.row > 0) {
+				if (newline == 0) {
+					newline = newline(doc.getTextRope());
+				}
+				rowStart = newline == '\n' ? rowStart(doc.getLineIndex(), edit)
+						: rowStart(doc.getTextRope(), edit, newline);
+			}
+			int start = rowStart + edit.column;
+			int end = start + edit.removeLength;
+			if (edit.column < 0 || edit.removeLength < 0
+					|| end > doc.getTextLength()) {
+				throw new IllegalArgumentException("Edit " + edit
+						+ " doesn't fit the text");
+			}
+			doc = doc.withTextReplaced(start, end, edit.text);
+			if (transform != null) {
+				transform.replace(start, end, edit.text == null ? 0
+						: edit.text.length());
+			}
+		}
+		return doc;
+	}
+
+	private static int rowStart(LineIndex lines, TransportEdit edit) {
+		if (edit.row >= lines.getLineCount()) {
+			throw new IllegalArgumentException("Edit " + edit
+					+ " is past the last row");
+		}
+		return lines.getLineStart(edit.row);
+	}
+
+	private static int rowStart(Rope text, TransportEdit edit, char newline) {
+		int rowStart = 0;
+		for (int row = 0; row < edit.row; ++row) {
+			int end = text.indexOf(newline, rowStart);
+			if (end == -1) {
+				throw new IllegalArgumentException("Edit " + edit
+						+ " is past the last row");
+			}
+			rowStart = end + 1;
+		}
+		return rowStart;
+	}
+
+	/**
+	 * Ace joins the rows of its text with the same line break everywhere,
+	 * \n, \r\n or \r, so a row ends at the last character of the line break.
+	 */
+	private static char newline(Rope text) {
+		return text.indexOf('\n', 0) == -1 && text.indexOf('\r', 0) != -1 ? '\r'
+				: '\n';
+	}
+}
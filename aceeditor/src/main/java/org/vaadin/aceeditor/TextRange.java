@@ -1,11 +1,14 @@
 package org.vaadin.aceeditor;
 
+import org.vaadin.aceeditor.client.AceDoc;
 import org.vaadin.aceeditor.client.AceRange;
-import org.vaadin.aceeditor.client.Util;
+import org.vaadin.aceeditor.client.LineIndex;
 
 public class TextRange extends AceRange {
 
+	// The index is made from the text on first use, if not given.
 	private final String text;
+	private LineIndex lines;
 	int start = -1;
 	int end = -1;
 	
@@ -13,6 +16,24 @@ public class TextRange extends AceRange {
 		super(row1, col1, row2, col2);
 		this.text = text;
 	}
+
+	private TextRange(LineIndex lines, int row1, int col1, int row2, int col2) {
+		super(row1, col1, row2, col2);
+		this.text = null;
+		this.lines = lines;
+	}
+
+	public TextRange(AceDoc doc, int row1, int col1, int row2, int col2) {
+		this(doc.getLineIndex(), row1, col1, row2, col2);
+	}
+
+	public TextRange(AceDoc doc, AceRange range) {
+		this(doc.getLineIndex(), range.getStartRow(), range.getStartCol(), range.getEndRow(), range.getEndCol());
+	}
+
+	public TextRange(AceDoc doc, int start, int end) {
+		this(doc, AceRange.fromPositions(start, end, doc.getLineIndex()));
+	}
 	
 	public TextRange(String text, AceRange range) {
 		this(text, range.getStartRow(), range.getStartCol(), range.getEndRow(), range.getEndCol());
@@ -24,18 +45,25 @@ public class TextRange extends AceRange {
 
 	public int getStart() {
 		if (start==-1) {
-			start = Util.cursorPosFromLineCol(text, getStartRow(), getStartCol(), 0);
+			start = getLines().getPosition(getStartRow(), getStartCol());
 		}
 		return start;
 	}
 
 	public int getEnd() {
 		if (end==-1) {
-			end = Util.cursorPosFromLineCol(text, getEndRow(), getEndCol(), 0);
+			end = getLines().getPosition(getEndRow(), getEndCol());
 		}
 		return end;
 	}
 	
+	private LineIndex getLines() {
+		if (lines == null) {
+			lines = LineIndex.of(text);
+		}
+		return lines;
+	}
+
 	public int getCursorPosition() {
 		return getEnd();
 	}
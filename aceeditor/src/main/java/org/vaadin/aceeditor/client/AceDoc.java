@@ -13,14 +13,21 @@ import java.util.Map.Entry;
 public class AceDoc implements Serializable {
 	private static final long serialVersionUID = 1L;
 
-	private final String text;
+	// The text, and the same as a String, made from it on first use.
+	private final Rope rope;
+	private transient String text;
+	// Made on first use, or from the index of the text this one was edited
+	// from.
+	private transient LineIndex lineIndex;
 	
 	// key: markerId
-	private final Map<String, AceMarker> markers;
+	// Persistent, so that a marker or an annotation is added or removed
+	// without copying the others.
+	private final PersistentMap<String, AceMarker> markers;
 
-	private final Set<RowAnnotation> rowAnnotations;
+	private final PersistentSet<RowAnnotation> rowAnnotations;
 
-	private final Set<MarkerAnnotation> markerAnnotations;
+	private final PersistentSet<MarkerAnnotation> markerAnnotations;
 
 	public AceDoc() {
 		this("");
@@ -46,32 +53,102 @@ public class AceDoc implements Serializable {
             text = "";
         }
 
+		this.rope = Rope.of(text);
 		this.text = text;
+		this.markers = markersOf(markers);
+		this.rowAnnotations = annotationsOf(rowAnnotations);
+		this.markerAnnotations = annotationsOf(markerAnnotations);
+	}
+	
+	/**
+	 * Like {@link #AceDoc(String, Map, Set, Set)} but with the text as a
+	 * {@link Rope}.
+	 */
+	public AceDoc(Rope text, Map<String, AceMarker> markers,
+			Set<RowAnnotation> rowAnnotations,
+			Set<MarkerAnnotation> markerAnnotations) {
+		this.rope = text == null ? Rope.EMPTY : text;
+		this.markers = markersOf(markers);
+		this.rowAnnotations = annotationsOf(rowAnnotations);
+		this.markerAnnotations = annotationsOf(markerAnnotations);
+	}
+
+	private AceDoc(Rope rope, String text, LineIndex lineIndex,
+			PersistentMap<String, AceMarker> markers,
+			PersistentSet<RowAnnotation> rowAnnotations,
+			PersistentSet<MarkerAnnotation> markerAnnotations) {
+		this.rope = rope;
+		this.text = text;
+		this.lineIndex = lineIndex;
 		this.markers = markers;
 		this.rowAnnotations = rowAnnotations;
 		this.markerAnnotations = markerAnnotations;
 	}
-	
+
+	private static PersistentMap<String, AceMarker> markersOf(
+			Map<String, AceMarker> markers) {
+		if (markers == null) {
+			return PersistentMap.empty();
+		}
+		return PersistentMap.copyOf(markers);
+	}
+
+	// null stays null, see hasRowAnnotations()
+	private static <A> PersistentSet<A> annotationsOf(Set<A> anns) {
+		return anns == null ? null : PersistentSet.copyOf(anns);
+	}
+
 	public String getText() {
+		if (text == null) {
+			text = rope.toString();
+		}
 		return text;
 	}
+
+	public Rope getTextRope() {
+		return rope;
+	}
+
+	public int getTextLength() {
+		return rope.length();
+	}
+
+	/**
+	 * Index of the lines of the text, for converting between positions and
+	 * rows and columns.
+	 */
+	public LineIndex getLineIndex() {
+		if (lineIndex == null) {
+			lineIndex = LineIndex.of(rope);
+		}
+		return lineIndex;
+	}
+
+	/**
+	 * Whether the text is the same as in the other document, without
+	 * comparing the characters if it's told apart by its length or
+	 * checksum.
+	 */
+	public boolean hasSameText(AceDoc other) {
+		return rope.equals(other.rope);
+	}
 	
 	public Map<String, AceMarker> getMarkers() {
-		return Collections.unmodifiableMap(markers);
+		return markers;
 	}
 	
 	public Set<RowAnnotation> getRowAnnotations() {
 		if (rowAnnotations==null) {
 			return Collections.emptySet();
 		}
-		return Collections.unmodifiableSet(rowAnnotations);
+		return rowAnnotations;
 	}
 	
 	public Set<MarkerAnnotation> getMarkerAnnotations() {
 		if (markerAnnotations==null) {
 			return Collections.emptySet();
 		}
-		return Collections.unmodifiableSet(markerAnnotations);
+		return markerAnnotations;
 	}
 	
 	public boolean hasRowAnnotations() {
@@ -84,14 +161,17 @@ public class AceDoc implements Serializable {
 
 	@Override
 	public String toString() {
-		return text + "\n/MARKERS: "+markers+"\nra:"+rowAnnotations+", ma:"+markerAnnotations;
+		return getText() + "\n/MARKERS: "+markers+"\nra:"+rowAnnotations+", ma:"+markerAnnotations;
 	}
 
 	@Override
 	public boolean equals(Object other) {
+		if (other == this) {
+			return true;
+		}
 		if (other instanceof AceDoc) {
 			AceDoc od = (AceDoc) other;
-			return textEquals(text, od.text) &&
+			return hasSameText(od) &&
 					Util.sameMaps(this.markers, od.markers) &&
 					Util.sameSets(this.markerAnnotations, od.markerAnnotations) &&
 					Util.sameSets(this.rowAnnotations, od.rowAnnotations);
@@ -101,7 +181,17 @@ public class AceDoc implements Serializable {
 
 	@Override
 	public int hashCode() {
-		return getText().hashCode();
+		return getTextChecksum();
+	}
+
+	/**
+	 * Checksum of the text, for checking that the client and the server
+	 * have the same shadow. String.hashCode gives the same value in the
+	 * browser as on the server. The rope keeps it, so that it's cheap to
+	 * get after an edit too.
+	 */
+	public int getTextChecksum() {
+		return rope.hashCode();
 	}
 
     public boolean textEquals(String a, String b) {
@@ -112,9 +202,32 @@ public class AceDoc implements Serializable {
 		return new AceDoc(newText, markers, rowAnnotations, markerAnnotations);
 	}
 
+	public AceDoc withText(Rope newText) {
+		return new AceDoc(newText, markers, rowAnnotations, markerAnnotations);
+	}
+
+	/**
+	 * Returns a document with the characters [start,end) of the text
+	 * replaced with the given text, in O(edit + log n).
+	 */
+	public AceDoc withTextReplaced(int start, int end, String newText) {
+		return new AceDoc(rope.replace(start, end, newText), null,
+				lineIndex == null ? null : lineIndex.replace(start, end, newText),
+				markers, rowAnnotations, markerAnnotations);
+	}
+
+	/**
+	 * Returns a document with the text of the other one, along with what's
+	 * been made of it so far.
+	 */
+	public AceDoc withTextOf(AceDoc other) {
+		return new AceDoc(other.rope, other.text, other.lineIndex, markers,
+				rowAnnotations, markerAnnotations);
+	}
+
 	public TransportDoc asTransport() {
 		TransportDoc td = new TransportDoc();
-		td.text = text;
+		td.text = getText();
 
 		td.markers = getTransportMarkers();
 		td.markerAnnotations = getTransportMarkerAnnotations();
@@ -200,63 +313,51 @@ public class AceDoc implements Serializable {
 	
 	// TODO?
 	public AceDoc withMarkers(Set<AceMarker> newMarkers) {
-		HashMap<String, AceMarker> markers2 = new HashMap<String, AceMarker>(newMarkers.size());
+		PersistentMap<String, AceMarker> markers2 = PersistentMap.empty();
 		for (AceMarker m : newMarkers) {
-			markers2.put(m.getMarkerId(), m);
+			markers2 = markers2.plus(m.getMarkerId(), m);
 		}
-		return new AceDoc(text, markers2, rowAnnotations, markerAnnotations);
+		return new AceDoc(rope, text, lineIndex, markers2, rowAnnotations, markerAnnotations);
 	}
 	
 	public AceDoc withMarkers(Map<String, AceMarker> newMarkers) {
-		return new AceDoc(text, newMarkers, rowAnnotations, markerAnnotations);
+		return new AceDoc(rope, text, lineIndex, markersOf(newMarkers), rowAnnotations, markerAnnotations);
 	}
 	public AceDoc withAdditionalMarker(AceMarker marker) {
-		HashMap<String, AceMarker> markers2 = new HashMap<String, AceMarker>(markers);
-		markers2.put(marker.getMarkerId(), marker);
-		return new AceDoc(text, markers2, rowAnnotations, markerAnnotations);
+		return new AceDoc(rope, text, lineIndex, markers.plus(marker.getMarkerId(), marker), rowAnnotations, markerAnnotations);
 	}
 	public AceDoc withAdditionalMarkers(Map<String, AceMarker> addMarkers) {
-		HashMap<String, AceMarker> newMarkers = new HashMap<String, AceMarker>(markers);
-		newMarkers.putAll(addMarkers);
-		return new AceDoc(text, newMarkers, rowAnnotations, markerAnnotations);
+		return new AceDoc(rope, text, lineIndex, markers.plusAll(addMarkers), rowAnnotations, markerAnnotations);
 	}
 
 	public AceDoc withoutMarker(String markerId) {
-		HashMap<String, AceMarker> markers2 = new HashMap<String, AceMarker>(markers);
-		markers2.remove(markerId);
-		return new AceDoc(text, markers2, rowAnnotations, markerAnnotations);
+		return new AceDoc(rope, text, lineIndex, markers.minus(markerId), rowAnnotations, markerAnnotations);
 	}
 
 	public AceDoc withoutMarkers() {
-		Map<String, AceMarker> noMarkers = Collections.emptyMap();
-		return new AceDoc(text, noMarkers, rowAnnotations, markerAnnotations);
+		PersistentMap<String, AceMarker> noMarkers = PersistentMap.empty();
+		return new AceDoc(rope, text, lineIndex, noMarkers, rowAnnotations, markerAnnotations);
 	}
 	
 	public AceDoc withoutMarkers(Set<String> without) {
-		Map<String, AceMarker> newMarkers = new HashMap<String, AceMarker>(markers);
-		for (String m : without) {
-			newMarkers.remove(m);
-		}
-		return new AceDoc(text, newMarkers, rowAnnotations, markerAnnotations);
+		return new AceDoc(rope, text, lineIndex, markers.minusAll(without), rowAnnotations, markerAnnotations);
 	}
 
 	public AceDoc withRowAnnotations(Set<RowAnnotation> ranns) {
-		return new AceDoc(text, markers, ranns, markerAnnotations);
+		return new AceDoc(rope, text, lineIndex, markers, annotationsOf(ranns), markerAnnotations);
 	}
 	
 	public AceDoc withMarkerAnnotations(Set<MarkerAnnotation> manns) {
-		return new AceDoc(text, markers, rowAnnotations, manns);
+		return new AceDoc(rope, text, lineIndex, markers, rowAnnotations, annotationsOf(manns));
 	}
 
 	public AceDoc withAdditionalMarkerAnnotation(MarkerAnnotation mann) {
-		HashSet<MarkerAnnotation> manns = markerAnnotations==null?new HashSet<MarkerAnnotation>():new HashSet<MarkerAnnotation>(markerAnnotations);
-		manns.add(mann);
-		return new AceDoc(text, markers, rowAnnotations, manns);
+		PersistentSet<MarkerAnnotation> manns = markerAnnotations==null?PersistentSet.<MarkerAnnotation>empty():markerAnnotations;
+		return new AceDoc(rope, text, lineIndex, markers, rowAnnotations, manns.plus(mann));
 	}
 	
 	public AceDoc withAdditionalRowAnnotation(RowAnnotation rann) {
-		HashSet<RowAnnotation> ranns = rowAnnotations==null?new HashSet<RowAnnotation>():new HashSet<RowAnnotation>(rowAnnotations);
-		ranns.add(rann);
-		return new AceDoc(text, markers, ranns, markerAnnotations);
+		PersistentSet<RowAnnotation> ranns = rowAnnotations==null?PersistentSet.<RowAnnotation>empty():rowAnnotations;
+		return new AceDoc(rope, text, lineIndex, markers, ranns.plus(rann), markerAnnotations);
 	}
 }
\ No newline at end of file
@@ -1,5 +1,8 @@
 package org.vaadin.aceeditor.client;
 
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -7,8 +10,10 @@ import org.vaadin.aceeditor.AceEditor;
 import org.vaadin.aceeditor.client.AceEditorWidget.FocusChangeListener;
 import org.vaadin.aceeditor.client.AceEditorWidget.SelectionChangeListener;
 import org.vaadin.aceeditor.client.AceEditorWidget.TextChangeListener;
+import org.vaadin.aceeditor.client.TransportDiff.TransportEdit;
 import org.vaadin.aceeditor.client.gwt.GwtAceEditor;
 
+import com.google.gwt.core.client.Duration;
 import com.google.gwt.core.client.GWT;
 import com.google.gwt.dom.client.Document;
 import com.google.gwt.dom.client.Element;
@@ -38,12 +43,21 @@ public class AceEditorConnector extends AbstractHasComponentsConnector
 
 
     protected enum TextChangeEventMode {
-		EAGER, TIMEOUT, LAZY
+		EAGER, TIMEOUT, LAZY, ADAPTIVE
 	}
 
     protected TextChangeEventMode changeMode = null;
     protected int changeTimeout = 400;
 
+    // Smoothed roundtrip time and cost of a sync in milliseconds, measured
+    // for the ADAPTIVE mode, or -1 until measured.
+    protected double roundtripEstimate = -1;
+    protected double syncCostEstimate = -1;
+    // When the oldest diff in flight was sent.
+    protected double oldestSentAt;
+    // Time spent on making the diffs in flight.
+    protected double clientCost;
+
     protected class SendTimer extends Timer {
 		private boolean scheduled;
 		private SendCond send = SendCond.NO;
@@ -78,10 +92,20 @@ public class AceEditorConnector extends AbstractHasComponentsConnector
 
     protected AceDoc shadow;
 
+    // Version of the shadow, see TransportDiff.version and
+    // TransportDiff.serverVersion.
+    protected int clientVersion = 0;
+    protected int serverVersion = 0;
+
+    // The shadows the diffs sent to the server but not yet acknowledged were
+    // made from, oldest first, in case the server couldn't apply them.
+    protected LinkedList<AceDoc> inFlight = new LinkedList<AceDoc>();
+
     protected boolean onRoundtrip = false;
     
+    // SELECTION: the document if changed, and the selection in any case.
     protected enum SendCond {
-    	NO, IF_CHANGED, ALWAYS;
+    	NO, IF_CHANGED, SELECTION, ALWAYS;
 		public SendCond or(SendCond sw2) {
 			return this.ordinal() > sw2.ordinal() ? this : sw2;
 		}
@@ -93,28 +117,53 @@ public class AceEditorConnector extends AbstractHasComponentsConnector
 		@Override
 		public void diff(TransportDiff ad) {
 			VConsole.log("diff!!!");
-			ClientSideDocDiff diff = ClientSideDocDiff.fromTransportDiff(ad);
-			shadow = diff.applyTo(shadow);
-			
+			if (ad.resyncDoc != null) {
+				resync(ad);
+				return;
+			}
+			acknowledge(ad);
+			if (ad.version != 0 && (ad.version > clientVersion || ad.serverVersion != serverVersion)) {
+				VConsole.log("Diff is for version " + ad.version + "/" + ad.serverVersion
+						+ " of the shadow, not " + clientVersion + "/" + serverVersion);
+				requestResync();
+				return;
+			}
+			// Whether the server made the diff before applying all our diffs,
+			// so that it only applies to our shadow as patches with context.
+			boolean crossing = ad.version != 0 && ad.version < clientVersion;
+			boolean checkable = ad.version != 0 ? !crossing : ad.delta != null;
+			if ((checkable && ad.baseChecksum != shadow.getTextChecksum()) || (crossing && ad.delta != null)) {
+				requestResync();
+				return;
+			}
+			if (ad.acknowledgeOnly) {
+				afterAcknowledged();
+				return;
+			}
+			ClientSideDocDiff diff = ClientSideDocDiff.fromTransportDiff(ad, shadow.getText());
+			String shadowText = shadow.getText();
 			AceDoc doc1 = getWidget().getDoc();
-			AceDoc doc2 = diff.applyTo(doc1);
-
-			getWidget().setDoc(doc2);
-
-			if (selectionAfterApplyingDiff!=null) {
-				getWidget().setSelection(selectionAfterApplyingDiff);
-				selectionAfterApplyingDiff = null;
+			// Unchanged since sent, so the diff is applied once and the doc
+			// stays the shadow itself, which isDocSynced checks for.
+			boolean synced = doc1 == shadow;
+			shadow = diff.applyTo(shadow);
+			if (ad.version != 0) {
+				++serverVersion;
 			}
-
-			if (scrollToRowAfterApplyingDiff != -1) {
-				getWidget().scrollToRow(scrollToRowAfterApplyingDiff);
-				scrollToRowAfterApplyingDiff = -1;
+			if (crossing) {
+				// Keeps the diffs in flight resendable after a resync.
+				for (ListIterator<AceDoc> it = inFlight.listIterator(); it.hasNext();) {
+					it.set(diff.applyTo(it.next()));
+				}
 			}
 			
-			if (!doc1.getText().equals(doc2.getText())) {
-				sendAfterRoundtrip = sendAfterRoundtrip.or(SendCond.ALWAYS);
+			AceDoc doc2 = synced ? shadow : diff.applyTo(doc1);
+
+			getWidget().setDoc(doc2);
+			if (!shadowText.equals(shadow.getText())) {
+				restartEditLog();
 			}
-			setOnRoundtrip(false);
+			afterDiffApplied(doc1, doc2);
 		}
 
 		@Override
@@ -127,6 +176,156 @@ public class AceEditorConnector extends AbstractHasComponentsConnector
 
 	};
 
+	/**
+	 * Takes the whole document from the server as the new shadow, and keeps
+	 * the local changes the server hasn't seen.
+	 */
+	protected void resync(TransportDiff ad) {
+		AceDoc base;
+		if (ad.version != 0) {
+			base = shadowAt(ad.version);
+		} else {
+			base = ad.rejected && !inFlight.isEmpty() ? inFlight.getLast() : shadow;
+		}
+		AceDoc doc1 = getWidget().getDoc();
+		ClientSideDocDiff local = ClientSideDocDiff.diff(base, doc1);
+		shadow = AceDoc.fromTransport(ad.resyncDoc);
+		clientVersion = ad.version;
+		serverVersion = ad.serverVersion;
+		inFlight.clear();
+		AceDoc doc2 = local.applyTo(shadow);
+		if (doc2.equals(shadow)) {
+			// Nothing local left, so the doc can be the shadow itself.
+			doc2 = shadow;
+		}
+		getWidget().setDoc(doc2);
+		if (!doc2.getText().equals(shadow.getText())) {
+			sendAfterRoundtrip = SendCond.ALWAYS;
+		}
+		restartEditLog();
+		afterDiffApplied(doc1, doc2);
+	}
+
+	/**
+	 * Our shadow doesn't match the one the server made its delta from. Sends
+	 * the local changes as patches with context and asks for the whole
+	 * document back.
+	 */
+	protected void requestResync() {
+		VConsole.log("Shadow doesn't match the server, resyncing");
+		AceDoc doc = getWidget().getDoc();
+		TransportDiff td = ClientSideDocDiff.diff(shadow, doc).asTransport();
+		td.acceptsDelta = true;
+		td.resync = true;
+		setVersion(td);
+		serverRpc.changed(td, getWidget().getSelection().asTransport(), getWidget().isFocused());
+		sent(doc);
+	}
+
+	/**
+	 * Marks a diff to the server as made from the current shadow, so that
+	 * the server can check that its shadow is the same.
+	 */
+	protected void setVersion(TransportDiff td) {
+		td.version = clientVersion;
+		td.serverVersion = serverVersion;
+		td.baseChecksum = shadow.getTextChecksum();
+	}
+
+	/**
+	 * Takes the document a diff was just sent to the server for as the new
+	 * shadow, keeping the old one until the server acknowledges the diff.
+	 */
+	protected void sent(AceDoc doc) {
+		if (inFlight.isEmpty()) {
+			oldestSentAt = Duration.currentTimeMillis();
+		}
+		inFlight.addLast(shadow);
+		shadow = doc;
+		if (clientVersion != 0) {
+			++clientVersion;
+		}
+		restartEditLog();
+	}
+
+	/**
+	 * Forgets the shadows of the diffs the server has applied, all of them
+	 * if the server doesn't tell which, and measures the roundtrip.
+	 */
+	protected void acknowledge(TransportDiff ad) {
+		int acknowledged = ad.version != 0 ? inFlight.size() - (clientVersion - ad.version) : inFlight.size();
+		if (acknowledged <= 0 || inFlight.isEmpty()) {
+			return;
+		}
+		for (int i = 0; i < acknowledged && !inFlight.isEmpty(); ++i) {
+			inFlight.removeFirst();
+		}
+		double now = Duration.currentTimeMillis();
+		measured(now - oldestSentAt, clientCost + ad.serverMicros / 1000.0);
+		oldestSentAt = now;
+		clientCost = 0;
+	}
+
+	/**
+	 * Returns the shadow after the given number of our diffs, the one the
+	 * next diff the server hasn't applied was made from.
+	 */
+	protected AceDoc shadowAt(int version) {
+		int index = inFlight.size() - (clientVersion - version);
+		if (index < 0 || inFlight.isEmpty()) {
+			return inFlight.isEmpty() ? shadow : inFlight.getFirst();
+		}
+		return index < inFlight.size() ? inFlight.get(index) : shadow;
+	}
+
+	/**
+	 * Whether as many diffs are in flight as the server accepts.
+	 */
+	protected boolean isPipelineFull() {
+		return inFlight.size() >= Math.max(1, getState().maxDiffsInFlight);
+	}
+
+	/**
+	 * Records the edits made in the editor from now on if they are sent to
+	 * the server and the text of the editor is the shadow. Otherwise stops
+	 * recording, so that the next diff is made from the texts.
+	 */
+	protected void restartEditLog() {
+		if (getState().editTransport && getWidget().getDoc().getText().equals(shadow.getText())) {
+			getWidget().startEditLog();
+		} else {
+			getWidget().stopEditLog();
+		}
+	}
+
+	private void afterDiffApplied(AceDoc doc1, AceDoc doc2) {
+		if (!doc1.getText().equals(doc2.getText())) {
+			sendAfterRoundtrip = sendAfterRoundtrip.or(SendCond.ALWAYS);
+		}
+		afterAcknowledged();
+	}
+
+	private void afterAcknowledged() {
+		if (selectionAfterApplyingDiff!=null) {
+			getWidget().setSelection(selectionAfterApplyingDiff);
+			selectionAfterApplyingDiff = null;
+		}
+
+		if (scrollToRowAfterApplyingDiff != -1) {
+			getWidget().scrollToRow(scrollToRowAfterApplyingDiff);
+			scrollToRowAfterApplyingDiff = -1;
+		}
+		
+		boolean full = isPipelineFull();
+		if (full || onRoundtrip) {
+			setOnRoundtrip(full);
+		}
+		else {
+			// Diffs are still in flight, but we could send more anyway.
+			sendToServerImmediately(sendAfterRoundtrip);
+		}
+	}
+
     protected boolean listenToSelectionChanges;
     protected boolean listenToFocusChanges;
 
@@ -229,7 +428,10 @@ public class AceEditorConnector extends AbstractHasComponentsConnector
 		
 		if (firstTime) {
 			shadow = AceDoc.fromTransport(getState().initialValue);
+			clientVersion = TransportDiff.FIRST_VERSION;
+			serverVersion = TransportDiff.FIRST_VERSION;
             getWidget().setDoc(shadow);
+            restartEditLog();
 		}
 		
 		if (getState().selection != null) {
@@ -288,10 +490,25 @@ public class AceEditorConnector extends AbstractHasComponentsConnector
 		if (isOnRoundtrip()) {
 			sendAfterRoundtrip = SendCond.ALWAYS;
 		}
+		else if (isDocSynced(getWidget().getDoc())) {
+			serverRpc.focusChanged(focused);
+		}
 		else {
 			sendToServerImmediately(SendCond.ALWAYS);
 		}
 	}
+
+	/**
+	 * Whether the server has the document as it is now, so that a change
+	 * of the selection or the focus can be sent without a diff.
+	 * 
+	 * The document is the shadow itself as long as it hasn't changed since
+	 * it was sent or got from the server, so this doesn't compare them. A
+	 * document changed and changed back just goes as a diff.
+	 */
+	protected boolean isDocSynced(AceDoc doc) {
+		return inFlight.isEmpty() && doc == shadow;
+	}
 	
 	public void setTextChangeEventMode(String mode) {
 		TextChangeEventMode newMode = TextChangeEventMode.valueOf(mode);
@@ -332,6 +549,39 @@ public class AceEditorConnector extends AbstractHasComponentsConnector
 				sendTimer = new SendTimer();
 			}
 			sendTimer.scheduleIfNotAlready(changeTimeout, send);
+		} else if (mode == TextChangeEventMode.ADAPTIVE) {
+			if (sendTimer == null) {
+				sendTimer = new SendTimer();
+			}
+			sendTimer.schedule(getAdaptiveTimeout(), send);
+		}
+	}
+
+	/**
+	 * The timeout of the ADAPTIVE mode: like LAZY, but waiting for half a
+	 * roundtrip, since a request made sooner would wait for the previous
+	 * one anyway, or for four times what a sync costs the client and the
+	 * server, so that syncing takes at most a fifth of their time. Within
+	 * the bounds given by the server.
+	 */
+	protected int getAdaptiveTimeout() {
+		double timeout = roundtripEstimate < 0 ? changeTimeout
+				: Math.max(roundtripEstimate / 2, 4 * syncCostEstimate);
+		return (int) Math.max(getState().changeTimeoutMin,
+				Math.min(getState().changeTimeoutMax, timeout));
+	}
+
+	/**
+	 * Updates the estimates of the ADAPTIVE mode with the latest roundtrip
+	 * and the time the client and the server spent on it.
+	 */
+	protected void measured(double roundtrip, double cost) {
+		if (roundtripEstimate < 0) {
+			roundtripEstimate = roundtrip;
+			syncCostEstimate = cost;
+		} else {
+			roundtripEstimate += (roundtrip - roundtripEstimate) / 8;
+			syncCostEstimate += (cost - syncCostEstimate) / 8;
 		}
 	}
 
@@ -341,9 +591,18 @@ public class AceEditorConnector extends AbstractHasComponentsConnector
     		return;
     	}
     	
+		double start = Duration.currentTimeMillis();
 		AceDoc doc = getWidget().getDoc();
-		ClientSideDocDiff diff = ClientSideDocDiff.diff(shadow, doc);
-		if (send==SendCond.ALWAYS) {
+		if (send==SendCond.SELECTION && isDocSynced(doc)) {
+			serverRpc.selectionChanged(getWidget().getSelection().asTransport());
+			sendAfterRoundtrip = SendCond.NO;
+			return;
+		}
+		List<TransportEdit> edits = getState().editTransport ? getWidget().getEditLog() : null;
+		ClientSideDocDiff diff = edits != null
+				? ClientSideDocDiff.diffWithEdits(shadow, doc, edits)
+				: ClientSideDocDiff.diff(shadow, doc);
+		if (send==SendCond.ALWAYS || send==SendCond.SELECTION) {
 			// Go on...
 		}
 		else if (send==SendCond.IF_CHANGED && !diff.isIdentity()) {
@@ -353,7 +612,10 @@ public class AceEditorConnector extends AbstractHasComponentsConnector
 			return;
 		}
 		
-		TransportDiff td = diff.asTransport();
+		TransportDiff td = getState().compactTransport ? diff.asDeltaTransport() : diff.asTransport();
+		td.acceptsDelta = true;
+		setVersion(td);
+		clientCost += Duration.currentTimeMillis() - start;
 		
 		if (immediately) {
 			serverRpc.changed(td, getWidget().getSelection().asTransport(), getWidget().isFocused());
@@ -361,8 +623,8 @@ public class AceEditorConnector extends AbstractHasComponentsConnector
 			serverRpc.changedDelayed(td, getWidget().getSelection().asTransport(), getWidget().isFocused());
 		}
 		
-		shadow = doc;
-		setOnRoundtrip(true); // What if delayed???
+		sent(doc);
+		setOnRoundtrip(isPipelineFull()); // What if delayed???
 		sendAfterRoundtrip = SendCond.NO;
 	}
 
@@ -412,7 +674,7 @@ public class AceEditorConnector extends AbstractHasComponentsConnector
 		// TODO: it'd be better if we didn't register as listener
 		// if !listenToSelectionChanges in the first place...
 		if (listenToSelectionChanges) {
-			sendWhenPossible(SendCond.ALWAYS);
+			sendWhenPossible(SendCond.SELECTION);
 		}
 	}
 	
@@ -12,5 +12,15 @@ public interface AceEditorServerRpc extends ServerRpc {
 	
 	@Delayed(lastOnly=true)
 	public void changedDelayed(TransportDiff diff, TransportRange selection, boolean focused);
+
+	/**
+	 * Only the selection changed, the server already has the document.
+	 */
+	public void selectionChanged(TransportRange selection);
+
+	/**
+	 * Only the focus changed, the server already has the document.
+	 */
+	public void focusChanged(boolean focused);
 	
 }
@@ -12,6 +12,8 @@ public class AceEditorState extends AbstractFieldState {
 	
 	public String changeMode = "LAZY";
 	public int changeTimeout = 400;
+	public int changeTimeoutMin = 0;
+	public int changeTimeoutMax = 2000;
 	
 	public String mode = "text";
 	
@@ -36,6 +38,12 @@ public class AceEditorState extends AbstractFieldState {
 	public Map<String,String> config = new HashMap<String,String>();
 	
 	public int diff_editCost = 4;
+
+	public boolean compactTransport = false;
+
+	public boolean editTransport = false;
+
+	public int maxDiffsInFlight = 1;
 	
 	public TransportDoc initialValue = null;
 	
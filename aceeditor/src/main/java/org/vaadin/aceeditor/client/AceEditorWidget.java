@@ -1,9 +1,11 @@
 package org.vaadin.aceeditor.client;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -12,6 +14,7 @@ import org.vaadin.aceeditor.client.AceAnnotation.MarkerAnnotation;
 import org.vaadin.aceeditor.client.AceAnnotation.RowAnnotation;
 import org.vaadin.aceeditor.client.AceMarker.OnTextChange;
 import org.vaadin.aceeditor.client.ClientSideDocDiff.Adjuster;
+import org.vaadin.aceeditor.client.TransportDiff.TransportEdit;
 import org.vaadin.aceeditor.client.gwt.GwtAceAnnotation;
 import org.vaadin.aceeditor.client.gwt.GwtAceChangeCursorHandler;
 import org.vaadin.aceeditor.client.gwt.GwtAceChangeEvent;
@@ -28,6 +31,7 @@ import org.vaadin.aceeditor.client.gwt.GwtAceSelection;
 
 import com.google.gwt.core.client.JsArray;
 import com.google.gwt.core.client.JsArrayInteger;
+import com.google.gwt.core.client.JsArrayString;
 import com.google.gwt.user.client.DOM;
 import com.google.gwt.user.client.ui.FocusWidget;
 
@@ -105,6 +109,10 @@ public class AceEditorWidget extends FocusWidget implements
 
 	// key: marker markerId
     protected Map<String,MarkerInEditor> markersInEditor = Collections.emptyMap();
+    // The markers of markersInEditor that move with the text, by their rows.
+    protected MarkerIndex adjustedMarkers = new MarkerIndex();
+    // The markers of markersInEditor that go away on any change.
+    protected Set<MarkerInEditor> markersRemovedOnChange = Collections.emptySet();
 
     protected Set<RowAnnotation> rowAnnsInEditor = Collections.emptySet();
     protected Set<AnnotationInEditor> markerAnnsInEditor = Collections.emptySet();
@@ -121,6 +129,10 @@ public class AceEditorWidget extends FocusWidget implements
 
     protected AceDoc doc;
 
+    // The edits made in the editor since startEditLog(), or null if not
+    // recording or if the text has been set from outside since.
+    protected List<TransportEdit> editLog;
+
     protected static String nextId() {
 		return "_AceEditorWidget_" + (++idCounter);
 	}
@@ -221,6 +233,7 @@ public class AceEditorWidget extends FocusWidget implements
 		adjustInvisibleMarkersOnTextChange(adjuster);
 		this.text = text;
 		this.doc = null;
+		this.editLog = null;
 		ignoreEditorEvents = true;
 		double wasAtRow = editor.getScrollTopRow();
 		editor.setText(text);
@@ -302,18 +315,32 @@ public class AceEditorWidget extends FocusWidget implements
 		}
 		
 		HashMap<String,MarkerInEditor> newMarkers = new HashMap<String,MarkerInEditor>();
+		MarkerIndex newAdjusted = new MarkerIndex();
+		HashSet<MarkerInEditor> newRemovedOnChange = new HashSet<MarkerInEditor>();
 		for (Entry<String, AceMarker> e : markers.entrySet()) {
 			String mId = e.getKey();
 			AceMarker m = e.getValue();
 			MarkerInEditor existing = markersInEditor.get(mId);
-			if (existing!=null) {
-				editor.removeMarker(existing.clientId);
+			if (existing!=null && existing.marker.equals(m)) {
+				// Already in Ace as it is.
+				newMarkers.put(mId, existing);
+			}
+			else {
+				if (existing!=null) {
+					editor.removeMarker(existing.clientId);
+				}
+				String type = (m.getType()==AceMarker.Type.cursor ? "text" :
+					(m.getType()==AceMarker.Type.cursorRow ? "line" : m.getType().toString()));
+				String clientId = editor.addMarker(convertRange(m.getRange()), m.getCssClass(), type, m.isInFront());
+				existing = new MarkerInEditor(m, clientId);
+				newMarkers.put(mId, existing);
+			}
+			if (m.getOnChange()==OnTextChange.ADJUST) {
+				newAdjusted.put(m);
+			}
+			else if (m.getOnChange()==OnTextChange.REMOVE) {
+				newRemovedOnChange.add(existing);
 			}
-			String type = (m.getType()==AceMarker.Type.cursor ? "text" :
-				(m.getType()==AceMarker.Type.cursorRow ? "line" : m.getType().toString()));
-			String clientId = editor.addMarker(convertRange(m.getRange()), m.getCssClass(), type, m.isInFront());
-			existing = new MarkerInEditor(m, clientId);
-			newMarkers.put(mId, existing);
 		}
 		
 		
@@ -324,6 +351,8 @@ public class AceEditorWidget extends FocusWidget implements
 		}
 		
 		markersInEditor = newMarkers;
+		adjustedMarkers = newAdjusted;
+		markersRemovedOnChange = newRemovedOnChange;
 		adjustMarkerAnnotations();
 	}
 	
@@ -415,6 +444,9 @@ public class AceEditorWidget extends FocusWidget implements
 		// TODO: do we do too much work here?
 		// most of the time the editor doesn't have any markers nor annotations...
 		
+		if (editLog != null) {
+			logEdit(e.getData());
+		}
 		adjustMarkers(e);
 		adjustInvisibleMarkers(e);
 		adjustMarkerAnnotations();
@@ -423,6 +455,78 @@ public class AceEditorWidget extends FocusWidget implements
 		fireTextChanged();
 	}
 
+	/**
+	 * Starts recording the edits made in the editor, see
+	 * {@link #getEditLog()}.
+	 */
+	public void startEditLog() {
+		editLog = new ArrayList<TransportEdit>();
+	}
+
+	public void stopEditLog() {
+		editLog = null;
+	}
+
+	/**
+	 * Returns the edits made in the editor since {@link #startEditLog()}, or
+	 * null if the text has been set from outside the editor since.
+	 */
+	public List<TransportEdit> getEditLog() {
+		return editLog;
+	}
+
+	protected void logEdit(GwtAceChangeEvent.Data data) {
+		Action act = data.getAction();
+		GwtAcePosition start = data.getRange().getStart();
+		if (act==Action.insertText) {
+			addEdit(start.getRow(), start.getColumn(), 0, data.getText());
+		}
+		else if (act==Action.removeText) {
+			addEdit(start.getRow(), start.getColumn(), data.getText().length(), "");
+		}
+		else if (act==Action.insertLines || act==Action.removeLines) {
+			// Whole lines, each followed by a line break.
+			String nl = editor.getNewLineCharacter();
+			JsArrayString lines = data.getLines();
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < lines.length(); ++i) {
+				sb.append(lines.get(i)).append(nl);
+			}
+			if (act==Action.insertLines) {
+				addEdit(start.getRow(), 0, 0, sb.toString());
+			}
+			else {
+				addEdit(start.getRow(), 0, sb.length(), "");
+			}
+		}
+	}
+
+	/**
+	 * Adds an edit to the log, merging it to the previous one when the user
+	 * is typing, deleting or backspacing on a row.
+	 */
+	private void addEdit(int row, int column, int removeLength, String text) {
+		if (!editLog.isEmpty()) {
+			TransportEdit last = editLog.get(editLog.size() - 1);
+			int lastEnd = last.column + last.text.length();
+			if (last.row == row && last.text.indexOf('\n') == -1 && last.text.indexOf('\r') == -1) {
+				if (removeLength == 0 && column == lastEnd) {
+					last.text += text;
+					return;
+				}
+				if (text.length() == 0 && column == lastEnd) {
+					last.removeLength += removeLength;
+					return;
+				}
+				if (text.length() == 0 && column + removeLength == lastEnd && column >= last.column) {
+					last.text = last.text.substring(0, column - last.column);
+					return;
+				}
+			}
+		}
+		editLog.add(new TransportEdit(row, column, removeLength, text));
+	}
+
 	public void fireTextChanged() {
 		for (TextChangeListener li : changeListeners) {
 			li.changed();
@@ -433,47 +537,52 @@ public class AceEditorWidget extends FocusWidget implements
 		Action act = e.getData().getAction();
 		GwtAceRange range = e.getData().getRange();
 		Set<MarkerInEditor> moved = new HashSet<MarkerInEditor>();
-		Set<MarkerInEditor> removed = new HashSet<MarkerInEditor>();
+		Set<MarkerInEditor> removed = new HashSet<MarkerInEditor>(markersRemovedOnChange);
 		
-		if (act==Action.insertLines || act==Action.insertText) {
-			for (MarkerInEditor cm : markersInEditor.values()) {
-				if (cm.marker.getOnChange()==OnTextChange.ADJUST) {
-					AceRange newRange = moveMarkerOnInsert(cm.marker.getRange(), range);
-					if (newRange!=null) {
-						newRange = cursorMarkerSanityCheck(cm.marker, newRange);
-						cm.marker = cm.marker.withNewPosition(newRange);
-						if (markerIsValid(cm.marker)) {
-							moved.add(cm);
-						}
-						else {
-							removed.add(cm);
-						}
-					}
-				}
-				else if (cm.marker.getOnChange()==OnTextChange.REMOVE) {
-					removed.add(cm);
+		boolean insert = act==Action.insertLines || act==Action.insertText;
+		if (!insert && act!=Action.removeLines && act!=Action.removeText) {
+			return;
+		}
+		
+		// Only the markers on the rows of the change are moved one by one.
+		// The ones after them just move by the rows added or removed.
+		int row1 = range.getStart().getRow();
+		int row2 = range.getEnd().getRow();
+		List<AceMarker> touched = insert ? adjustedMarkers.markersInRows(row1, row1)
+				: adjustedMarkers.markersInRows(row1, row2);
+		for (AceMarker m : touched) {
+			adjustedMarkers.remove(m.getMarkerId());
+		}
+		
+		int dRow = insert ? row2 - row1 : row1 - row2;
+		if (dRow != 0) {
+			int shiftFrom = insert ? row1 + 1 : row2 + 1;
+			adjustedMarkers.shiftRows(shiftFrom, dRow);
+			// Ace doesn't move its markers, so the moved ones are added anew.
+			for (AceMarker m : adjustedMarkers.markersInRows(shiftFrom + dRow, Integer.MAX_VALUE)) {
+				if (m.getRange().getStartRow() >= shiftFrom + dRow) {
+					MarkerInEditor cm = markersInEditor.get(m.getMarkerId());
+					cm.marker = m;
+					moved.add(cm);
 				}
 			}
 		}
-		else if (act==Action.removeLines || act==Action.removeText) {
-			for (MarkerInEditor cm : markersInEditor.values()) {
-				if (cm.marker.getOnChange()==OnTextChange.ADJUST) {
-					AceRange newRange = moveMarkerOnRemove(cm.marker.getRange(), range);
-					if (newRange!=null) {
-						newRange = cursorMarkerSanityCheck(cm.marker, newRange);
-						cm.marker = cm.marker.withNewPosition(newRange);
-						if (markerIsValid(cm.marker)) {
-							moved.add(cm);
-						}
-						else {
-							removed.add(cm);
-						}
-					}
+		
+		for (AceMarker m : touched) {
+			MarkerInEditor cm = markersInEditor.get(m.getMarkerId());
+			AceRange newRange = insert ? moveMarkerOnInsert(m.getRange(), range)
+					: moveMarkerOnRemove(m.getRange(), range);
+			if (newRange!=null) {
+				newRange = cursorMarkerSanityCheck(m, newRange);
+				cm.marker = m.withNewPosition(newRange);
+				if (markerIsValid(cm.marker)) {
+					moved.add(cm);
 				}
-				else if (cm.marker.getOnChange()==OnTextChange.REMOVE) {
+				else {
 					removed.add(cm);
 				}
 			}
+			adjustedMarkers.put(cm.marker);
 		}
 		
 		removeMarkers(removed);
@@ -481,15 +590,7 @@ public class AceEditorWidget extends FocusWidget implements
 	}
 	
 	private AceRange cursorMarkerSanityCheck(AceMarker m, AceRange r) {
-		if (m.getType()==AceMarker.Type.cursorRow && r.getEndRow() > r.getStartRow() + 1) {
-			return new AceRange(r.getStartRow(), 0, r.getStartRow()+1, 0);
-		}
-		if (m.getType()==AceMarker.Type.cursor &&
-				(r.getStartRow() != r.getEndRow() || r.getEndCol() > r.getStartCol() +1 )) {
-			return new AceRange(r.getEndRow(), r.getEndCol(), r.getEndRow(), r.getEndCol() + 1);
-		}
-		
-		return r;
+		return MarkerTransform.sanitize(m, r);
 	}
 	protected void adjustInvisibleMarkers(GwtAceChangeEvent event) {
 		Action act = event.getData().getAction();
@@ -511,8 +612,7 @@ public class AceEditorWidget extends FocusWidget implements
 	}
 
 	protected static boolean markerIsValid(AceMarker marker) {
-		AceRange r = marker.getRange();
-		return !r.isZeroLength() && !r.isBackwards() && r.getStartRow() >= 0 && r.getStartCol() >= 0 && r.getEndCol() >= 0; // no need to check endrow
+		return MarkerTransform.isValid(marker.getRange());
 	}
 	
 	protected static AceRange moveMarkerOnInsert(AceRange mr, GwtAceRange range) {
@@ -603,6 +703,8 @@ public class AceEditorWidget extends FocusWidget implements
 		for (MarkerInEditor cm : removed) {
 			editor.removeMarker(cm.clientId);
 			markersInEditor.remove(cm.marker.getMarkerId());
+			adjustedMarkers.remove(cm.marker.getMarkerId());
+			markersRemovedOnChange.remove(cm);
 		}
 	}
 	
@@ -784,6 +886,8 @@ public class AceEditorWidget extends FocusWidget implements
 
 	public void setDoc(AceDoc doc) {
 		if (doc.equals(this.doc)) {
+			// Keeps the given one, which the caller may compare by identity.
+			this.doc = doc;
 			return;
 		}
 		
@@ -26,7 +26,13 @@ public class AceRange implements Serializable {
 	}
 	
 	public static AceRange fromPositions(int start, int end, String text) {
-		return fromPositions(start, end, text.split("\n", -1));
+		return fromPositions(start, end, LineIndex.of(text));
+	}
+
+	public static AceRange fromPositions(int start, int end, LineIndex lines) {
+		int[] rc1 = lines.getRowCol(start);
+		int[] rc2 = start==end ? rc1 : lines.getRowCol(end);
+		return new AceRange(rc1[0], rc1[1], rc2[0], rc2[1]);
 	}
 	
 	public static AceRange fromPositions(int start, int end, String[] lines) {
@@ -52,7 +58,13 @@ public class AceRange implements Serializable {
 	}
 	
 	public int[] getPositions(String text) {
-		return getPositions(text.split("\n", -1));
+		return getPositions(LineIndex.of(text));
+	}
+
+	public int[] getPositions(LineIndex lines) {
+		int start = lines.getPosition(row1, col1);
+		int end = isZeroLength() ? start : lines.getPosition(row2, col2);
+		return new int[]{start,end};
 	}
 	
 	public int[] getPositions(String[] lines) {
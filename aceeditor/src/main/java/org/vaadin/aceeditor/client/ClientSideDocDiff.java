@@ -1,6 +1,8 @@
 package org.vaadin.aceeditor.client;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -8,9 +10,11 @@ import org.vaadin.aceeditor.client.AceAnnotation.MarkerAnnotation;
 import org.vaadin.aceeditor.client.AceAnnotation.RowAnnotation;
 import org.vaadin.aceeditor.client.GwtTextDiff.Diff;
 import org.vaadin.aceeditor.client.GwtTextDiff.Patch;
+import org.vaadin.aceeditor.client.TransportDiff.TransportEdit;
 import org.vaadin.aceeditor.client.TransportDoc.TransportMarkerAnnotation;
 import org.vaadin.aceeditor.client.TransportDoc.TransportRowAnnotation;
 
+import com.google.gwt.core.client.JavaScriptObject;
 import com.google.gwt.core.client.JsArray;
 
 
@@ -19,14 +23,53 @@ public class ClientSideDocDiff {
 
 	public static final DiffMatchPatchJSNI dmp = DiffMatchPatchJSNI.newInstance();
 
+	private static final TextMatcher matcher = new TextMatcher() {
+		@Override
+		public int match(String text, String pattern, int loc) {
+			return dmp.match_main(text, pattern, loc);
+		}
+		@Override
+		public int xIndex(String text1, String text2, int loc) {
+			return dmp.diff_xIndex(dmp.diff_main(text1, text2), loc);
+		}
+	};
+
 	private final JsArray<GwtTextDiff.Patch> textPatches;
+	// The diffs the patches were made from and the checksum of their text1,
+	// if known. Used for the compact transport.
+	private JsArray<Diff> textDiffs;
+	private int baseChecksum;
+	// The edits made in the editor from text1 to text2, if known.
+	private List<TransportEdit> edits;
+	// How the markers move with the text, if the diff was made here. The
+	// marker diff then only has what the text changes don't explain.
+	private MarkerTransform markerTransform;
+	// The text the marker transform was made against. Other texts have
+	// their markers moved with the changes as they landed on them.
+	private String transformBase;
 	private final MarkerSetDiff markerSetDiff;
 	private final SetDiff<RowAnnotation,TransportRowAnnotation> rowAnnDiff;
 	private final SetDiff<MarkerAnnotation,TransportMarkerAnnotation> markerAnnDiff;
 
 	public static ClientSideDocDiff fromTransportDiff(TransportDiff ad) {
+		return fromTransportDiff(ad, null);
+	}
+
+	/**
+	 * Like {@link #fromTransportDiff(TransportDiff)} but also accepting a diff
+	 * whose text changes are a delta of the given shadow text. The caller
+	 * should check {@link TransportDiff#baseChecksum} first.
+	 */
+	public static ClientSideDocDiff fromTransportDiff(TransportDiff ad, String shadowText) {
 		
-		JsArray<Patch> patches = dmp.patch_fromText(ad.patchesAsString);
+		JsArray<Patch> patches;
+		if (ad.delta == null) {
+			patches = dmp.patch_fromText(ad.patchesAsString);
+		} else {
+			// Context for applying the patches to a document that differs
+			// from the shadow comes from the shadow itself.
+			patches = dmp.patch_make_diffs(shadowText, dmp.diff_fromDelta(shadowText, ad.delta));
+		}
 		MarkerSetDiff msd = MarkerSetDiff.fromTransportDiff(ad.markerSetDiff);
 		
 		SetDiff<RowAnnotation,TransportRowAnnotation> rowAnns = ad.rowAnnDiff==null ? null : 
@@ -38,16 +81,91 @@ public class ClientSideDocDiff {
 	}
 	
 	public static ClientSideDocDiff diff(AceDoc doc1, AceDoc doc2) {
-		JsArray<GwtTextDiff.Patch> patches = dmp.patch_make(doc1.getText(), doc2.getText());
-		MarkerSetDiff msd = MarkerSetDiff.diff(doc1.getMarkers(), doc2.getMarkers(), doc2.getText());
+		JsArray<Diff> diffs = dmp.diff_main_for_patch(doc1.getText(), doc2.getText());
+		JsArray<GwtTextDiff.Patch> patches = dmp.patch_make_diffs(doc1.getText(), diffs);
+		MarkerTransform mt = transformOf(diffs);
+		MarkerSetDiff msd = MarkerSetDiff.diff(mt.applyTo(doc1, doc2), doc2.getMarkers(), doc2.getText());
 
 		SetDiff<RowAnnotation,TransportRowAnnotation> rowAnnDiff = diffRA(doc1.getRowAnnotations(), doc2.getRowAnnotations());		
 		SetDiff<MarkerAnnotation,TransportMarkerAnnotation> markerAnnDiff = diffMA(doc1.getMarkerAnnotations(), doc2.getMarkerAnnotations());
 		
-		return new ClientSideDocDiff(patches, msd, rowAnnDiff, markerAnnDiff);
+		ClientSideDocDiff csdd = new ClientSideDocDiff(patches, msd, rowAnnDiff, markerAnnDiff);
+		csdd.markerTransform = mt;
+		csdd.transformBase = doc1.getText();
+		csdd.textDiffs = diffs;
+		csdd.baseChecksum = doc1.getTextChecksum();
+		return csdd;
 	}
 	
 
+	/**
+	 * Like {@link #diff(AceDoc, AceDoc)} but with the text changes given as
+	 * the edits made in the editor from doc1 to doc2, so the texts are not
+	 * diffed. The result is for sending to the server only; it can't be
+	 * applied.
+	 */
+	public static ClientSideDocDiff diffWithEdits(AceDoc doc1, AceDoc doc2, List<TransportEdit> edits) {
+		JsArray<GwtTextDiff.Patch> patches = JavaScriptObject.createArray().cast();
+		MarkerTransform mt = transformOf(doc1.getText(), edits);
+		MarkerSetDiff msd = MarkerSetDiff.diff(mt.applyTo(doc1, doc2), doc2.getMarkers(), doc2.getText());
+
+		SetDiff<RowAnnotation,TransportRowAnnotation> rowAnnDiff = diffRA(doc1.getRowAnnotations(), doc2.getRowAnnotations());		
+		SetDiff<MarkerAnnotation,TransportMarkerAnnotation> markerAnnDiff = diffMA(doc1.getMarkerAnnotations(), doc2.getMarkerAnnotations());
+		
+		ClientSideDocDiff csdd = new ClientSideDocDiff(patches, msd, rowAnnDiff, markerAnnDiff);
+		csdd.markerTransform = mt;
+		csdd.transformBase = doc1.getText();
+		csdd.edits = new ArrayList<TransportEdit>(edits);
+		csdd.baseChecksum = doc1.getTextChecksum();
+		return csdd;
+	}
+
+	private static MarkerTransform transformOf(JsArray<Diff> diffs) {
+		MarkerTransform mt = new MarkerTransform();
+		for (int i = 0; i < diffs.length(); ++i) {
+			Diff d = diffs.get(i);
+			int n = d.getText().length();
+			if (d.getOperation() == GwtTextDiff.DIFF_EQUAL) {
+				mt.retain(n);
+			} else if (d.getOperation() == GwtTextDiff.DIFF_DELETE) {
+				mt.delete(n);
+			} else {
+				mt.insert(n);
+			}
+		}
+		return mt;
+	}
+
+	/**
+	 * The edits at the positions the server finds them at, see
+	 * org.vaadin.aceeditor.TextEdits.
+	 */
+	private static MarkerTransform transformOf(String text, List<TransportEdit> edits) {
+		MarkerTransform mt = new MarkerTransform();
+		boolean crOnly = text.indexOf('\n') == -1 && text.indexOf('\r') != -1;
+		LineIndex lines = crOnly ? null : LineIndex.of(text);
+		for (TransportEdit edit : edits) {
+			int rowStart = 0;
+			if (crOnly) {
+				for (int row = 0; row < edit.row; ++row) {
+					rowStart = text.indexOf('\r', rowStart) + 1;
+				}
+			} else if (edit.row > 0) {
+				rowStart = lines.getLineStart(Math.min(edit.row, lines.getLineCount() - 1));
+			}
+			int start = rowStart + edit.column;
+			int end = start + edit.removeLength;
+			String inserted = edit.text == null ? "" : edit.text;
+			mt.replace(start, end, inserted.length());
+			if (crOnly) {
+				text = text.substring(0, start) + inserted + text.substring(end);
+			} else {
+				lines = lines.replace(start, end, inserted);
+			}
+		}
+		return mt;
+	}
+
 	//TODO XXX
 	private static SetDiff<MarkerAnnotation, TransportMarkerAnnotation> diffMA(
 			Set<MarkerAnnotation> anns1,
@@ -93,9 +211,26 @@ public class ClientSideDocDiff {
 		return dmp.patch_toText(textPatches);
 	}
 	
+	private Map<String, AceMarker> moveMarkers(AceDoc doc, String text) {
+		if (markerTransform == null) {
+			return doc.getMarkers();
+		}
+		AceDoc doc2 = new AceDoc(text);
+		if (doc.getText().equals(transformBase)) {
+			return markerTransform.applyTo(doc, doc2);
+		}
+		// The text isn't the one the diff was made against, as when a resync
+		// brings the text of the server, so the changes are where the
+		// patches landed on it.
+		MarkerTransform mt = doc.getText().equals(text) ? new MarkerTransform()
+				: transformOf(dmp.diff_main_for_patch(doc.getText(), text));
+		return mt.applyTo(doc, doc2);
+	}
+
 	public AceDoc applyTo(AceDoc doc) {
 		String text = dmp.patch_apply(textPatches, doc.getText());
-		Map<String, AceMarker> markers = markerSetDiff.applyTo(doc.getMarkers(), text);
+		Map<String, AceMarker> markers = moveMarkers(doc, text);
+		markers = markerSetDiff.applyTo(markers, text, null, matcher);
 		
 		Set<RowAnnotation> rowAnns = rowAnnDiff==null ? null : rowAnnDiff.applyTo(doc.getRowAnnotations());
 		Set<MarkerAnnotation> markerAnns = markerAnnDiff==null ? null : markerAnnDiff.applyTo(doc.getMarkerAnnotations());
@@ -104,8 +239,29 @@ public class ClientSideDocDiff {
 	}
 
 	public TransportDiff asTransport() {
+		return asTransport(false);
+	}
+
+	/**
+	 * Like {@link #asTransport()} but with the text changes as a delta of the
+	 * shadow, without any context, if this diff was made by
+	 * {@link #diff(AceDoc, AceDoc)}.
+	 */
+	public TransportDiff asDeltaTransport() {
+		return asTransport(textDiffs != null);
+	}
+
+	private TransportDiff asTransport(boolean delta) {
 		TransportDiff d = new TransportDiff();
-		d.patchesAsString = getPatchesString();
+		if (edits != null) {
+			d.edits = edits;
+			d.baseChecksum = baseChecksum;
+		} else if (delta) {
+			d.delta = dmp.diff_toDelta(textDiffs);
+			d.baseChecksum = baseChecksum;
+		} else {
+			d.patchesAsString = getPatchesString();
+		}
 		d.markerSetDiff = markerSetDiff.asTransportDiff();
 		d.rowAnnDiff = rowAnnDiff==null ? null : rowAnnDiff.asTransportRowAnnotations();
 		d.markerAnnDiff = markerAnnDiff==null ? null : markerAnnDiff.asTransportMarkerAnnotations();
@@ -113,6 +269,9 @@ public class ClientSideDocDiff {
 	}
 
 	public boolean isIdentity() {
+		if (edits != null) {
+			return edits.isEmpty();
+		}
 		return textPatches == null || textPatches.length()==0;
 	}
 	
@@ -124,8 +283,8 @@ public class ClientSideDocDiff {
 	public static class Adjuster {
 		private String s1;
 		private String s2;
-		private String[] lines1;
-		private String[] lines2;
+		private LineIndex lines1;
+		private LineIndex lines2;
 		private JsArray<Diff> diffs;
 		private boolean stringsEqual;
 		private boolean calcDone;
@@ -142,17 +301,17 @@ public class ClientSideDocDiff {
 				calc();
 			}
 			boolean zeroLength = r.isZeroLength();
-			int start1 = Util.cursorPosFromLineCol(lines1, r.getStartRow(), r.getStartCol(), 0);
-			int end1 = zeroLength ? start1 : Util.cursorPosFromLineCol(lines1, r.getEndRow(), r.getEndCol(), 0);
+			int start1 = lines1.getPosition(r.getStartRow(), r.getStartCol());
+			int end1 = zeroLength ? start1 : lines1.getPosition(r.getEndRow(), r.getEndCol());
 			int start2 = dmp.diff_xIndex(diffs, start1);
 			int end2 = zeroLength ? start2 : dmp.diff_xIndex(diffs, end1);
-			int[] startRowCol = Util.lineColFromCursorPos(lines2, start2, 0);
-			int[] endRowCol = zeroLength ? startRowCol : Util.lineColFromCursorPos(lines2, end2, 0);
+			int[] startRowCol = lines2.getRowCol(start2);
+			int[] endRowCol = zeroLength ? startRowCol : lines2.getRowCol(end2);
 			return new AceRange(startRowCol[0], startRowCol[1], endRowCol[0], endRowCol[1]);
 		}
 		private void calc() {
-			lines1 = s1.split("\n", -1);
-			lines2 = s2.split("\n", -1);
+			lines1 = LineIndex.of(s1);
+			lines2 = LineIndex.of(s2);
 			diffs = dmp.diff_main(s1, s2);
 		}
 	}
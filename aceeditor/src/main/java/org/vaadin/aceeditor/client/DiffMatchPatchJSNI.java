@@ -55,6 +55,30 @@ public class DiffMatchPatchJSNI extends JavaScriptObject {
 		return this.patch_make(text1, text2);
 	}-*/;
 
+	/**
+	 * The diffs patch_make(text1, text2) would make the patches of.
+	 */
+	native final public JsArray<Diff> diff_main_for_patch(String text1, String text2) /*-{
+		var diffs = this.diff_main(text1, text2, true);
+		if (diffs.length > 2) {
+			this.diff_cleanupSemantic(diffs);
+			this.diff_cleanupEfficiency(diffs);
+		}
+		return diffs;
+	}-*/;
+
+	native final public JsArray<Patch> patch_make_diffs(String text1, JsArray<Diff> diffs) /*-{
+		return this.patch_make(text1, diffs);
+	}-*/;
+
+	native final public String diff_toDelta(JsArray<Diff> diffs) /*-{
+		return this.diff_toDelta(diffs);
+	}-*/;
+
+	native final public JsArray<Diff> diff_fromDelta(String text1, String delta) /*-{
+		return this.diff_fromDelta(text1, delta);
+	}-*/;
+
 	native final public void setMatch_Threshold(double d) /*-{
 		this.Match_Threshold = d;
 	}-*/;
@@ -0,0 +1,267 @@
+package org.vaadin.aceeditor.client;
+
+import java.io.Serializable;
+
+/**
+ * Where the lines of a text start, for converting between positions and
+ * rows and columns with a binary search instead of splitting the text.
+ * Lines end at \n, as in {@link Util#cursorPosFromLineCol(String, int, int, int)}.
+ *
+ * Immutable. {@link #replace(int, int, String)} makes the index of an edited
+ * text from the old one without going through the text. The line starts are
+ * kept in chunks relative to the start of their chunk, so an edit rebuilds
+ * the chunks it touches and shifts the starts of the chunks after it, sharing
+ * their contents with the old index.
+ */
+@SuppressWarnings("serial")
+public final class LineIndex implements Serializable {
+
+	// Lines in a chunk made from a whole text, and the most and the fewest
+	// lines a chunk rebuilt by an edit gets.
+	private static final int CHUNK = 512;
+	private static final int MAX_CHUNK = 2 * CHUNK;
+	private static final int MIN_CHUNK = CHUNK / 4;
+
+	private static final LineIndex EMPTY = of(new int[] { 0 }, 1, 0);
+
+	// Chunk c has the rows from firstRows[c] on, starting at bases[c] plus
+	// chunks[c][i], of which chunks[c][0] is always 0. firstRows has one more
+	// element, the number of lines.
+	private final int[][] chunks;
+	private final int[] bases;
+	private final int[] firstRows;
+	private final int length;
+
+	private LineIndex(int[][] chunks, int[] bases, int[] firstRows, int length) {
+		this.chunks = chunks;
+		this.bases = bases;
+		this.firstRows = firstRows;
+		this.length = length;
+	}
+
+	public static LineIndex of(String text) {
+		if (text == null || text.isEmpty()) {
+			return EMPTY;
+		}
+		int[] starts = new int[16];
+		int n = 1;
+		int i = text.indexOf('\n');
+		while (i != -1) {
+			if (n == starts.length) {
+				starts = grow(starts);
+			}
+			starts[n++] = i + 1;
+			i = text.indexOf('\n', i + 1);
+		}
+		return of(starts, n, text.length());
+	}
+
+	public static LineIndex of(Rope text) {
+		if (text.isEmpty()) {
+			return EMPTY;
+		}
+		int[] starts = new int[16];
+		int n = 1;
+		int i = text.indexOf('\n', 0);
+		while (i != -1) {
+			if (n == starts.length) {
+				starts = grow(starts);
+			}
+			starts[n++] = i + 1;
+			i = text.indexOf('\n', i + 1);
+		}
+		return of(starts, n, text.length());
+	}
+
+	private static LineIndex of(int[] starts, int n, int length) {
+		int count = (n + CHUNK - 1) / CHUNK;
+		int[][] chunks = new int[count][];
+		int[] bases = new int[count];
+		int[] firstRows = new int[count + 1];
+		chunk(starts, 0, n, chunks, bases, firstRows, 0, CHUNK);
+		firstRows[count] = n;
+		return new LineIndex(chunks, bases, firstRows, length);
+	}
+
+	/**
+	 * Puts the starts [from,to) in chunks of the given size from chunk c on.
+	 * 
+	 * @return the chunk after them
+	 */
+	private static int chunk(int[] starts, int from, int to, int[][] chunks,
+			int[] bases, int[] firstRows, int c, int size) {
+		int row = firstRows[c];
+		for (int i = from; i < to; i += size, ++c) {
+			int n = Math.min(size, to - i);
+			int[] chunk = new int[n];
+			for (int j = 0; j < n; ++j) {
+				chunk[j] = starts[i + j] - starts[i];
+			}
+			chunks[c] = chunk;
+			bases[c] = starts[i];
+			firstRows[c] = row;
+			row += n;
+		}
+		return c;
+	}
+
+	public int getLineCount() {
+		return firstRows[chunks.length];
+	}
+
+	public int getTextLength() {
+		return length;
+	}
+
+	/**
+	 * Position of the first character of the row, starting from 0.
+	 */
+	public int getLineStart(int row) {
+		if (row < 0 || row >= getLineCount()) {
+			throw new ArrayIndexOutOfBoundsException(row);
+		}
+		int c = chunkOfRow(row);
+		return bases[c] + chunks[c][row - firstRows[c]];
+	}
+
+	/**
+	 * Position of the row and the column. A row before the first gives 0 and
+	 * a row after the last gives the text length + 1, as
+	 * {@link Util#cursorPosFromLineCol(String, int, int, int)}.
+	 */
+	public int getPosition(int row, int col) {
+		if (row < 0) {
+			return 0;
+		}
+		if (row >= getLineCount()) {
+			return length + 1;
+		}
+		return getLineStart(row) + col;
+	}
+
+	/**
+	 * Row and column of the position. A position past the end is on the row
+	 * after the last, as {@link Util#lineColFromCursorPos(String, int, int)}.
+	 */
+	public int[] getRowCol(int pos) {
+		if (pos < 0) {
+			return new int[] { 0, pos };
+		}
+		if (pos > length) {
+			return new int[] { getLineCount(), pos - length - 1 };
+		}
+		int row = lastStartAtOrBefore(pos);
+		return new int[] { row, pos - getLineStart(row) };
+	}
+
+	/**
+	 * Returns the index of the text with the characters [start,end) replaced
+	 * with the given text.
+	 */
+	public LineIndex replace(int start, int end, String text) {
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("Invalid range [" + start
+					+ "," + end + ") of a text of length " + length);
+		}
+		if (text == null) {
+			text = "";
+		}
+		int delta = text.length() - (end - start);
+		// The lines starting in (start,end] are removed, the ones in the text
+		// added, and the ones after end moved. Only the chunks c1..c2 of the
+		// rows of start and end are rebuilt, along with the next one if
+		// they'd be left too small.
+		int first = lastStartAtOrBefore(start) + 1;
+		int after = lastStartAtOrBefore(end) + 1;
+		int c1 = chunkOfRow(first - 1);
+		int c2 = chunkOfRow(after - 1) + 1;
+		int added = Util.count('\n', text);
+		int n = first - firstRows[c1] + added + firstRows[c2] - after;
+		if (n < MIN_CHUNK && c2 < chunks.length) {
+			n += firstRows[c2 + 1] - firstRows[c2];
+			++c2;
+		}
+
+		int[] starts2 = new int[n];
+		int i = 0;
+		for (int row = firstRows[c1]; row < first; ++row) {
+			starts2[i++] = getLineStart(row);
+		}
+		int nl = text.indexOf('\n');
+		while (nl != -1) {
+			starts2[i++] = start + nl + 1;
+			nl = text.indexOf('\n', nl + 1);
+		}
+		for (int row = after; row < firstRows[c2]; ++row) {
+			starts2[i++] = getLineStart(row) + delta;
+		}
+
+		// The rebuilt lines in as few chunks as they fit in, of even sizes.
+		int pieces = (n + MAX_CHUNK - 1) / MAX_CHUNK;
+		int size = (n + pieces - 1) / pieces;
+		int rebuilt = (n + size - 1) / size;
+		int count = c1 + rebuilt + chunks.length - c2;
+		int[][] chunks2 = new int[count][];
+		int[] bases2 = new int[count];
+		int[] firstRows2 = new int[count + 1];
+		System.arraycopy(chunks, 0, chunks2, 0, c1);
+		System.arraycopy(bases, 0, bases2, 0, c1);
+		System.arraycopy(firstRows, 0, firstRows2, 0, c1 + 1);
+		int c = chunk(starts2, 0, n, chunks2, bases2, firstRows2, c1, size);
+		int dRows = added - (after - first);
+		System.arraycopy(chunks, c2, chunks2, c, chunks.length - c2);
+		for (int j = c2; j <= chunks.length; ++j, ++c) {
+			if (j < chunks.length) {
+				bases2[c] = bases[j] + delta;
+			}
+			firstRows2[c] = firstRows[j] + dRows;
+		}
+		return new LineIndex(chunks2, bases2, firstRows2, length + delta);
+	}
+
+	private int chunkOfRow(int row) {
+		int lo = 0;
+		int hi = chunks.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (firstRows[mid] <= row) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	private int lastStartAtOrBefore(int pos) {
+		int lo = 0;
+		int hi = chunks.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (bases[mid] <= pos) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		int[] chunk = chunks[lo];
+		int rel = pos - bases[lo];
+		int l = 0;
+		int h = chunk.length - 1;
+		while (l < h) {
+			int mid = (l + h + 1) >>> 1;
+			if (chunk[mid] <= rel) {
+				l = mid;
+			} else {
+				h = mid - 1;
+			}
+		}
+		return firstRows[lo] + l;
+	}
+
+	private static int[] grow(int[] a) {
+		int[] b = new int[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}
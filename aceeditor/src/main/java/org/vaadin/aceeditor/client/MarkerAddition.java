@@ -2,32 +2,124 @@ package org.vaadin.aceeditor.client;
 
 import org.vaadin.aceeditor.client.TransportDiff.TransportMarkerAddition;
 
+/**
+ * A marker added to a text, with the text just before and after it, so that
+ * it can be put on the same text in another version of the text, where the
+ * text may have moved.
+ */
 public class MarkerAddition {
+
+	// Characters of context on each side of the marker, few enough for the
+	// bitap of diff_match_patch on both sides.
+	private static final int CONTEXT_LENGTH = 16;
+
 	private final AceMarker marker;
 	private final String startContext;
 	private final String endContext;
+
 	public MarkerAddition(AceMarker marker, String text2) {
+		this(marker, text2, LineIndex.of(text2));
+	}
+
+	/**
+	 * @param lines2
+	 *            the line index of text2, for adding many markers to the same
+	 *            text without going through it for each
+	 */
+	public MarkerAddition(AceMarker marker, String text2, LineIndex lines2) {
 		this.marker = marker;
-		
-		// TODO
-		startContext = "";
-		endContext = "";
+		int[] pos = marker.getRange().getPositions(lines2);
+		int start = clamp(pos[0], text2.length());
+		int end = clamp(pos[1], text2.length());
+		startContext = text2.substring(Math.max(0, start - CONTEXT_LENGTH), start);
+		endContext = text2.substring(end, Math.min(text2.length(), end + CONTEXT_LENGTH));
 	}
+
 	private MarkerAddition(AceMarker marker, String startContext, String endContext) {
 		this.marker = marker;
 		this.startContext = startContext;
 		this.endContext = endContext;
 	}
+
 	public AceMarker getAdjustedMarker(String text) {
-		// TODO adjust
-		return marker;
+		return getAdjustedMarker(text, LineIndex.of(text), null);
+	}
+
+	/**
+	 * Returns the marker moved to where its context is in the text. If the
+	 * context is where the marker says, the marker is returned as it is, so
+	 * that the matcher is only used for the markers that have moved.
+	 *
+	 * @param lines
+	 *            the line index of the text
+	 * @param matcher
+	 *            for finding the context if it's not where it was, or null
+	 *            to leave the marker where it is then
+	 */
+	public AceMarker getAdjustedMarker(String text, LineIndex lines, TextMatcher matcher) {
+		if (startContext == null || endContext == null) {
+			return marker;
+		}
+		int[] pos = marker.getRange().getPositions(lines);
+		int start = clamp(pos[0], text.length());
+		int end = clamp(pos[1], text.length());
+		int start2 = findEnd(text, startContext, start, matcher);
+		int end2 = find(text, endContext, end, matcher);
+		if (end2 == -1) {
+			end2 = end;
+		}
+		if (end2 < start2) {
+			// Only one side was found, or found somewhere else.
+			end2 = Math.min(start2 + end - start, text.length());
+		}
+		if (start2 == pos[0] && end2 == pos[1]) {
+			return marker;
+		}
+		return marker.withNewPosition(AceRange.fromPositions(start2, end2, lines));
 	}
+
+	/**
+	 * Like {@link #find(String, String, int, TextMatcher)} but returns where
+	 * the context ends in the text, expected at loc, or loc if it isn't
+	 * found. A fuzzy match may be longer or shorter than the context, so the
+	 * end of the match is found through a diff of them, as patch_apply of
+	 * diff_match_patch does.
+	 */
+	private static int findEnd(String text, String context, int loc, TextMatcher matcher) {
+		int found = find(text, context, loc - context.length(), matcher);
+		if (found == -1) {
+			return loc;
+		}
+		int end = found + context.length();
+		if (context.isEmpty() || text.startsWith(context, found)) {
+			return end;
+		}
+		String matched = text.substring(found, Math.min(end, text.length()));
+		// The last character of the context is always in the diff, unlike
+		// the end of it, which may be before an insertion.
+		return found + matcher.xIndex(context, matched, context.length() - 1) + 1;
+	}
+
+	private static int find(String text, String context, int loc, TextMatcher matcher) {
+		if (context.isEmpty() || text.startsWith(context, loc)) {
+			return loc;
+		}
+		if (matcher == null) {
+			return -1;
+		}
+		return matcher.match(text, context, clamp(loc, text.length()));
+	}
+
+	private static int clamp(int pos, int length) {
+		return Math.max(0, Math.min(pos, length));
+	}
+
 	public TransportMarkerAddition asTransport() {
 		return new TransportMarkerAddition(marker.asTransport(), startContext, endContext);
 	}
 	public static MarkerAddition fromTransport(TransportMarkerAddition ta) {
 		return new MarkerAddition(AceMarker.fromTransport(ta.marker), ta.startContext, ta.endContext);
 	}
-	
+
 
 }
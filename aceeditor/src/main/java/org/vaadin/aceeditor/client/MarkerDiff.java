@@ -2,12 +2,12 @@ package org.vaadin.aceeditor.client;
 
 import org.vaadin.aceeditor.client.TransportDiff.TransportMarkerDiff;
 
-// TODO This is not the best way to diff markers.
-// This is just stupid line-col diff without considering the
-// text at all. That's why the markers don't always stay
-// where you expect them to.
-// Hence you can't currently use markers in anything you need to be
-// sure their position is correct.
+// This is just a line-col diff without considering the text at all.
+// The diffs from the client are made after moving the markers with the
+// text changes (see MarkerTransform), so they only have what the text
+// changes don't explain. The diffs from the server are still made without
+// the text, so its markers don't always stay where you expect them to
+// after it changes the text.
 
 public class MarkerDiff {
 	private final RangeDiff rangeDiff;
@@ -0,0 +1,306 @@
+package org.vaadin.aceeditor.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Markers by their rows, for finding the markers on given rows in
+ * O(log n + k) instead of going through all of them.
+ *
+ * The markers are kept in a treap ordered by their start row, where each
+ * node also knows the greatest end row of its subtree. The rows of all the
+ * markers from a row on are shifted at once in O(log n) by
+ * {@link #shiftRows(int, int)}: the shift is left at the top of the subtree
+ * and pushed down to the markers only when they're looked at.
+ */
+public class MarkerIndex {
+
+	private static final class Node {
+		// Up to date, except for the shifts pending in the ancestors.
+		private AceMarker marker;
+		private final int priority;
+		private Node left;
+		private Node right;
+		private Node parent;
+		private int maxEndRow;
+		// Rows to add to the markers of the children.
+		private int shift;
+
+		private Node(AceMarker marker, int priority) {
+			this.marker = marker;
+			this.priority = priority;
+			this.maxEndRow = marker.getRange().getEndRow();
+		}
+	}
+
+	private Node root;
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+	// For the priorities of the treap.
+	private int seed = 0x2545F491;
+
+	public MarkerIndex() {
+	}
+
+	public MarkerIndex(Iterable<AceMarker> markers) {
+		for (AceMarker m : markers) {
+			put(m);
+		}
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+
+	public boolean isEmpty() {
+		return nodes.isEmpty();
+	}
+
+	/**
+	 * Adds the marker, or replaces the one with the same id.
+	 */
+	public void put(AceMarker marker) {
+		remove(marker.getMarkerId());
+		Node n = new Node(marker, nextPriority());
+		nodes.put(marker.getMarkerId(), n);
+		Node[] lr = split(root, marker.getRange().getStartRow(),
+				marker.getMarkerId());
+		setRoot(merge(merge(lr[0], n), lr[1]));
+	}
+
+	/**
+	 * @return the removed marker with its current position, or null if it
+	 *         wasn't there
+	 */
+	public AceMarker remove(String markerId) {
+		Node n = nodes.remove(markerId);
+		if (n == null) {
+			return null;
+		}
+		pushFromRoot(n);
+		push(n);
+		Node joined = merge(n.left, n.right);
+		Node p = n.parent;
+		if (joined != null) {
+			joined.parent = p;
+		}
+		if (p == null) {
+			root = joined;
+		} else {
+			if (p.left == n) {
+				p.left = joined;
+			} else {
+				p.right = joined;
+			}
+			for (Node a = p; a != null; a = a.parent) {
+				pull(a);
+			}
+		}
+		n.left = n.right = n.parent = null;
+		return n.marker;
+	}
+
+	/**
+	 * The marker with its current position, or null.
+	 */
+	public AceMarker get(String markerId) {
+		Node n = nodes.get(markerId);
+		if (n == null) {
+			return null;
+		}
+		pushFromRoot(n);
+		return n.marker;
+	}
+
+	/**
+	 * Adds delta to the rows of the markers that start at fromRow or after.
+	 *
+	 * The order of the markers must stay the same, that is, a negative delta
+	 * must not move them to the row of a marker that starts before fromRow,
+	 * or above it.
+	 */
+	public void shiftRows(int fromRow, int delta) {
+		if (delta == 0 || root == null) {
+			return;
+		}
+		Node[] lr = split(root, fromRow, null);
+		if (lr[1] != null) {
+			shift(lr[1], delta);
+		}
+		setRoot(merge(lr[0], lr[1]));
+	}
+
+	/**
+	 * The markers that have something on the rows [fromRow,toRow], in the
+	 * order of their start rows.
+	 */
+	public List<AceMarker> markersInRows(int fromRow, int toRow) {
+		List<AceMarker> found = new ArrayList<AceMarker>();
+		collect(root, fromRow, toRow, found);
+		return found;
+	}
+
+	/**
+	 * The markers that overlap or touch the range, in the order of their
+	 * start rows.
+	 */
+	public List<AceMarker> markersOverlapping(AceRange range) {
+		List<AceMarker> found = new ArrayList<AceMarker>();
+		for (AceMarker m : markersInRows(range.getStartRow(), range.getEndRow())) {
+			AceRange r = m.getRange();
+			if (!before(r.getEndRow(), r.getEndCol(), range.getStartRow(),
+					range.getStartCol())
+					&& !before(range.getEndRow(), range.getEndCol(),
+							r.getStartRow(), r.getStartCol())) {
+				found.add(m);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * All the markers, in the order of their start rows.
+	 */
+	public List<AceMarker> getMarkers() {
+		return markersInRows(Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	private static boolean before(int row1, int col1, int row2, int col2) {
+		return row1 < row2 || row1 == row2 && col1 < col2;
+	}
+
+	private int nextPriority() {
+		// xorshift
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return seed;
+	}
+
+	private void collect(Node n, int fromRow, int toRow, List<AceMarker> found) {
+		if (n == null || n.maxEndRow < fromRow) {
+			return;
+		}
+		push(n);
+		collect(n.left, fromRow, toRow, found);
+		AceRange r = n.marker.getRange();
+		if (r.getStartRow() > toRow) {
+			return;
+		}
+		if (r.getEndRow() >= fromRow) {
+			found.add(n.marker);
+		}
+		collect(n.right, fromRow, toRow, found);
+	}
+
+	private static void shift(Node n, int delta) {
+		AceRange r = n.marker.getRange();
+		n.marker = n.marker.withNewPosition(new AceRange(r.getStartRow()
+				+ delta, r.getStartCol(), r.getEndRow() + delta, r.getEndCol()));
+		n.maxEndRow += delta;
+		n.shift += delta;
+	}
+
+	private static void push(Node n) {
+		if (n.shift != 0) {
+			if (n.left != null) {
+				shift(n.left, n.shift);
+			}
+			if (n.right != null) {
+				shift(n.right, n.shift);
+			}
+			n.shift = 0;
+		}
+	}
+
+	/**
+	 * Pushes the pending shifts down the path from the root to n.
+	 */
+	private static void pushFromRoot(Node n) {
+		List<Node> path = new ArrayList<Node>();
+		for (Node a = n.parent; a != null; a = a.parent) {
+			path.add(a);
+		}
+		for (int i = path.size() - 1; i >= 0; --i) {
+			push(path.get(i));
+		}
+	}
+
+	private static void pull(Node n) {
+		int max = n.marker.getRange().getEndRow();
+		if (n.left != null) {
+			n.left.parent = n;
+			max = Math.max(max, n.left.maxEndRow);
+		}
+		if (n.right != null) {
+			n.right.parent = n;
+			max = Math.max(max, n.right.maxEndRow);
+		}
+		n.maxEndRow = max;
+	}
+
+	private void setRoot(Node n) {
+		root = n;
+		if (n != null) {
+			n.parent = null;
+		}
+	}
+
+	/**
+	 * Whether n comes before the given start row and marker id. A null id
+	 * comes before all the markers on the row.
+	 */
+	private static boolean before(Node n, int row, String markerId) {
+		int r = n.marker.getRange().getStartRow();
+		if (r != row) {
+			return r < row;
+		}
+		return markerId != null && n.marker.getMarkerId().compareTo(markerId) < 0;
+	}
+
+	/**
+	 * Splits the tree into the nodes before the row and the id, and the rest.
+	 */
+	private static Node[] split(Node n, int row, String markerId) {
+		if (n == null) {
+			return new Node[] { null, null };
+		}
+		push(n);
+		if (before(n, row, markerId)) {
+			Node[] lr = split(n.right, row, markerId);
+			n.right = lr[0];
+			pull(n);
+			if (lr[1] != null) {
+				lr[1].parent = null;
+			}
+			return new Node[] { n, lr[1] };
+		}
+		Node[] lr = split(n.left, row, markerId);
+		n.left = lr[1];
+		pull(n);
+		if (lr[0] != null) {
+			lr[0].parent = null;
+		}
+		return new Node[] { lr[0], n };
+	}
+
+	private static Node merge(Node l, Node r) {
+		if (l == null) {
+			return r;
+		}
+		if (r == null) {
+			return l;
+		}
+		if (l.priority > r.priority) {
+			push(l);
+			l.right = merge(l.right, r);
+			pull(l);
+			return l;
+		}
+		push(r);
+		r.left = merge(l, r.left);
+		pull(r);
+		return r;
+	}
+}
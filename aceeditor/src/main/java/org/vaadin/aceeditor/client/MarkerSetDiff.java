@@ -36,6 +36,7 @@ public class MarkerSetDiff implements Serializable {
 
 		Map<String, MarkerAddition> added = new HashMap<String, MarkerAddition>();
 		Map<String, MarkerDiff> diffs = new HashMap<String, MarkerDiff>();
+		LineIndex lines2 = null;
 		for (Entry<String, AceMarker> e : m2.entrySet()) {
 			AceMarker c1 = m1.get(e.getKey());
 			if (c1 != null) {
@@ -44,7 +45,10 @@ public class MarkerSetDiff implements Serializable {
 					diffs.put(e.getKey(), d);
 				}
 			} else {
-				added.put(e.getKey(), new MarkerAddition(e.getValue(), text2));
+				if (lines2 == null) {
+					lines2 = LineIndex.of(text2);
+				}
+				added.put(e.getKey(), new MarkerAddition(e.getValue(), text2, lines2));
 			}
 		}
 
@@ -54,6 +58,37 @@ public class MarkerSetDiff implements Serializable {
 		return new MarkerSetDiff(added, diffs, removedIds);
 	}
 
+	/**
+	 * Like {@link #diff(Map, Map, String)} but only comparing the markers
+	 * with the given ids, the others being known to be the same in both.
+	 */
+	public static MarkerSetDiff diff(Map<String, AceMarker> m1, Map<String, AceMarker> m2, Set<String> ids, String text2) {
+
+		Map<String, MarkerAddition> added = new HashMap<String, MarkerAddition>();
+		Map<String, MarkerDiff> diffs = new HashMap<String, MarkerDiff>();
+		Set<String> removedIds = new HashSet<String>();
+		LineIndex lines2 = null;
+		for (String id : ids) {
+			AceMarker c1 = m1.get(id);
+			AceMarker c2 = m2.get(id);
+			if (c1 != null && c2 != null) {
+				MarkerDiff d = MarkerDiff.diff(c1, c2);
+				if (!d.isIdentity()) {
+					diffs.put(id, d);
+				}
+			} else if (c2 != null) {
+				if (lines2 == null) {
+					lines2 = LineIndex.of(text2);
+				}
+				added.put(id, new MarkerAddition(c2, text2, lines2));
+			} else if (c1 != null) {
+				removedIds.add(id);
+			}
+		}
+
+		return new MarkerSetDiff(added, diffs, removedIds);
+	}
+
 //	public Map<String, TransportMarker> applyTo(Map<String, TransportMarker> markers) {
 //		Map<String, TransportMarker> markers2 = new HashMap<String, TransportMarker>();
 //		for (Entry<String, TransportMarkerAddition> e : added.entrySet()) {
@@ -82,31 +117,43 @@ public class MarkerSetDiff implements Serializable {
 //		return markers2;
 //	}
 	
+	/**
+	 * Only the markers in the diff are touched, the others are shared with
+	 * the given markers if they're a {@link PersistentMap}.
+	 */
 	public Map<String, AceMarker> applyTo(Map<String, AceMarker> markers, String text2) {
-		Map<String, AceMarker> markers2 = new HashMap<String, AceMarker>();
+		return applyTo(markers, text2, null, null);
+	}
+
+	/**
+	 * Like {@link #applyTo(Map, String)} but moving the added markers to
+	 * where their context is in text2 with the given matcher (see
+	 * {@link MarkerAddition#getAdjustedMarker(String, LineIndex, TextMatcher)}).
+	 * 
+	 * @param lines2
+	 *            the line index of text2, or null to make it if needed
+	 */
+	public Map<String, AceMarker> applyTo(Map<String, AceMarker> markers, String text2,
+			LineIndex lines2, TextMatcher matcher) {
+		PersistentMap<String, AceMarker> markers2 = PersistentMap.copyOf(markers).minusAll(removed);
+		if (lines2 == null && !added.isEmpty()) {
+			lines2 = LineIndex.of(text2);
+		}
 		for (Entry<String, MarkerAddition> e : added.entrySet()) {
-			AceMarker adjusted = e.getValue().getAdjustedMarker(text2);
+			AceMarker adjusted = e.getValue().getAdjustedMarker(text2, lines2, matcher);
 			if (adjusted != null) {
-				markers2.put(e.getKey(), adjusted);
+				markers2 = markers2.plus(e.getKey(), adjusted);
 			}
 		}
 
-		for (Entry<String, AceMarker> e : markers.entrySet()) {
-			if (removed.contains(e.getKey())) {
+		for (Entry<String, MarkerDiff> e : moved.entrySet()) {
+			// Only the markers that were there already are moved.
+			if (removed.contains(e.getKey()) || !markers.containsKey(e.getKey())) {
 				continue;
 			}
-			AceMarker m = e.getValue();
-			
-			// ???
-			if (markers2.containsKey(e.getKey())) {
-				 m = markers2.get(e.getKey());
-			}
-			
-			MarkerDiff md = moved.get(e.getKey());
-			if (md != null) {
-				markers2.put(e.getKey(), md.applyTo(m));
-			} else {
-				markers2.put(e.getKey(), m);
+			AceMarker m = markers2.get(e.getKey());
+			if (m != null) {
+				markers2 = markers2.plus(e.getKey(), e.getValue().applyTo(m));
 			}
 		}
 
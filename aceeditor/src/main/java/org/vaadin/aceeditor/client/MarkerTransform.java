@@ -0,0 +1,343 @@
+package org.vaadin.aceeditor.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.vaadin.aceeditor.client.AceMarker.OnTextChange;
+
+/**
+ * Moves markers with the changes of a text, as the editor moves them while
+ * the text is edited, so that the client and the server can move their
+ * markers the same way without sending each move.
+ *
+ * The changes are kept as edits of the original text in order, made either
+ * in order with {@link #retain(int)}, {@link #delete(int)} and
+ * {@link #insert(int)} as diff_match_patch diffs, or one by one with
+ * {@link #replace(int, int, int)} as the edits made in the editor.
+ *
+ * As in the editor, a position in a removed part goes to where the part
+ * was, and text inserted where a marker starts or ends goes in the marker.
+ * A marker that a removal leaves empty is removed, as the editor removes it
+ * right away. Edits that don't touch each other are gone through at once.
+ * An edit touching an earlier one is kept apart and gone through after it,
+ * unless putting them together moves the markers the same, as when typing
+ * on at the end of an edit, so every position moves edit by edit as in the
+ * editor. The moved markers are then checked by the rules of the editor
+ * (see {@link #sanitize(AceMarker, AceRange)} and
+ * {@link #isValid(AceRange)}). The editor checks cursor markers after each
+ * edit and this after all of them, so only those can end up differently.
+ *
+ * The changes are positions of the text they were made against, so the
+ * transform must be applied to the markers of that text. A text that has
+ * changed since needs a transform of its own changes.
+ */
+public class MarkerTransform {
+
+	/**
+	 * Edits that don't touch each other, in order. Edit i replaces
+	 * [starts[i],ends[i]) of the text before them with lengths[i]
+	 * characters.
+	 */
+	private static final class Layer {
+		private int[] starts = new int[4];
+		private int[] ends = new int[4];
+		private int[] lengths = new int[4];
+		private int count;
+
+		private void add(int i, int start, int end, int n) {
+			if (count == starts.length) {
+				starts = grow(starts);
+				ends = grow(ends);
+				lengths = grow(lengths);
+			}
+			System.arraycopy(starts, i, starts, i + 1, count - i);
+			System.arraycopy(ends, i, ends, i + 1, count - i);
+			System.arraycopy(lengths, i, lengths, i + 1, count - i);
+			starts[i] = start;
+			ends[i] = end;
+			lengths[i] = n;
+			++count;
+		}
+
+		/**
+		 * The first edit that doesn't end before pos.
+		 */
+		private int editAt(int pos) {
+			int lo = 0;
+			int hi = count;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (ends[mid] < pos) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	// The layers in order, each made against the text after the ones before
+	// it. The diffs and the edits go to the latest one.
+	private final List<Layer> layers = new ArrayList<Layer>();
+	private Layer layer = new Layer();
+
+	// Where the diffs are in the original and the new text, and whether the
+	// latest one was a change.
+	private int pos1;
+	private int pos2;
+	private boolean inEdit;
+	// How many of the next unchanged characters were already skipped.
+	private int behind;
+
+	public MarkerTransform() {
+		layers.add(layer);
+	}
+
+	/**
+	 * Skips n unchanged characters.
+	 */
+	public void retain(int n) {
+		int skipped = Math.min(n, behind);
+		behind -= skipped;
+		n -= skipped;
+		if (n > 0) {
+			pos1 += n;
+			pos2 += n;
+			inEdit = false;
+		}
+	}
+
+	/**
+	 * Skips unchanged characters up to the given position of the new text,
+	 * as diff_match_patch patches start. The context a patch starts with
+	 * may be before the end of the patch before it, and is skipped then.
+	 */
+	public void retainTo(int newPos) {
+		if (newPos < pos2) {
+			behind = pos2 - newPos;
+		} else {
+			retain(newPos - pos2);
+		}
+	}
+
+	public void delete(int n) {
+		if (n > 0) {
+			edit();
+			layer.ends[layer.count - 1] += n;
+			pos1 += n;
+		}
+	}
+
+	public void insert(int n) {
+		if (n > 0) {
+			edit();
+			layer.lengths[layer.count - 1] += n;
+			pos2 += n;
+		}
+	}
+
+	private void edit() {
+		if (!inEdit) {
+			layer.add(layer.count, pos1, pos1, 0);
+			inEdit = true;
+		}
+	}
+
+	/**
+	 * Replaces [start,end) of the text as changed so far with n characters.
+	 */
+	public void replace(int start, int end, int n) {
+		if (start == end && n == 0) {
+			return;
+		}
+		int[] starts = layer.starts;
+		int[] ends = layer.ends;
+		int[] lengths = layer.lengths;
+		int count = layer.count;
+		// The edits touching [start,end) are a..b-1, and delta is how much
+		// the ones before a have moved the text.
+		int a = 0;
+		int delta = 0;
+		while (a < count && starts[a] + delta + lengths[a] < start) {
+			delta += lengths[a] - (ends[a] - starts[a]);
+			++a;
+		}
+		int b = a;
+		int deltaB = delta;
+		while (b < count && starts[b] + deltaB <= end) {
+			deltaB += lengths[b] - (ends[b] - starts[b]);
+			++b;
+		}
+		if (a == b) {
+			layer.add(a, start - delta, end - delta, n);
+			return;
+		}
+		if (b == a + 1 && mergesExactly(starts[a] + delta, lengths[a], start, end)) {
+			int newStart = Math.min(start, starts[a] + delta);
+			int newEnd = Math.max(end, ends[a] + deltaB);
+			starts[a] = Math.min(starts[a], start - delta);
+			ends[a] = Math.max(ends[a], end - deltaB);
+			lengths[a] = newEnd - newStart - (end - start) + n;
+			return;
+		}
+		layer = new Layer();
+		layers.add(layer);
+		layer.add(0, start, end, n);
+	}
+
+	/**
+	 * Whether replacing [start,end) after an edit that left n characters
+	 * at newStart moves every position as one edit would: text inserted
+	 * where the edit ended, or a removal next to an edit that only removed.
+	 */
+	private static boolean mergesExactly(int newStart, int n, int start, int end) {
+		if (start == newStart + n) {
+			return start == end || n == 0;
+		}
+		return end == newStart && n == 0;
+	}
+
+	public boolean isIdentity() {
+		for (Layer l : layers) {
+			if (l.count != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the markers of doc1 moved to the text of doc2, which is the
+	 * text of doc1 with the changes.
+	 *
+	 * The markers that are removed on change are removed, the ones that are
+	 * adjusted moved, and the others kept as they are. Each position is
+	 * found in each layer of edits with a binary search.
+	 * 
+	 * @param doc1
+	 *            the text the changes were made against, with its markers
+	 */
+	public Map<String, AceMarker> applyTo(AceDoc doc1, AceDoc doc2) {
+		Map<String, AceMarker> markers = doc1.getMarkers();
+		if (isIdentity() || markers.isEmpty()) {
+			return markers;
+		}
+		PersistentMap<String, AceMarker> markers2 = PersistentMap.copyOf(markers);
+		int n = 0;
+		AceMarker[] adjusted = new AceMarker[markers.size()];
+		for (Entry<String, AceMarker> e : markers.entrySet()) {
+			OnTextChange onChange = e.getValue().getOnChange();
+			if (onChange == OnTextChange.REMOVE) {
+				markers2 = markers2.minus(e.getKey());
+			} else if (onChange == OnTextChange.ADJUST) {
+				adjusted[n++] = e.getValue();
+			}
+		}
+		if (n == 0) {
+			return markers2;
+		}
+
+		LineIndex lines1 = doc1.getLineIndex();
+		int[] starts = new int[n];
+		int[] ends = new int[n];
+		boolean[] emptied = new boolean[n];
+		for (int i = 0; i < n; ++i) {
+			AceRange r = adjusted[i].getRange();
+			starts[i] = lines1.getPosition(r.getStartRow(), r.getStartCol());
+			ends[i] = lines1.getPosition(r.getEndRow(), r.getEndCol());
+		}
+		for (Layer l : layers) {
+			if (l.count == 0) {
+				continue;
+			}
+			// deltas[e] is how much the edits before e move the text.
+			int[] deltas = new int[l.count + 1];
+			for (int e = 0; e < l.count; ++e) {
+				deltas[e + 1] = deltas[e] + l.lengths[e] - (l.ends[e] - l.starts[e]);
+			}
+			for (int i = 0; i < n; ++i) {
+				if (emptied[i]) {
+					continue;
+				}
+				int s = l.editAt(starts[i]);
+				int e = l.editAt(ends[i]);
+				boolean inS = s < l.count && l.starts[s] <= starts[i];
+				boolean inE = e < l.count && l.starts[e] <= ends[i];
+				if (inS && s == e && starts[i] < ends[i] && l.ends[e] > l.starts[e]) {
+					// All of it removed.
+					emptied[i] = true;
+					continue;
+				}
+				starts[i] = inS ? l.starts[s] + deltas[s] : starts[i] + deltas[s];
+				ends[i] = inE ? l.starts[e] + deltas[e] + l.lengths[e] : ends[i] + deltas[e];
+			}
+		}
+
+		LineIndex lines2 = doc2.getLineIndex();
+		int length2 = lines2.getTextLength();
+		for (int i = 0; i < n; ++i) {
+			AceMarker m = adjusted[i];
+			if (emptied[i]) {
+				markers2 = markers2.minus(m.getMarkerId());
+				continue;
+			}
+			int start = Math.max(0, Math.min(starts[i], length2));
+			int end = Math.max(0, Math.min(ends[i], length2));
+			AceRange r = AceRange.fromPositions(start, end, lines2);
+			if (r.equals(m.getRange())) {
+				continue;
+			}
+			r = sanitize(m, r);
+			if (isValid(r)) {
+				markers2 = markers2.plus(m.getMarkerId(), m.withNewPosition(r));
+			} else {
+				markers2 = markers2.minus(m.getMarkerId());
+			}
+		}
+		return markers2;
+	}
+
+	/**
+	 * Keeps a moved cursor marker one character long, and a cursor row
+	 * marker one row high, as the editor does.
+	 */
+	static AceRange sanitize(AceMarker m, AceRange r) {
+		if (m.getType()==AceMarker.Type.cursorRow && r.getEndRow() > r.getStartRow() + 1) {
+			return new AceRange(r.getStartRow(), 0, r.getStartRow()+1, 0);
+		}
+		if (m.getType()==AceMarker.Type.cursor &&
+				(r.getStartRow() != r.getEndRow() || r.getEndCol() > r.getStartCol() +1 )) {
+			return new AceRange(r.getEndRow(), r.getEndCol(), r.getEndRow(), r.getEndCol() + 1);
+		}
+		return r;
+	}
+
+	/**
+	 * Whether a moved marker is kept, that is, not empty or off the text.
+	 */
+	static boolean isValid(AceRange r) {
+		return !r.isZeroLength() && !r.isBackwards() && r.getStartRow() >= 0 && r.getStartCol() >= 0 && r.getEndCol() >= 0; // no need to check endrow
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Layer l : layers) {
+			for (int i = 0; i < l.count; ++i) {
+				sb.append("[").append(l.starts[i]).append(",").append(l.ends[i])
+						.append(") +").append(l.lengths[i]).append(" ");
+			}
+			sb.append("| ");
+		}
+		return sb.toString();
+	}
+
+	private static int[] grow(int[] a) {
+		int[] b = new int[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}
@@ -0,0 +1,410 @@
+package org.vaadin.aceeditor.client;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable hash map, kept in a hash array mapped trie, so that
+ * {@link #plus(Object, Object)} and {@link #minus(Object)} make a new map in
+ * O(log n), sharing the rest of the trie with the old one.
+ *
+ * Modifying it through the {@link Map} interface isn't supported.
+ */
+@SuppressWarnings("serial")
+public final class PersistentMap<K, V> extends AbstractMap<K, V> implements
+		Serializable {
+
+	@SuppressWarnings("rawtypes")
+	private static final PersistentMap EMPTY = new PersistentMap(null, 0);
+
+	// A Leaf, a Collision or a Branch, or null if empty.
+	private final Object root;
+	private final int size;
+
+	private PersistentMap(Object root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentMap<K, V> empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * The map itself if it's a PersistentMap, or else a copy of it.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentMap<K, V> copyOf(Map<? extends K, ? extends V> map) {
+		if (map instanceof PersistentMap) {
+			return (PersistentMap<K, V>) map;
+		}
+		PersistentMap<K, V> m = empty();
+		return m.plusAll(map);
+	}
+
+	public PersistentMap<K, V> plus(K key, V value) {
+		Leaf<K, V> leaf = new Leaf<K, V>(hash(key), key, value);
+		boolean[] added = new boolean[1];
+		Object root2 = put(root, 0, leaf, added);
+		if (root2 == root) {
+			return this;
+		}
+		return new PersistentMap<K, V>(root2, added[0] ? size + 1 : size);
+	}
+
+	public PersistentMap<K, V> plusAll(Map<? extends K, ? extends V> map) {
+		PersistentMap<K, V> m = this;
+		for (Entry<? extends K, ? extends V> e : map.entrySet()) {
+			m = m.plus(e.getKey(), e.getValue());
+		}
+		return m;
+	}
+
+	public PersistentMap<K, V> minus(Object key) {
+		Object root2 = remove(root, 0, key, hash(key));
+		if (root2 == root) {
+			return this;
+		}
+		return new PersistentMap<K, V>(root2, size - 1);
+	}
+
+	public PersistentMap<K, V> minusAll(Iterable<?> keys) {
+		PersistentMap<K, V> m = this;
+		for (Object key : keys) {
+			m = m.minus(key);
+		}
+		return m;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return find(key) != null;
+	}
+
+	@Override
+	public V get(Object key) {
+		Leaf<K, V> leaf = find(key);
+		return leaf == null ? null : leaf.value;
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new AbstractSet<Entry<K, V>>() {
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				return new LeafIterator<K, V>(root);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private static int hash(Object key) {
+		return key == null ? 0 : key.hashCode();
+	}
+
+	private static boolean same(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Leaf<K, V> find(Object key) {
+		int hash = hash(key);
+		Object node = root;
+		int shift = 0;
+		while (node != null) {
+			if (node instanceof Leaf) {
+				Leaf<K, V> leaf = (Leaf<K, V>) node;
+				return leaf.hash == hash && same(leaf.key, key) ? leaf : null;
+			}
+			if (node instanceof Collision) {
+				Collision c = (Collision) node;
+				if (c.hash != hash) {
+					return null;
+				}
+				for (Leaf<?, ?> leaf : c.leaves) {
+					if (same(leaf.key, key)) {
+						return (Leaf<K, V>) leaf;
+					}
+				}
+				return null;
+			}
+			Branch b = (Branch) node;
+			int bit = bit(hash, shift);
+			if ((b.bitmap & bit) == 0) {
+				return null;
+			}
+			node = b.slots[index(b.bitmap, bit)];
+			shift += 5;
+		}
+		return null;
+	}
+
+	private static int bit(int hash, int shift) {
+		return 1 << ((hash >>> shift) & 31);
+	}
+
+	private static int index(int bitmap, int bit) {
+		return Integer.bitCount(bitmap & (bit - 1));
+	}
+
+	private static Object put(Object node, int shift, Leaf<?, ?> leaf,
+			boolean[] added) {
+		if (node == null) {
+			added[0] = true;
+			return leaf;
+		}
+		if (node instanceof Leaf) {
+			Leaf<?, ?> l = (Leaf<?, ?>) node;
+			if (l.hash == leaf.hash && same(l.key, leaf.key)) {
+				return l.value == leaf.value ? l : leaf;
+			}
+			added[0] = true;
+			if (l.hash == leaf.hash) {
+				return new Collision(l.hash, new Leaf<?, ?>[] { l, leaf });
+			}
+			return merge(l, l.hash, leaf, leaf.hash, shift);
+		}
+		if (node instanceof Collision) {
+			Collision c = (Collision) node;
+			if (c.hash != leaf.hash) {
+				added[0] = true;
+				return merge(c, c.hash, leaf, leaf.hash, shift);
+			}
+			for (int i = 0; i < c.leaves.length; ++i) {
+				if (same(c.leaves[i].key, leaf.key)) {
+					if (c.leaves[i].value == leaf.value) {
+						return c;
+					}
+					Leaf<?, ?>[] leaves = new Leaf<?, ?>[c.leaves.length];
+					System.arraycopy(c.leaves, 0, leaves, 0, leaves.length);
+					leaves[i] = leaf;
+					return new Collision(c.hash, leaves);
+				}
+			}
+			added[0] = true;
+			Leaf<?, ?>[] leaves = new Leaf<?, ?>[c.leaves.length + 1];
+			System.arraycopy(c.leaves, 0, leaves, 0, c.leaves.length);
+			leaves[c.leaves.length] = leaf;
+			return new Collision(c.hash, leaves);
+		}
+		Branch b = (Branch) node;
+		int bit = bit(leaf.hash, shift);
+		int i = index(b.bitmap, bit);
+		if ((b.bitmap & bit) == 0) {
+			added[0] = true;
+			Object[] slots = new Object[b.slots.length + 1];
+			System.arraycopy(b.slots, 0, slots, 0, i);
+			slots[i] = leaf;
+			System.arraycopy(b.slots, i, slots, i + 1, b.slots.length - i);
+			return new Branch(b.bitmap | bit, slots);
+		}
+		Object child = put(b.slots[i], shift + 5, leaf, added);
+		if (child == b.slots[i]) {
+			return b;
+		}
+		Object[] slots = new Object[b.slots.length];
+		System.arraycopy(b.slots, 0, slots, 0, slots.length);
+		slots[i] = child;
+		return new Branch(b.bitmap, slots);
+	}
+
+	/**
+	 * A branch of two nodes whose hashes differ.
+	 */
+	private static Object merge(Object a, int hashA, Object b, int hashB,
+			int shift) {
+		int bitA = bit(hashA, shift);
+		int bitB = bit(hashB, shift);
+		if (bitA == bitB) {
+			return new Branch(bitA, new Object[] { merge(a, hashA, b, hashB,
+					shift + 5) });
+		}
+		return new Branch(bitA | bitB, (bitA & (bitB - 1)) != 0
+				? new Object[] { a, b } : new Object[] { b, a });
+	}
+
+	/**
+	 * @return the node without the key, the same node if it wasn't there, or
+	 *         null if nothing's left
+	 */
+	private static Object remove(Object node, int shift, Object key, int hash) {
+		if (node == null) {
+			return null;
+		}
+		if (node instanceof Leaf) {
+			Leaf<?, ?> l = (Leaf<?, ?>) node;
+			return l.hash == hash && same(l.key, key) ? null : l;
+		}
+		if (node instanceof Collision) {
+			Collision c = (Collision) node;
+			if (c.hash != hash) {
+				return c;
+			}
+			for (int i = 0; i < c.leaves.length; ++i) {
+				if (same(c.leaves[i].key, key)) {
+					if (c.leaves.length == 2) {
+						return c.leaves[1 - i];
+					}
+					Leaf<?, ?>[] leaves = new Leaf<?, ?>[c.leaves.length - 1];
+					System.arraycopy(c.leaves, 0, leaves, 0, i);
+					System.arraycopy(c.leaves, i + 1, leaves, i,
+							leaves.length - i);
+					return new Collision(c.hash, leaves);
+				}
+			}
+			return c;
+		}
+		Branch b = (Branch) node;
+		int bit = bit(hash, shift);
+		if ((b.bitmap & bit) == 0) {
+			return b;
+		}
+		int i = index(b.bitmap, bit);
+		Object child = remove(b.slots[i], shift + 5, key, hash);
+		if (child == b.slots[i]) {
+			return b;
+		}
+		if (child == null) {
+			if (b.slots.length == 1) {
+				return null;
+			}
+			if (b.slots.length == 2 && !(b.slots[1 - i] instanceof Branch)) {
+				// A leaf or collision doesn't need a branch of its own.
+				return b.slots[1 - i];
+			}
+			Object[] slots = new Object[b.slots.length - 1];
+			System.arraycopy(b.slots, 0, slots, 0, i);
+			System.arraycopy(b.slots, i + 1, slots, i, slots.length - i);
+			return new Branch(b.bitmap & ~bit, slots);
+		}
+		if (b.slots.length == 1 && !(child instanceof Branch)) {
+			return child;
+		}
+		Object[] slots = new Object[b.slots.length];
+		System.arraycopy(b.slots, 0, slots, 0, slots.length);
+		slots[i] = child;
+		return new Branch(b.bitmap, slots);
+	}
+
+	private static final class Leaf<K, V> implements Entry<K, V>, Serializable {
+		private final int hash;
+		private final K key;
+		private final V value;
+
+		private Leaf(int hash, K key, V value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+
+		@Override
+		public K getKey() {
+			return key;
+		}
+
+		@Override
+		public V getValue() {
+			return value;
+		}
+
+		@Override
+		public V setValue(V value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Entry)) {
+				return false;
+			}
+			Entry<?, ?> e = (Entry<?, ?>) other;
+			return same(key, e.getKey()) && same(value, e.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return hash ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	// Leaves whose keys have the same hash.
+	private static final class Collision implements Serializable {
+		private final int hash;
+		private final Leaf<?, ?>[] leaves;
+
+		private Collision(int hash, Leaf<?, ?>[] leaves) {
+			this.hash = hash;
+			this.leaves = leaves;
+		}
+	}
+
+	// Slots for the 5 bits of the hash at a level that are set in the bitmap.
+	private static final class Branch implements Serializable {
+		private final int bitmap;
+		private final Object[] slots;
+
+		private Branch(int bitmap, Object[] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+	}
+
+	private static final class LeafIterator<K, V> implements
+			Iterator<Entry<K, V>> {
+		private final ArrayList<Object> stack = new ArrayList<Object>();
+
+		private LeafIterator(Object root) {
+			if (root != null) {
+				stack.add(root);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !stack.isEmpty();
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Entry<K, V> next() {
+			while (!stack.isEmpty()) {
+				Object node = stack.remove(stack.size() - 1);
+				if (node instanceof Leaf) {
+					return (Leaf<K, V>) node;
+				}
+				Object[] children = node instanceof Branch ? ((Branch) node).slots
+						: ((Collision) node).leaves;
+				for (int i = children.length - 1; i >= 0; --i) {
+					stack.add(children[i]);
+				}
+			}
+			throw new NoSuchElementException();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package org.vaadin.aceeditor.client;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * An immutable hash set on a {@link PersistentMap}, so that
+ * {@link #plus(Object)} and {@link #minus(Object)} make a new set in
+ * O(log n), sharing the rest with the old one.
+ *
+ * Modifying it through the {@link Set} interface isn't supported.
+ */
+@SuppressWarnings("serial")
+public final class PersistentSet<E> extends AbstractSet<E> implements
+		Serializable {
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static final PersistentSet EMPTY = new PersistentSet(
+			PersistentMap.empty());
+
+	private final PersistentMap<E, Boolean> map;
+
+	private PersistentSet(PersistentMap<E, Boolean> map) {
+		this.map = map;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <E> PersistentSet<E> empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * The set itself if it's a PersistentSet, or else a copy of it.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <E> PersistentSet<E> copyOf(Set<? extends E> set) {
+		if (set instanceof PersistentSet) {
+			return (PersistentSet<E>) set;
+		}
+		PersistentSet<E> s = empty();
+		return s.plusAll(set);
+	}
+
+	public PersistentSet<E> plus(E e) {
+		return with(map.plus(e, Boolean.TRUE));
+	}
+
+	public PersistentSet<E> plusAll(Iterable<? extends E> es) {
+		PersistentMap<E, Boolean> m = map;
+		for (E e : es) {
+			m = m.plus(e, Boolean.TRUE);
+		}
+		return with(m);
+	}
+
+	public PersistentSet<E> minus(Object e) {
+		return with(map.minus(e));
+	}
+
+	public PersistentSet<E> minusAll(Iterable<?> es) {
+		return with(map.minusAll(es));
+	}
+
+	private PersistentSet<E> with(PersistentMap<E, Boolean> map2) {
+		return map2 == map ? this : new PersistentSet<E>(map2);
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return map.containsKey(o);
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		return map.keySet().iterator();
+	}
+}
@@ -0,0 +1,316 @@
+package org.vaadin.aceeditor.client;
+
+import java.io.Serializable;
+
+/**
+ * An immutable text made of pieces of other strings, kept in a balanced
+ * tree. Replacing a part of it makes a new text in O(edit + log n), sharing
+ * the rest of the tree and the strings with the old one.
+ *
+ * {@link #hashCode()} is the same as the hashCode of the text as a String,
+ * and is kept in the tree, so that it's also O(edit + log n) after an edit.
+ */
+@SuppressWarnings("serial")
+public final class Rope implements Serializable {
+
+	// Pieces longer than this are split before splitting them further, so
+	// that hashing a piece of an edited text stays cheap.
+	private static final int MAX_PIECE = 2048;
+
+	// Adjacent pieces shorter than this together are joined into one, so
+	// that typing doesn't make a node of every character.
+	private static final int SMALL_PIECE = 256;
+
+	public static final Rope EMPTY = new Rope("", 0, 0);
+
+	// A piece is [offset,offset+length) of base. A node has left and right
+	// instead.
+	private final String base;
+	private final int offset;
+	private final Rope left;
+	private final Rope right;
+	private final int length;
+	private final int height;
+
+	// hashCode of the text, and 31^length, both computed on first use.
+	private transient boolean hashed;
+	private transient int hash;
+	private transient int power;
+
+	private Rope(String base, int offset, int length) {
+		this.base = base;
+		this.offset = offset;
+		this.left = null;
+		this.right = null;
+		this.length = length;
+		this.height = 0;
+	}
+
+	private Rope(Rope left, Rope right) {
+		this.base = null;
+		this.offset = 0;
+		this.left = left;
+		this.right = right;
+		this.length = left.length + right.length;
+		this.height = Math.max(left.height, right.height) + 1;
+	}
+
+	public static Rope of(String text) {
+		if (text == null || text.isEmpty()) {
+			return EMPTY;
+		}
+		return new Rope(text, 0, text.length());
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public boolean isEmpty() {
+		return length == 0;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index " + index
+					+ " of a text of length " + length);
+		}
+		Rope r = this;
+		while (r.left != null) {
+			if (index < r.left.length) {
+				r = r.left;
+			} else {
+				index -= r.left.length;
+				r = r.right;
+			}
+		}
+		return r.base.charAt(r.offset + index);
+	}
+
+	/**
+	 * Index of the first c at or after from, or -1.
+	 */
+	public int indexOf(char c, int from) {
+		if (from < 0) {
+			from = 0;
+		}
+		if (from >= length) {
+			return -1;
+		}
+		if (left == null) {
+			int i = base.indexOf(c, offset + from);
+			return i == -1 || i >= offset + length ? -1 : i - offset;
+		}
+		if (from < left.length) {
+			int i = left.indexOf(c, from);
+			if (i != -1) {
+				return i;
+			}
+			from = left.length;
+		}
+		int i = right.indexOf(c, from - left.length);
+		return i == -1 ? -1 : left.length + i;
+	}
+
+	public String substring(int start, int end) {
+		checkRange(start, end);
+		if (left == null) {
+			return base.substring(offset + start, offset + end);
+		}
+		StringBuilder sb = new StringBuilder(end - start);
+		appendTo(sb, start, end);
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a text with the characters [start,end) replaced with the given
+	 * text.
+	 */
+	public Rope replace(int start, int end, String text) {
+		checkRange(start, end);
+		Rope[] before = split(this, start);
+		Rope[] after = split(before[1], end - start);
+		return join(join(before[0], of(text)), after[1]);
+	}
+
+	public Rope append(String text) {
+		return join(this, of(text));
+	}
+
+	@Override
+	public String toString() {
+		if (left == null) {
+			return base.substring(offset, offset + length);
+		}
+		StringBuilder sb = new StringBuilder(length);
+		appendTo(sb, 0, length);
+		return sb.toString();
+	}
+
+	@Override
+	public int hashCode() {
+		hash();
+		return hash;
+	}
+
+	/**
+	 * Whether the texts are the same. Texts of different lengths or hash
+	 * codes are told apart without comparing their characters.
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if (other == this) {
+			return true;
+		}
+		if (!(other instanceof Rope)) {
+			return false;
+		}
+		Rope o = (Rope) other;
+		if (o.length != length || o.hashCode() != hashCode()) {
+			return false;
+		}
+		return toString().equals(o.toString());
+	}
+
+	private void checkRange(int start, int end) {
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("Invalid range [" + start
+					+ "," + end + ") of a text of length " + length);
+		}
+	}
+
+	private void appendTo(StringBuilder sb, int start, int end) {
+		if (left == null) {
+			sb.append(base, offset + start, offset + end);
+			return;
+		}
+		if (start < left.length) {
+			left.appendTo(sb, start, Math.min(end, left.length));
+		}
+		if (end > left.length) {
+			right.appendTo(sb, Math.max(start - left.length, 0), end
+					- left.length);
+		}
+	}
+
+	private void hash() {
+		if (hashed) {
+			return;
+		}
+		if (left == null) {
+			int h = 0;
+			int p = 1;
+			if (offset == 0 && length == base.length()) {
+				// The String caches its own.
+				h = base.hashCode();
+				for (int n = length, b = 31; n > 0; n >>= 1, b *= b) {
+					if ((n & 1) != 0) {
+						p *= b;
+					}
+				}
+			} else {
+				for (int i = offset; i < offset + length; ++i) {
+					h = 31 * h + base.charAt(i);
+					p *= 31;
+				}
+			}
+			hash = h;
+			power = p;
+		} else {
+			left.hash();
+			right.hash();
+			hash = left.hash * right.power + right.hash;
+			power = left.power * right.power;
+		}
+		hashed = true;
+	}
+
+	/**
+	 * Splits the text into [0,index) and [index,length).
+	 */
+	private static Rope[] split(Rope r, int index) {
+		if (index <= 0) {
+			return new Rope[] { EMPTY, r };
+		}
+		if (index >= r.length) {
+			return new Rope[] { r, EMPTY };
+		}
+		if (r.left == null) {
+			if (r.length > MAX_PIECE) {
+				return split(pieces(r.base, r.offset, r.length), index);
+			}
+			return new Rope[] { new Rope(r.base, r.offset, index),
+					new Rope(r.base, r.offset + index, r.length - index) };
+		}
+		if (index < r.left.length) {
+			Rope[] s = split(r.left, index);
+			return new Rope[] { s[0], join(s[1], r.right) };
+		}
+		if (index > r.left.length) {
+			Rope[] s = split(r.right, index - r.left.length);
+			return new Rope[] { join(r.left, s[0]), s[1] };
+		}
+		return new Rope[] { r.left, r.right };
+	}
+
+	/**
+	 * A balanced tree of pieces of at most MAX_PIECE characters.
+	 */
+	private static Rope pieces(String base, int offset, int length) {
+		if (length <= MAX_PIECE) {
+			return new Rope(base, offset, length);
+		}
+		int half = length / 2;
+		return new Rope(pieces(base, offset, half), pieces(base, offset
+				+ half, length - half));
+	}
+
+	private static Rope join(Rope l, Rope r) {
+		if (l.length == 0) {
+			return r;
+		}
+		if (r.length == 0) {
+			return l;
+		}
+		if (l.left == null && r.left == null
+				&& l.length + r.length <= SMALL_PIECE) {
+			return new Rope(l.toString() + r.toString(), 0, l.length
+					+ r.length);
+		}
+		// Down the edge of the taller tree to a subtree of about the height
+		// of the other, or to the piece next to a small piece, to join them
+		// there.
+		if (l.height > r.height + 1 || l.left != null && isSmallPiece(r)) {
+			return balance(l.left, join(l.right, r));
+		}
+		if (r.height > l.height + 1 || r.left != null && isSmallPiece(l)) {
+			return balance(join(l, r.left), r.right);
+		}
+		return new Rope(l, r);
+	}
+
+	private static boolean isSmallPiece(Rope r) {
+		return r.left == null && r.length < SMALL_PIECE;
+	}
+
+	/**
+	 * A node of l and r, rotated if their heights differ by two.
+	 */
+	private static Rope balance(Rope l, Rope r) {
+		if (l.height > r.height + 1) {
+			if (l.left.height >= l.right.height) {
+				return new Rope(l.left, new Rope(l.right, r));
+			}
+			return new Rope(new Rope(l.left, l.right.left), new Rope(
+					l.right.right, r));
+		}
+		if (r.height > l.height + 1) {
+			if (r.right.height >= r.left.height) {
+				return new Rope(new Rope(l, r.left), r.right);
+			}
+			return new Rope(new Rope(l, r.left.left), new Rope(r.left.right,
+					r.right));
+		}
+		return new Rope(l, r);
+	}
+}
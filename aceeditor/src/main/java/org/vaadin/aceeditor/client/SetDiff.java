@@ -79,10 +79,7 @@ public class SetDiff<V extends TransportableAs<T>,T> {
 	}
 	
 	public Set<V> applyTo(Set<V> s1) {
-		Set<V> s2 = new HashSet<V>(s1);
-		s2.removeAll(removed);
-		s2.addAll(added);
-		return s2;
+		return PersistentSet.copyOf(s1).minusAll(removed).plusAll(added);
 	}
 	
 //	public TransportSetDiff<T> asTransport() {
@@ -204,9 +204,9 @@ public class SuggesterConnector extends AbstractExtensionConnector implements
 		if (col1 == col2) {
 			return "";
 		}
-		String[] lines = text.split("\n", -1);
-		int start = Util.cursorPosFromLineCol(lines, row, col1, 0);
-		int end = Util.cursorPosFromLineCol(lines, row, col2, 0);
+		LineIndex lines = LineIndex.of(text);
+		int start = lines.getPosition(row, col1);
+		int end = lines.getPosition(row, col2);
 		return text.substring(start, end);
 	}
 
@@ -0,0 +1,21 @@
+package org.vaadin.aceeditor.client;
+
+/**
+ * Finds a pattern in a text near where it's expected, allowing for errors,
+ * as match_main of diff_match_patch, of which the client and the server
+ * have their own.
+ */
+public interface TextMatcher {
+
+	/**
+	 * @return the position of the best match near loc, or -1 if there's
+	 *         none good enough
+	 */
+	int match(String text, String pattern, int loc);
+
+	/**
+	 * @return where position loc of text1 is in text2, as diff_xIndex over
+	 *         the diff of the texts
+	 */
+	int xIndex(String text1, String text2, int loc);
+}
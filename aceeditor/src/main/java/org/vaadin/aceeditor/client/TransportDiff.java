@@ -1,6 +1,7 @@
 package org.vaadin.aceeditor.client;
 
 import java.io.Serializable;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -19,6 +20,11 @@ import org.vaadin.aceeditor.client.TransportDoc.TransportRowAnnotation;
 @SuppressWarnings("serial")
 public class TransportDiff implements Serializable {
 	
+	/**
+	 * The versions of the shadow on both sides after the initial value.
+	 */
+	public static final int FIRST_VERSION = 1;
+
 	public static class TransportMarkerSetDiff implements Serializable {
 		public Map<String, TransportMarkerAddition> added;
 		public Map<String, TransportMarkerDiff> moved;
@@ -117,13 +123,114 @@ public class TransportDiff implements Serializable {
 		}
 	}
 	
+	/**
+	 * A change made in the editor: at a row and column of the text before
+	 * the change, remove some characters and insert a text.
+	 */
+	public static class TransportEdit implements Serializable {
+		public int row;
+		public int column;
+		public int removeLength;
+		public String text;
+		public TransportEdit() {}
+		public TransportEdit(int row, int column, int removeLength, String text) {
+			this.row = row;
+			this.column = column;
+			this.removeLength = removeLength;
+			this.text = text;
+		}
+		@Override
+		public String toString() {
+			return "[" + row + "," + column + " -" + removeLength + " +" + text + "]";
+		}
+	}
+	
 	public String patchesAsString;
+
+	/**
+	 * The text changes as a diff_match_patch delta (diff_toDelta) of the
+	 * shadow, without context. Used instead of {@link #patchesAsString} when
+	 * not null.
+	 */
+	public String delta;
+
+	/**
+	 * Set by the client: the text changes as the edits made in the editor
+	 * since the shadow, in order. Used instead of {@link #patchesAsString}
+	 * when not null.
+	 */
+	public List<TransportEdit> edits;
+
+	/**
+	 * {@link AceDoc#getTextChecksum()} of the shadow the diff applies to.
+	 * Always set with {@link #version}, otherwise only with a delta or
+	 * edits.
+	 */
+	public int baseChecksum;
+
+	/**
+	 * The version of the shadow the diff applies to, or with
+	 * {@link #resyncDoc} the version of that document, in diffs from the
+	 * client. Both sides count it from {@link #FIRST_VERSION} up, one per
+	 * diff from the client applied to the shadow, so a diff for another
+	 * version means that one got lost or the shadows have diverged. From
+	 * the server, it also tells which diffs of the client have been
+	 * applied. 0 if not known, from a peer that doesn't count versions.
+	 */
+	public int version;
+
+	/**
+	 * Like {@link #version} but counting the diffs from the server. A diff
+	 * from the client for an older version was made before the client got
+	 * the latest diffs from the server, and can only be applied as patches
+	 * with context. Likewise from the server when its {@link #version} is
+	 * older than the client's.
+	 */
+	public int serverVersion;
+
+	/**
+	 * Set by the server: it has applied the diffs of the client up to
+	 * {@link #version} and has no changes of its own to send. No other
+	 * fields than the versions and the checksum are set.
+	 */
+	public boolean acknowledgeOnly;
+
+	/**
+	 * Set by the client: it can read deltas.
+	 */
+	public boolean acceptsDelta;
+
+	/**
+	 * Set by the client: its shadow didn't match a delta from the server, so
+	 * it asks for the whole document.
+	 */
+	public boolean resync;
+
+	/**
+	 * Set by the server: the whole document, to be taken as the new shadow.
+	 * When not null, the other fields are not used.
+	 */
+	public TransportDoc resyncDoc;
+
+	/**
+	 * Set by the server along with {@link #resyncDoc}: the text changes of the
+	 * client's latest diff were not applied, so the client should send them
+	 * again.
+	 */
+	public boolean rejected;
+
+	/**
+	 * Set by the server: the time it spent applying the diffs of the client
+	 * and making this reply, in microseconds.
+	 */
+	public int serverMicros;
+
 	public TransportMarkerSetDiff markerSetDiff;
 	public TransportSetDiffForRowAnnotations rowAnnDiff;
 	public TransportSetDiffForMarkerAnnotations markerAnnDiff;
 	
 	@Override
 	public String toString() {
-		return "///// DIFF\n" + patchesAsString+"\n|||| Markers\n" + markerSetDiff+"\n//////\nrad:" + rowAnnDiff + ", mad:" + markerAnnDiff;
+		return "///// DIFF\n" + (edits != null ? edits : delta != null ? delta : patchesAsString)+"\n|||| Markers\n" + markerSetDiff+"\n//////\nrad:" + rowAnnDiff + ", mad:" + markerAnnDiff;
 	}
 }
@@ -6,11 +6,9 @@ import java.util.Set;
 
 public class Util {
 
-	// TODO: A better way to convert would be better. This is a bit inefficient.
 	public static int cursorPosFromLineCol(String text, int line, int col,
 			int firstLineNum) {
-		return cursorPosFromLineCol(text.split("\n", -1), line, col,
-				firstLineNum);
+		return LineIndex.of(text).getPosition(line - firstLineNum, col);
 	}
 
 	public static int cursorPosFromLineCol(String[] lines, int line, int col,
@@ -43,10 +41,11 @@ public class Util {
 		return pos;
 	}
 
-	// TODO: A better way to convert would be better. This is a bit inefficient.
 	public static int[] lineColFromCursorPos(String text, int pos,
 			int firstLineNum) {
-		return lineColFromCursorPos(text.split("\n", -1), pos, firstLineNum);
+		int[] rowCol = LineIndex.of(text).getRowCol(pos);
+		rowCol[0] += firstLineNum;
+		return rowCol;
 	}
 
 	public static int[] lineColFromCursorPos(String[] lines, int pos,
@@ -139,6 +138,9 @@ public class Util {
 	public static <K,V> boolean sameMaps(
 			Map<K, V> map1,
 			Map<K, V> map2) {
+		if (map1 == map2) {
+			return true;
+		}
 		if (map1.size() != map2.size()) {
 			return false;
 		}
@@ -153,6 +155,9 @@ public class Util {
 	}
 
 	public static <V> boolean sameSets(Set<V> set1, Set<V> set2) {
+		if (set1 == set2) {
+			return true;
+		}
 		if (set1.size()!=set2.size()) {
 			return false;
 		}
@@ -165,9 +170,9 @@ public class Util {
 	}
 
 	public static String replaceContents(AceRange ofThis, String inText, String withThis) {
-		String[] lines = inText.split("\n", -1);
-		int start = Util.cursorPosFromLineCol(lines, ofThis.getStartRow(), ofThis.getStartCol(), 0);
-		int end = Util.cursorPosFromLineCol(lines, ofThis.getEndRow(), ofThis.getEndCol(), 0);
+		LineIndex lines = LineIndex.of(inText);
+		int start = lines.getPosition(ofThis.getStartRow(), ofThis.getStartCol());
+		int end = lines.getPosition(ofThis.getEndRow(), ofThis.getEndCol());
 		return inText.substring(0, start) + withThis + inText.substring(end);
 	}
 
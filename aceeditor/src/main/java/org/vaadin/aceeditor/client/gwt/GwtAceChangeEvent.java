@@ -1,6 +1,7 @@
 package org.vaadin.aceeditor.client.gwt;
 
 import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsArrayString;
 
 /**
  * A text change event received from Ace.
@@ -37,6 +38,14 @@ public class GwtAceChangeEvent extends GwtAceEvent {
 		public final native String getText() /*-{
 			return this.text;
 		}-*/;
+
+		/**
+		 * The lines inserted or removed, for the insertLines and removeLines
+		 * actions.
+		 */
+		public final native JsArrayString getLines() /*-{
+			return this.lines;
+		}-*/;
 	}
 
 }
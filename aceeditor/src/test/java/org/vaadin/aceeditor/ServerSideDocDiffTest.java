@@ -0,0 +1,95 @@
+package org.vaadin.aceeditor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+
+import org.junit.Test;
+import org.vaadin.aceeditor.client.AceDoc;
+import org.vaadin.aceeditor.client.AceMarker;
+import org.vaadin.aceeditor.client.AceRange;
+import org.vaadin.aceeditor.client.MarkerAddition;
+import org.vaadin.aceeditor.client.MarkerSetDiff;
+import org.vaadin.aceeditor.client.TransportDiff;
+import org.vaadin.aceeditor.client.TransportDiff.TransportEdit;
+
+public class ServerSideDocDiffTest {
+
+	private static final String SHADOW = "abc\ndef\nghi";
+	private static final String CLIENT = "abc\nd12345ef\nghi";
+
+	private static AceDoc withMarker(String text, AceRange range) {
+		AceMarker m = new AceMarker("m", range, "css", AceMarker.Type.text,
+				false, AceMarker.OnTextChange.ADJUST);
+		return new AceDoc(text, Collections.singletonMap("m", m));
+	}
+
+	private static TransportDiff deltaFromClient() {
+		diff_match_patch dmp = new diff_match_patch();
+		TransportDiff d = new TransportDiff();
+		d.delta = dmp.diff_toDelta(dmp.diff_main(SHADOW, CLIENT));
+		d.markerSetDiff = new MarkerSetDiff(new HashMap<String, MarkerAddition>(),
+				new HashSet<String>()).asTransportDiff();
+		return d;
+	}
+
+	@Test
+	public void movesMarkersOfShadow() {
+		AceDoc shadow = withMarker(SHADOW, new AceRange(1, 0, 1, 3));
+		ServerSideDocDiff diff = ServerSideDocDiff.fromTransportDiff(deltaFromClient(), shadow);
+		AceDoc shadow2 = diff.applyTo(shadow);
+		assertEquals(CLIENT, shadow2.getText());
+		assertEquals(new AceRange(1, 0, 1, 8), shadow2.getMarkers().get("m").getRange());
+	}
+
+	@Test
+	public void movesMarkersOfDocChangedOnServer() {
+		AceDoc shadow = withMarker(SHADOW, new AceRange(1, 0, 1, 3));
+		AceDoc doc = withMarker("abc\nQQQQ\ndef\nghi", new AceRange(2, 0, 2, 3));
+		ServerSideDocDiff diff = ServerSideDocDiff.fromTransportDiff(deltaFromClient(), shadow);
+		AceDoc doc2 = diff.applyTo(doc);
+		assertEquals("abc\nQQQQ\nd12345ef\nghi", doc2.getText());
+		assertEquals(new AceRange(2, 0, 2, 8), doc2.getMarkers().get("m").getRange());
+	}
+
+	@Test
+	public void movesMarkersOfDocChangedOnServerWithEdits() {
+		AceDoc shadow = withMarker(SHADOW, new AceRange(1, 0, 1, 3));
+		AceDoc doc = withMarker("abc\nQQQQ\ndef\nghi", new AceRange(2, 0, 2, 3));
+		TransportDiff d = deltaFromClient();
+		d.delta = null;
+		d.edits = Collections.singletonList(new TransportEdit(1, 1, 0, "12345"));
+		ServerSideDocDiff diff = ServerSideDocDiff.fromTransportDiff(d, shadow);
+		AceDoc doc2 = diff.applyTo(doc);
+		assertEquals("abc\nQQQQ\nd12345ef\nghi", doc2.getText());
+		assertEquals(new AceRange(2, 0, 2, 8), doc2.getMarkers().get("m").getRange());
+	}
+
+	@Test
+	public void removesMarkersOnChangeOfDocChangedOnServer() {
+		AceDoc shadow = new AceDoc(SHADOW);
+		AceMarker m = new AceMarker("m", new AceRange(2, 0, 2, 3), "css",
+				AceMarker.Type.text, false, AceMarker.OnTextChange.REMOVE);
+		AceDoc doc = new AceDoc("abc\nQQQQ\ndef\nghi", Collections.singletonMap("m", m));
+		ServerSideDocDiff diff = ServerSideDocDiff.fromTransportDiff(deltaFromClient(), shadow);
+		assertFalse(diff.applyTo(doc).getMarkers().containsKey("m"));
+	}
+
+	@Test
+	public void removesMarkersLeftEmpty() {
+		AceDoc shadow = withMarker(SHADOW, new AceRange(1, 0, 1, 3));
+		TransportDiff d = deltaFromClient();
+		d.delta = null;
+		d.edits = Collections.singletonList(new TransportEdit(1, 0, 3, ""));
+		AceDoc shadow2 = ServerSideDocDiff.fromTransportDiff(d, shadow).applyTo(shadow);
+		Map<String, AceMarker> markers = shadow2.getMarkers();
+		assertEquals("abc\n\nghi", shadow2.getText());
+		assertFalse(markers.containsKey("m"));
+	}
+}
@@ -0,0 +1,47 @@
+package org.vaadin.aceeditor.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LineIndexTest {
+
+	private static String randomText(Random r, int length, char other) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; ++i) {
+			sb.append(r.nextInt(5) == 0 ? '\n' : other);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void replaceGivesTheIndexOfTheEditedText() {
+		Random r = new Random(1);
+		for (int t = 0; t < 20; ++t) {
+			String text = randomText(r, r.nextInt(20000), 'x');
+			LineIndex lines = LineIndex.of(text);
+			for (int e = 0; e < 100; ++e) {
+				int start = r.nextInt(text.length() + 1);
+				int end = Math.min(text.length(), start + r.nextInt(r.nextBoolean() ? 10 : 5000));
+				String inserted = randomText(r, r.nextInt(r.nextBoolean() ? 10 : 5000), 'y');
+				text = text.substring(0, start) + inserted + text.substring(end);
+				lines = lines.replace(start, end, inserted);
+
+				LineIndex expected = LineIndex.of(text);
+				assertEquals(expected.getLineCount(), lines.getLineCount());
+				assertEquals(expected.getTextLength(), lines.getTextLength());
+				for (int row = 0; row < expected.getLineCount(); ++row) {
+					assertEquals(expected.getLineStart(row), lines.getLineStart(row));
+				}
+				for (int pos = -1; pos <= text.length() + 1; pos += 1 + r.nextInt(50)) {
+					int[] rc = expected.getRowCol(pos);
+					int[] rc2 = lines.getRowCol(pos);
+					assertEquals(rc[0], rc2[0]);
+					assertEquals(rc[1], rc2[1]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.vaadin.aceeditor.client;
+
+import static org.junit.Assert.assertEquals;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+
+import org.junit.Test;
+
+public class MarkerAdditionTest {
+
+	private static final diff_match_patch dmp = new diff_match_patch();
+
+	private static final TextMatcher matcher = new TextMatcher() {
+		@Override
+		public int match(String text, String pattern, int loc) {
+			return dmp.match_main(text, pattern, loc);
+		}
+		@Override
+		public int xIndex(String text1, String text2, int loc) {
+			return dmp.diff_xIndex(dmp.diff_main(text1, text2), loc);
+		}
+	};
+
+	private static final String TEXT = "the quick brown fox jumps over MARKED the lazy dog";
+
+	private static AceMarker marker(String text, String marked) {
+		int start = text.indexOf(marked);
+		return new AceMarker("m", AceRange.fromPositions(start, start + marked.length(), text),
+				"css", AceMarker.Type.text, false, AceMarker.OnTextChange.ADJUST);
+	}
+
+	private static String adjusted(String text2) {
+		MarkerAddition ma = new MarkerAddition(marker(TEXT, "MARKED"), TEXT);
+		AceRange r = ma.getAdjustedMarker(text2, LineIndex.of(text2), matcher).getRange();
+		int[] pos = r.getPositions(LineIndex.of(text2));
+		return text2.substring(pos[0], pos[1]);
+	}
+
+	@Test
+	public void followsMovedText() {
+		assertEquals("MARKED", adjusted("0123456789 " + TEXT));
+	}
+
+	@Test
+	public void followsContextWithInsertion() {
+		assertEquals("MARKED", adjusted("xxxxxxxxthe quick brown fox jumps oXver MARKED the lazy dog"));
+	}
+
+	@Test
+	public void followsContextWithDeletion() {
+		assertEquals("MARKED", adjusted("xxxxxxxxthe quick brown fox jumps ovr MARKED the lazy dog"));
+	}
+}
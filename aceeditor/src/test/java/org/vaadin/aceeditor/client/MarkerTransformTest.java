@@ -0,0 +1,49 @@
+package org.vaadin.aceeditor.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MarkerTransformTest {
+
+	private static final String TEXT = "0123456789012345678901234567890123456789";
+
+	private static Map<String, AceMarker> apply(MarkerTransform mt, int start, int end, int length2) {
+		AceMarker m = new AceMarker("m", new AceRange(0, start, 0, end), "css",
+				AceMarker.Type.text, false, AceMarker.OnTextChange.ADJUST);
+		AceDoc doc1 = new AceDoc(TEXT, Collections.singletonMap("m", m));
+		return mt.applyTo(doc1, new AceDoc(TEXT.substring(0, length2)));
+	}
+
+	@Test
+	public void movesMarkersEditByEditWithOverlappingEdits() {
+		MarkerTransform mt = new MarkerTransform();
+		mt.replace(17, 21, 2);
+		mt.replace(14, 17, 1);
+		mt.replace(6, 6, 0);
+		mt.replace(16, 17, 2);
+		assertEquals(new AceRange(0, 1, 0, 15), apply(mt, 1, 15, 37).get("m").getRange());
+	}
+
+	@Test
+	public void removesMarkersEmptiedBeforeRefilled() {
+		MarkerTransform mt = new MarkerTransform();
+		mt.replace(38, 39, 0);
+		mt.replace(38, 38, 1);
+		assertFalse(apply(mt, 38, 39, 40).containsKey("m"));
+	}
+
+	@Test
+	public void putsTypedTextInMarkerItEnds() {
+		MarkerTransform mt = new MarkerTransform();
+		mt.replace(5, 5, 1);
+		mt.replace(6, 6, 1);
+		mt.replace(7, 7, 1);
+		assertEquals(new AceRange(0, 2, 0, 8), apply(mt, 2, 5, 40).get("m").getRange());
+		assertEquals(new AceRange(0, 5, 0, 13), apply(mt, 5, 10, 40).get("m").getRange());
+	}
+}